@@ -0,0 +1,66 @@
+package monster.java.bench;
+
+import java.util.ArrayList;
+
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.world.BitboardField;
+import monster.java.server.world.DistanceField;
+import monster.java.server.world.Grid;
+import monster.java.server.world.Node;
+
+/**
+ * Compares the bitboard BFS against the object graph search
+ * (Node.beginSearch) and the int array BFS (DistanceField), for
+ * one monster chasing four players in the corners. The monster
+ * starts either in the middle of the world, far from everyone, or
+ * close to the top left player.
+ *
+ * beginSearch only runs on the bundled maps, it does not finish
+ * in reasonable time on the generated 2048x2048 worlds.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.BitboardBenchmark [map...]
+ */
+public class BitboardBenchmark {
+
+	// Worlds to run, bundled maps or generated, see Worlds.byName
+	private static final String[] MAPS = {"world.txt", "world_9x9Maze.txt", "world_ORIG.txt",
+			"maze2048", "open2048"};
+
+	// Largest world to run the recursive search on
+	private static final int LEGACY_MAX_SIZE = 41;
+
+	public static void main(String[] args) throws Exception {
+		for (String map : args.length > 0 ? args : MAPS)
+			run(map);
+	}
+
+	private static void run(String map) throws Exception {
+		String[] world = Worlds.byName(map);
+		Grid grid = new Grid(world);
+		ArrayList<NetworkPlayer> players = Worlds.players(world, 4);
+		BitboardField bitboard = new BitboardField(grid);
+		DistanceField field = new DistanceField(grid);
+
+		for (String start : new String[]{"centre", "near"}) {
+			System.out.println(map + ", monster " + start);
+			int at = start.equals("near") ? Math.min(32, world.length / 4) : world.length / 2;
+			int[] pos = Worlds.nearestOpen(world, at, at);
+
+			Measure.report("bitboard", () -> {
+				bitboard.update(players);
+				return bitboard.getDirection(pos[0], pos[1]);
+			});
+			Measure.report("distanceField", () -> {
+				field.update(players);
+				return field.getDirection(pos[0], pos[1]);
+			});
+
+			if (start.equals("centre") && world.length <= LEGACY_MAX_SIZE) {
+				Node[][] nodes = Node.init(world);
+				Node node = Node.getNode(nodes, pos[0], pos[1]);
+				Measure.report("beginSearch", () -> node.beginSearch(players));
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package monster.java.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.ConnectionMode;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.net.NetworkServer;
+import monster.java.server.net.NioTransport;
+import monster.java.server.net.VirtualThreads;
+
+/**
+ * Load test of the three ways of serving connections: a platform
+ * thread per player, a virtual thread per player, and the NIO
+ * transport.
+ *
+ * For each mode and connection count, a child JVM opens that many
+ * connections. Each one sends a line, the server waits until every
+ * player has handled it, then sends every player a line and waits
+ * for the child to read them all. Reported are the time to connect,
+ * the time in each direction, the server's platform threads and its
+ * heap after a GC. The clients live in their own process so each
+ * side needs only one file descriptor per connection.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.ConnectionBenchmark [count...]
+ */
+public class ConnectionBenchmark {
+
+	private static final int PORT = MonsterServer.PORT + 1;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("client")) {
+			client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+
+		int[] counts = {10, 1000, 10000};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				counts[i] = Integer.parseInt(args[i]);
+		}
+
+		// Says so if VIRTUAL is going to fall back
+		VirtualThreads.isSupported();
+
+		// Players print a line each as they connect
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		// Broadcasts from the players go nowhere
+		NetworkServer room = new NetworkServer();
+
+		for (ConnectionMode mode : ConnectionMode.values())
+			for (int n : counts)
+				out.println(run(mode, n, room));
+	}
+
+	private static String run(ConnectionMode mode, int n, NetworkServer room)
+			throws Exception {
+		MonsterServer.CONNECTIONS = mode;
+		NioTransport transport = null;
+		ServerSocket serverSocket = null;
+		if (mode == ConnectionMode.NIO) {
+			transport = new NioTransport(PORT);
+			transport.start();
+		} else {
+			serverSocket = new ServerSocket(PORT, n);
+		}
+
+		Process child = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"),
+				ConnectionBenchmark.class.getName(), "client", "" + PORT, "" + n)
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream()));
+		PrintWriter toChild = new PrintWriter(child.getOutputStream(), true);
+
+		// Accept everyone
+		long start = System.nanoTime();
+		ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (int i = 0; i < n; i++) {
+			if (transport != null)
+				players.add(new NetworkPlayer(transport.take(), i, room));
+			else
+				players.add(new NetworkPlayer(serverSocket.accept(), i, room));
+		}
+		fromChild.readLine();
+		long connected = System.nanoTime();
+
+		// Every client sends its time, wait for all of them
+		toChild.println("go");
+		for (NetworkPlayer player : players)
+			while (player.time == 0)
+				Thread.sleep(1);
+		long received = System.nanoTime();
+
+		// Send every client a line, wait for it to read them all
+		for (NetworkPlayer player : players)
+			player.send("begin");
+		fromChild.readLine();
+		long sent = System.nanoTime();
+
+		System.gc();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+		toChild.println("quit");
+		child.waitFor();
+		for (NetworkPlayer player : players)
+			player.close();
+		if (transport != null)
+			transport.close();
+		else
+			serverSocket.close();
+
+		return String.format("%-8s %6d connections: connect %8.1f ms, in %8.1f ms, out %8.1f ms, %5d threads, heap %6.1f MB",
+				mode, n, (connected - start) / 1e6, (received - connected) / 1e6,
+				(sent - received) / 1e6, threads, heap / 1048576.0);
+	}
+
+	/**
+	 * Child process: open the connections, then on "go" send a
+	 * line down each and read a line back from each
+	 */
+	private static void client(int port, int n) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		SocketChannel[] channels = new SocketChannel[n];
+		for (int i = 0; i < n; i++)
+			channels[i] = SocketChannel.open(new InetSocketAddress("localhost", port));
+		System.out.println("connected");
+
+		in.readLine();
+		ByteBuffer msg = ByteBuffer.wrap("time:1.5\n".getBytes());
+		for (SocketChannel channel : channels) {
+			msg.rewind();
+			while (msg.hasRemaining())
+				channel.write(msg);
+		}
+
+		ByteBuffer reply = ByteBuffer.allocate(64);
+		for (SocketChannel channel : channels) {
+			reply.clear();
+			while (reply.position() == 0 || reply.get(reply.position() - 1) != '\n')
+				if (channel.read(reply) < 0)
+					break;
+		}
+		System.out.println("done");
+
+		in.readLine();
+		for (SocketChannel channel : channels)
+			channel.close();
+	}
+}
@@ -0,0 +1,80 @@
+package monster.java.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times an operation for the benchmarks, which run as plain main
+ * programs. The operation is warmed up, then called in batches
+ * that double until the measured time is used up, so timing
+ * costs little next to even the quickest operation. Also counted
+ * are the bytes the thread allocated per call.
+ */
+final class Measure {
+
+	// ms to warm up and then to measure each operation for
+	static final int WARMUP = 1000;
+	static final int MEASURE = 2000;
+
+	// Results are summed here, so the calls can't be optimised away
+	static volatile long sink;
+
+	interface Op {
+		long run() throws Exception;
+	}
+
+	private Measure() {
+	}
+
+	/**
+	 * Time an operation and print its mean time and allocation
+	 * per call
+	 *
+	 * @param name
+	 * @param op
+	 * @return mean ns per call
+	 * @throws Exception
+	 */
+	static double report(String name, Op op) throws Exception {
+		loop(op, WARMUP);
+
+		long before = allocated();
+		long[] result = loop(op, MEASURE);
+		long after = allocated();
+
+		double mean = (double) result[1] / result[0];
+		double bytes = before < 0 ? Double.NaN : (double) (after - before) / result[0];
+		System.out.printf("  %-26s %12.1f ns/op %8.1f B/op%n", name, mean, bytes);
+		return mean;
+	}
+
+	/**
+	 * Call an operation in doubling batches for about the given time
+	 *
+	 * @return calls made then ns taken
+	 */
+	private static long[] loop(Op op, int ms) throws Exception {
+		long calls = 0;
+		long time = 0;
+		long sum = 0;
+		for (int batch = 1; time < ms * 1000000L; batch = Math.min(batch * 2, 1 << 20)) {
+			long start = System.nanoTime();
+			for (int i = 0; i < batch; i++)
+				sum += op.run();
+			time += System.nanoTime() - start;
+			calls += batch;
+		}
+		sink += sum;
+		return new long[]{calls, time};
+	}
+
+	/**
+	 * Bytes allocated so far by this thread, -1 where the JVM can't
+	 * tell
+	 */
+	private static long allocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getCurrentThreadAllocatedBytes();
+		return -1;
+	}
+}
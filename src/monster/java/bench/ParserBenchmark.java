@@ -0,0 +1,84 @@
+package monster.java.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import monster.java.server.net.FrameDecoder;
+import monster.java.server.net.LineParser;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.net.NetworkServer;
+
+/**
+ * Benchmarks for the server reading client messages, to show
+ * parsing makes no garbage: B/op should be 0 for every benchmark
+ * once warmed up.
+ *
+ * parse is the LineParser alone. The decode benchmarks feed the
+ * bytes as they come off the socket through the FrameDecoder and
+ * MessageProtocol. The player is dead so moves aren't broadcast,
+ * as building what is sent out is not part of reading.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.ParserBenchmark [coord...]
+ */
+public class ParserBenchmark {
+
+	// Coordinates, short and as long as a world allows
+	private static final int[] COORDS = {7, 2047};
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			for (int coord : COORDS)
+				run(coord);
+		} else {
+			for (String coord : args)
+				run(Integer.parseInt(coord));
+		}
+	}
+
+	private static void run(int coord) throws Exception {
+		System.out.println("coordinates " + coord);
+		NetworkPlayer player = new NetworkPlayer(0, new NetworkServer());
+		player.getPlayer().kill();
+		FrameDecoder decoder = new FrameDecoder();
+
+		LineParser line = new LineParser();
+		line.set("mv:" + coord + "," + coord + ";num:2;time:" + (coord / 100f)
+				+ ";proto:2;ready");
+
+		// Bytes as read from the socket
+		ByteBuffer moveLine = bytes("mv:" + coord + "," + coord + "\n");
+		ByteBuffer mixedLine = bytes("mv:" + coord + "," + coord + ";num:2;time:"
+				+ (coord / 100f) + "\r\n");
+		ByteBuffer moveFrame = ByteBuffer.wrap(monster.java.client.net.BinaryProtocol.move(coord, coord));
+
+		Measure.report("parse", () -> {
+			line.rewind();
+			long sum = 0;
+			int type;
+			while ((type = line.next()) != LineParser.END)
+				sum += type + line.getX() + line.getY() + line.getValue()
+						+ Float.floatToRawIntBits(line.getTime());
+			return sum;
+		});
+		Measure.report("decodeMove", () -> {
+			moveLine.rewind();
+			decoder.decode(moveLine, player);
+			return 0;
+		});
+		Measure.report("decodeMixed", () -> {
+			mixedLine.rewind();
+			decoder.decode(mixedLine, player);
+			return 0;
+		});
+		Measure.report("decodeMoveFrame", () -> {
+			moveFrame.rewind();
+			decoder.decode(moveFrame, player);
+			return 0;
+		});
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+}
@@ -0,0 +1,132 @@
+package monster.java.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import monster.java.client.MonsterGame;
+import monster.java.client.game.Game;
+import monster.java.client.net.NetworkClient;
+import monster.java.server.MonsterServer;
+import monster.java.server.net.BinaryProtocol;
+import monster.java.server.net.LineParser;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.net.NetworkServer;
+import monster.java.server.world.Monster;
+
+/**
+ * Benchmarks for building and parsing the text protocol and the
+ * binary frames on both ends. Nothing is connected, so what is
+ * measured is the encoding work, not the sockets. Coordinates come
+ * from the world, so the generated maze gives the longest messages.
+ * 
+ * The client's processLine is left out, it prints every line.
+ * 
+ * Run from the repository root:
+ *   java monster.java.bench.ProtocolBenchmark [map...]
+ */
+public class ProtocolBenchmark {
+	
+	// Worlds to run, bundled maps or generated, see Worlds.byName
+	private static final String[] MAPS = {"world.txt", "world_9x9Maze.txt", "world_ORIG.txt",
+			"maze2048"};
+	
+	public static void main(String[] args) throws Exception {
+		for (String map : args.length > 0 ? args : MAPS)
+			run(map);
+	}
+	
+	private static void run(String map) throws Exception {
+		System.out.println(map);
+		String[] world = Worlds.byName(map);
+		
+		// Far corner, the longest coordinates in the world
+		int[] pos = Worlds.nearestOpen(world, world.length - 1, world.length - 1);
+		int x = pos[0];
+		int y = pos[1];
+		
+		// No one is connected, broadcasts and sends go nowhere
+		NetworkPlayer player = new NetworkPlayer(0, new NetworkServer());
+		
+		ArrayList<Monster> monsters = new ArrayList<Monster>();
+		for (int i = 0; i < MonsterServer.NUM_MONSTERS; i++) {
+			Monster monster = new Monster(i, world.length);
+			monster.setPos(x, y);
+			monsters.add(monster);
+		}
+		
+		MonsterGame.instance = new MonsterGame();
+		MonsterGame.instance.client = new NetworkClient();
+		MonsterGame.instance.game = new Game();
+		for (int id = 1; id <= 4; id++)
+			MonsterGame.instance.game.addPlayer(id);
+		
+		// Lines as they arrive at the server and the client
+		LineParser serverLine = new LineParser();
+		serverLine.set("mv:" + x + "," + y);
+		String clientMove = "mv:1," + x + "," + y;
+		
+		StringBuilder sb = new StringBuilder("mon:");
+		for (int i = 0; i < monsters.size(); i++)
+			sb.append(i > 0 ? "," : "").append(x).append(',').append(y);
+		String clientMonsters = sb.toString();
+		
+		// Frame payloads, the type and length already read
+		int[] xy = new int[2 * monsters.size()];
+		for (int i = 0; i < monsters.size(); i++) {
+			xy[2 * i] = x;
+			xy[2 * i + 1] = y;
+		}
+		ByteBuffer serverFrame = payload(monster.java.client.net.BinaryProtocol.move(x, y));
+		ByteBuffer clientMoveFrame = payload(BinaryProtocol.move(1, x, y));
+		ByteBuffer clientMonstersFrame = payload(BinaryProtocol.monsters(xy, monsters.size()));
+		
+		Measure.report("serverSendMove", () -> {
+			monster.java.server.net.MessageProtocol.sendMove(player, x, y);
+			return 0;
+		});
+		Measure.report("serverSendMonsterMoves", () -> {
+			monster.java.server.net.MessageProtocol.sendMonsterMoves(player.getServer(), monsters);
+			return 0;
+		});
+		Measure.report("serverProcess", () -> {
+			serverLine.rewind();
+			monster.java.server.net.MessageProtocol.process(player, serverLine);
+			return 0;
+		});
+		Measure.report("serverProcessFrame", () -> {
+			serverFrame.rewind();
+			monster.java.server.net.MessageProtocol.processFrame(player,
+					BinaryProtocol.MOVE, serverFrame);
+			return 0;
+		});
+		Measure.report("clientSendMove", () -> {
+			monster.java.client.net.MessageProtocol.sendMove(x, y);
+			return 0;
+		});
+		Measure.report("clientProcessMove", () -> {
+			monster.java.client.net.MessageProtocol.processMove(clientMove);
+			return 0;
+		});
+		Measure.report("clientProcessMonsters", () -> {
+			monster.java.client.net.MessageProtocol.processMonsters(clientMonsters);
+			return 0;
+		});
+		Measure.report("clientProcessMoveFrame", () -> {
+			clientMoveFrame.rewind();
+			monster.java.client.net.MessageProtocol.processFrame(BinaryProtocol.MOVE,
+					clientMoveFrame);
+			return 0;
+		});
+		Measure.report("clientProcessMonstersFrame", () -> {
+			clientMonstersFrame.rewind();
+			monster.java.client.net.MessageProtocol.processFrame(BinaryProtocol.MONSTERS,
+					clientMonstersFrame);
+			return 0;
+		});
+	}
+	
+	// Skip the type and the one byte length
+	private static ByteBuffer payload(byte[] frame) {
+		return ByteBuffer.wrap(frame, 2, frame.length - 2).slice();
+	}
+}
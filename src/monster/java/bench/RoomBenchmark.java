@@ -0,0 +1,225 @@
+package monster.java.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.ConnectionMode;
+import monster.java.server.net.NetworkServer;
+import monster.java.server.net.NioTransport;
+import monster.java.server.net.RoomManager;
+
+/**
+ * Load test of many rooms in one server, for each way of serving
+ * connections. A child JVM fills every room with four text
+ * clients, then each client moves every MOVE_INTERVAL ms and times
+ * how long its move takes to come back in the room's broadcast.
+ * Reported are the server's threads, the rooms on the busiest and
+ * idlest event loop, and the round trip of the moves.
+ *
+ * There are no monsters, so nobody dies during the measurement.
+ * Their ticks are measured by WorldBenchmark.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.RoomBenchmark [rooms...]
+ */
+public class RoomBenchmark {
+
+	private static final int PORT = MonsterServer.PORT + 3;
+
+	// ms between each client's moves, and ms of moves timed
+	private static final int MOVE_INTERVAL = 50;
+	private static final int DURATION = 5000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("client")) {
+			client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+
+		int[] counts = {10, 50, 250};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				counts[i] = Integer.parseInt(args[i]);
+		}
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		MonsterServer.NUM_MONSTERS = 0;
+		MonsterServer.UDP = false;
+
+		for (ConnectionMode mode : ConnectionMode.values())
+			for (int rooms : counts)
+				out.println(run(mode, rooms));
+	}
+
+	private static String run(ConnectionMode mode, int rooms) throws Exception {
+		MonsterServer.CONNECTIONS = mode;
+		RoomManager manager = new RoomManager(PORT, 0);
+		Thread server = new Thread(manager::run, "RoomManager");
+		server.setDaemon(true);
+		server.start();
+
+		Process child = new ProcessBuilder(
+				new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"),
+				RoomBenchmark.class.getName(), "client", "" + PORT, "" + rooms)
+				.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		BufferedReader fromChild = new BufferedReader(new InputStreamReader(child.getInputStream()));
+		PrintWriter toChild = new PrintWriter(child.getOutputStream(), true);
+
+		// Every game has begun
+		fromChild.readLine();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		int most = 0, least = Integer.MAX_VALUE;
+		for (NioTransport loop : manager.getLoops()) {
+			int n = 0;
+			for (NetworkServer room : manager.getRooms())
+				if (room.getLoop() == loop)
+					n++;
+			most = Math.max(most, n);
+			least = Math.min(least, n);
+		}
+
+		toChild.println("go");
+		String latency = fromChild.readLine();
+		toChild.println("quit");
+		child.waitFor();
+		manager.close();
+
+		return String.format("%-8s %4d rooms: %5d threads, %3d to %3d rooms a loop, %s",
+				mode, rooms, threads, least, most, latency);
+	}
+
+	/**
+	 * Child process: connect four players to each room, the first
+	 * saying four are playing, and wait for every game to begin.
+	 * On "go" move every client and time the moves' round trips
+	 */
+	private static void client(int port, int rooms) throws Exception {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		int n = 4 * rooms;
+		SocketChannel[] channels = new SocketChannel[n];
+		String[] ids = new String[n];
+		StringBuilder[] lines = new StringBuilder[n];
+		for (int i = 0; i < n; i++) {
+			channels[i] = connect(port);
+			lines[i] = new StringBuilder();
+			String player = readUntil(channels[i], lines[i], "player:");
+			ids[i] = "mv:" + (Integer.parseInt(player.substring(7)) + 1) + ",";
+			write(channels[i], (player.equals("player:0") ? "num:4\n" : "") + "ready\n");
+		}
+		for (int i = 0; i < n; i++)
+			readUntil(channels[i], lines[i], "begin");
+		System.out.println("begun");
+
+		in.readLine();
+		Selector selector = Selector.open();
+		for (int i = 0; i < n; i++) {
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ, i);
+		}
+
+		// Each move goes to a new x, so its echo is known by it
+		long[] sent = new long[n];
+		int[] x = new int[n];
+		long[] times = new long[n * (DURATION / MOVE_INTERVAL + 1)];
+		int count = 0;
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		long end = System.nanoTime() + DURATION * 1000000L;
+		long next = System.nanoTime();
+		while (System.nanoTime() - end < 0) {
+			if (System.nanoTime() - next >= 0) {
+				for (int i = 0; i < n; i++) {
+					if (sent[i] != 0)
+						continue;
+					x[i]++;
+					sent[i] = System.nanoTime();
+					write(channels[i], "mv:" + x[i] + "," + (i % 100) + "\n");
+				}
+				next += MOVE_INTERVAL * 1000000L;
+			}
+
+			selector.select(1);
+			for (SelectionKey key : selector.selectedKeys()) {
+				int i = (Integer) key.attachment();
+				buf.clear();
+				if (channels[i].read(buf) <= 0)
+					continue;
+				lines[i].append(new String(buf.array(), 0, buf.position(), StandardCharsets.ISO_8859_1));
+				String own = ids[i] + x[i] + ",";
+				if (sent[i] != 0 && lines[i].indexOf(own) >= 0) {
+					if (count < times.length)
+						times[count++] = System.nanoTime() - sent[i];
+					sent[i] = 0;
+				}
+				int cut = lines[i].lastIndexOf("\n");
+				if (cut >= 0)
+					lines[i].delete(0, cut + 1);
+			}
+			selector.selectedKeys().clear();
+		}
+
+		Arrays.sort(times, 0, count);
+		System.out.printf("%6d moves, round trip median %6.2f ms, 99th %7.2f ms%n", count,
+				count > 0 ? times[count / 2] / 1e6 : 0, count > 0 ? times[count * 99 / 100] / 1e6 : 0);
+
+		in.readLine();
+		for (SocketChannel channel : channels)
+			channel.close();
+	}
+
+	private static SocketChannel connect(int port) throws Exception {
+		while (true) {
+			try {
+				return SocketChannel.open(new InetSocketAddress("localhost", port));
+			} catch (IOException e) {
+				// the server is still starting
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	private static void write(SocketChannel channel, String msg) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(msg.getBytes(StandardCharsets.ISO_8859_1));
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/**
+	 * Read lines until one starts with a prefix
+	 *
+	 * @return that line
+	 */
+	private static String readUntil(SocketChannel channel, StringBuilder line, String prefix)
+			throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1);
+		while (channel.read(buf) >= 0) {
+			char c = (char) buf.get(0);
+			buf.clear();
+			if (c != '\n') {
+				line.append(c);
+				continue;
+			}
+			String s = line.toString();
+			line.setLength(0);
+			if (s.startsWith(prefix))
+				return s;
+		}
+		throw new IOException("closed");
+	}
+}
@@ -0,0 +1,81 @@
+package monster.java.bench;
+
+import monster.java.server.net.EncodedWorld;
+import monster.java.server.world.Grid;
+import monster.java.server.world.Node;
+
+/**
+ * Times building the world graph at map load on generated mazes,
+ * comparing Node.init against the old linear scan lookup that
+ * made it O(N^4) in the side length. Also times encoding the map
+ * for clients, and its size against the world: text line.
+ * 
+ * Run from the repository root:
+ *   java monster.java.bench.StartupBenchmark
+ */
+public class StartupBenchmark {
+	
+	// Largest maze to run the linear scan build on
+	private static final int SCAN_MAX_SIZE = 128;
+
+	public static void main(String[] args) {
+		for (int size : new int[]{32, 64, 128, 256, 512}) {
+			String[] world = Worlds.maze(size, size);
+			System.out.println("maze " + size + "x" + size);
+			
+			// warm up
+			Node.init(world);
+			
+			long t = System.nanoTime();
+			Node[][] nodes = Node.init(world);
+			System.out.printf("  %-14s %10.2f ms%n", "Node.init",
+					(System.nanoTime() - t) / 1e6);
+			
+			t = System.nanoTime();
+			Grid grid = new Grid(world);
+			System.out.printf("  %-14s %10.2f ms, %d bytes%n", "Grid",
+					(System.nanoTime() - t) / 1e6, grid.memorySize());
+			
+			t = System.nanoTime();
+			new Grid(world, true);
+			System.out.printf("  %-14s %10.2f ms%n", "Grid (direct)",
+					(System.nanoTime() - t) / 1e6);
+			
+			t = System.nanoTime();
+			EncodedWorld encoded = new EncodedWorld(world);
+			System.out.printf("  %-14s %10.2f ms, %d bytes, %d as text%n", "EncodedWorld",
+					(System.nanoTime() - t) / 1e6, encoded.getFrame().length,
+					encoded.getText().length);
+			
+			if (size <= SCAN_MAX_SIZE) {
+				t = System.nanoTime();
+				scanAll(nodes);
+				System.out.printf("  %-14s %10.2f ms%n", "linear scan",
+						(System.nanoTime() - t) / 1e6);
+			}
+		}
+	}
+	
+	/**
+	 * Repeat the lookups the old Node.init made, four per cell,
+	 * each scanning every node for the coordinate
+	 */
+	private static int scanAll(Node[][] nodes) {
+		int found = 0;
+		for (int y = 0; y < nodes.length; y++)
+			for (int x = 0; x < nodes[y].length; x++)
+				for (int n = 0; n < 4; n++)
+					if (scan(nodes, x + (n == 1 ? 1 : n == 3 ? -1 : 0),
+							y + (n == 0 ? -1 : n == 2 ? 1 : 0)) != null)
+						found++;
+		return found;
+	}
+	
+	private static Node scan(Node[][] nodes, int x, int y) {
+		for (Node[] na : nodes)
+			for (Node n : na)
+				if (n.X() == x && n.Y() == y)
+					return n;
+		return null;
+	}
+}
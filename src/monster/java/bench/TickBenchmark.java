@@ -0,0 +1,142 @@
+package monster.java.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.world.BitboardField;
+import monster.java.server.world.CorridorGraph;
+import monster.java.server.world.DistanceField;
+import monster.java.server.world.DynamicDistanceField;
+import monster.java.server.world.Grid;
+import monster.java.server.world.LandmarkAStar;
+import monster.java.server.world.Landmarks;
+import monster.java.server.world.NextHopTable;
+import monster.java.server.world.Node;
+import monster.java.server.world.PathFinder;
+import monster.java.server.world.TreeCache;
+
+/**
+ * Compares the monster's per tick think time between the
+ * recursive Node.beginSearch, the BFS distance field, the
+ * repaired distance field, the bitboard BFS, bounded landmark A*,
+ * the junction graph, the cache of player cell trees and the
+ * precomputed next hop table.
+ * 
+ * Run from the repository root:
+ *   java monster.java.bench.TickBenchmark [ticks]
+ */
+public class TickBenchmark {
+	
+	// Largest generated maze to run the recursive search on
+	private static final int LEGACY_MAX_SIZE = 41;
+	
+	// A* cells expanded per tick
+	private static final int EXPANSION_BUDGET = 2000;
+	
+	// Bytes of cached player cell trees
+	private static final long TREE_CACHE_BUDGET = 64 * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		
+		for (String map : Worlds.MAPS)
+			run(map, Worlds.load(map), ticks);
+		
+		for (int size : new int[]{41, 101, 129})
+			run("maze " + size + "x" + size, Worlds.maze(size, size), ticks);
+		
+		run("open 129x129", Worlds.open(129, 129), ticks);
+	}
+	
+	private static void run(String name, String[] world, int ticks) {
+		System.out.println(name);
+		
+		if (world.length <= LEGACY_MAX_SIZE) {
+			Node[][] nodes = Node.init(world);
+			report("beginSearch", world, ticks, new PathFinder() {
+				private ArrayList<NetworkPlayer> players;
+				
+				public void update(ArrayList<NetworkPlayer> players) {
+					this.players = players;
+				}
+				
+				public int getDirection(int x, int y) {
+					return Node.getNode(nodes, x, y).beginSearch(players);
+				}
+			});
+		}
+		
+		Grid grid = new Grid(world);
+		report("DistanceField", world, ticks, new DistanceField(grid));
+		
+		DynamicDistanceField dynamic = new DynamicDistanceField(grid);
+		report("Dynamic", world, ticks, dynamic);
+		System.out.printf("  %-14s %8.1f cells repaired per tick of %d%n", "Dynamic",
+				(double) dynamic.getTotalRepaired() / dynamic.getRepairs(), grid.countOpen());
+		
+		report("BitboardField", world, ticks, new BitboardField(grid));
+		
+		long t = System.nanoTime();
+		Landmarks landmarks = new Landmarks(grid);
+		System.out.printf("  %-14s build %8.2f ms%n", "Landmarks",
+				(System.nanoTime() - t) / 1e6);
+		report("LandmarkAStar", world, ticks,
+				new LandmarkAStar(grid, landmarks, EXPANSION_BUDGET));
+		
+		t = System.nanoTime();
+		CorridorGraph graph = new CorridorGraph(grid);
+		System.out.printf("  %-14s build %8.2f ms, %d junctions of %d cells%n", "CorridorGraph",
+				(System.nanoTime() - t) / 1e6, graph.getJunctionCount(), grid.countOpen());
+		report("CorridorGraph", world, ticks, graph);
+		
+		TreeCache cache = new TreeCache(grid, TREE_CACHE_BUDGET);
+		report("TreeCache", world, ticks, cache);
+		System.out.printf("  %-14s %d hits, %d misses, %d evictions, %d of %d trees%n", "TreeCache",
+				cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.size(), cache.getCapacity());
+		
+		t = System.nanoTime();
+		NextHopTable table = new NextHopTable(grid);
+		System.out.printf("  %-14s build %8.2f ms, %d bytes%n", "NextHopTable",
+				(System.nanoTime() - t) / 1e6, NextHopTable.sizeOf(grid));
+		report("NextHopTable", world, ticks, table);
+	}
+	
+	/**
+	 * Time the direction query over a number of ticks, with the
+	 * players wandering and the monster chasing between ticks
+	 */
+	private static void report(String name, String[] world, int ticks, PathFinder finder) {
+		ArrayList<NetworkPlayer> players = Worlds.players(world, 4);
+		Random rand = new Random(1);
+		int[] start = Worlds.nearestOpen(world, world.length / 2, world.length / 2);
+		int mx = start[0];
+		int my = start[1];
+		
+		// warm up
+		for (int i = 0; i < ticks / 10; i++) {
+			finder.update(players);
+			finder.getDirection(mx, my);
+		}
+		
+		long total = 0;
+		long worst = 0;
+		for (int i = 0; i < ticks; i++) {
+			Worlds.wander(world, players, rand);
+			long t = System.nanoTime();
+			finder.update(players);
+			int d = finder.getDirection(mx, my);
+			long dt = System.nanoTime() - t;
+			total += dt;
+			worst = Math.max(worst, dt);
+			
+			if (d >= 0) {
+				mx += Grid.DX[d];
+				my += Grid.DY[d];
+			}
+		}
+		
+		System.out.printf("  %-14s mean %8.2f us, worst %8.2f us%n", name,
+				total / 1e3 / ticks, worst / 1e3);
+	}
+}
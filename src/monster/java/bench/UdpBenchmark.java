@@ -0,0 +1,113 @@
+package monster.java.bench;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import monster.java.client.MonsterGame;
+import monster.java.client.game.Game;
+import monster.java.client.net.NetworkClient;
+import monster.java.client.net.UdpChannel;
+import monster.java.server.MonsterServer;
+import monster.java.server.net.BinaryProtocol;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.net.NetworkServer;
+import monster.java.server.net.UdpTransport;
+
+/**
+ * Loss test of the UDP channel over loopback, with datagrams
+ * dropped on purpose at the server (MonsterServer.UDP_LOSS), each
+ * way.
+ *
+ * Each round the client sends a burst of moves and stops, and the
+ * server sends a burst of monster positions then keeps sending the
+ * last every broadcast tick, as the game does. Counted are the
+ * rounds where the last move sent is where the server has the
+ * player, and the last position where the client has the monster.
+ * Latest wins keeps late datagrams from undoing newer ones, and
+ * repeats of the last move make up for losing it.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.UdpBenchmark [loss...]
+ */
+public class UdpBenchmark {
+
+	private static final int PORT = MonsterServer.PORT + 2;
+
+	// Rounds per loss rate, and messages each way per round
+	private static final int ROUNDS = 50;
+	private static final int BURST = 20;
+
+	// ms between messages, and ticks to wait for a round to settle
+	private static final int SPACING = 2;
+	private static final int SETTLE = 15;
+
+	public static void main(String[] args) throws Exception {
+		double[] losses = {0, 0.1, 0.3};
+		if (args.length > 0) {
+			losses = new double[args.length];
+			for (int i = 0; i < args.length; i++)
+				losses[i] = Double.parseDouble(args[i]);
+		}
+
+		// The server's player moves, broadcasts go nowhere
+		NetworkPlayer player = new NetworkPlayer(0, new NetworkServer());
+		player.connected = true;
+
+		// The client's game, for the positions to land in
+		MonsterGame.instance = new MonsterGame();
+		MonsterGame.instance.client = new NetworkClient();
+		MonsterGame.instance.game = new Game();
+		MonsterGame.instance.game.addPlayer(1);
+
+		UdpTransport udp = new UdpTransport(PORT);
+		udp.start();
+
+		for (double loss : losses) {
+			MonsterServer.UDP_LOSS = loss;
+			UdpChannel channel = new UdpChannel(InetAddress.getLoopbackAddress(), PORT,
+					udp.register(player), new Object());
+			channel.start();
+			long start = System.nanoTime();
+			while (!channel.isReady())
+				Thread.sleep(1);
+			long hello = (System.nanoTime() - start) / 1000000;
+
+			System.out.println(run(loss, udp, channel, player, hello));
+			channel.close();
+		}
+		System.out.println(udp.getStats());
+		udp.close();
+	}
+
+	private static String run(double loss, UdpTransport udp, UdpChannel channel,
+			NetworkPlayer player, long hello) throws Exception {
+		Random random = new Random(1);
+		int seq = 0;
+		int movesRight = 0, positionsRight = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			int x = 0, y = 0;
+			for (int i = 0; i < BURST; i++) {
+				x = 1 + random.nextInt(1000);
+				y = 1 + random.nextInt(1000);
+				channel.send(monster.java.client.net.BinaryProtocol.move(x, y));
+				udp.send(player, BinaryProtocol.datagram(++seq,
+						BinaryProtocol.monsters(new int[]{x, y}, 1)));
+				Thread.sleep(SPACING);
+			}
+			for (int i = 0; i < SETTLE; i++) {
+				Thread.sleep(MonsterServer.BROADCAST_TICK);
+				udp.send(player, BinaryProtocol.datagram(++seq,
+						BinaryProtocol.monsters(new int[]{x, y}, 1)));
+			}
+
+			if (player.getPlayer().X() == x && player.getPlayer().Y() == y)
+				movesRight++;
+			if (MonsterGame.instance.game.getMonster(0).atPos(x, y))
+				positionsRight++;
+		}
+
+		return String.format("loss %3.0f%%: hello in %4d ms, last move right in %d/%d rounds, "
+				+ "last position right in %d/%d rounds", 100 * loss, hello,
+				movesRight, ROUNDS, positionsRight, ROUNDS);
+	}
+}
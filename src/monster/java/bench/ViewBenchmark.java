@@ -0,0 +1,110 @@
+package monster.java.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.net.Snapshots;
+import monster.java.server.world.Entity;
+import monster.java.server.world.Monster;
+
+/**
+ * Bytes sent per broadcast tick with and without a view radius,
+ * as the players sharing one large world grow. Every player and
+ * monster takes a random step each tick, and every player is sent
+ * what the Broadcaster would send it: a snapshot delta from the
+ * tick before, or the moves as text for players not taking
+ * snapshots. Also timed is the server's work for a tick.
+ *
+ * Nothing is connected, so what is measured is what goes in the
+ * players' queues, not the sockets.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.ViewBenchmark [players...]
+ */
+public class ViewBenchmark {
+
+	// Tiles across the world, and the view radius tried
+	private static final int SIZE = 512;
+	private static final int RADIUS = 16;
+
+	private static final int MONSTERS = 20;
+	private static final int TICKS = 500;
+
+	public static void main(String[] args) {
+		int[] counts = {10, 100, 1000};
+		if (args.length > 0) {
+			counts = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				counts[i] = Integer.parseInt(args[i]);
+		}
+
+		for (int players : counts) {
+			System.out.println(run(players, 0));
+			System.out.println(run(players, RADIUS));
+		}
+	}
+
+	private static String run(int count, int radius) {
+		MonsterServer.VIEW_RADIUS = radius;
+		Random random = new Random(1);
+		ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (int i = 0; i < count; i++) {
+			players.add(new NetworkPlayer(i));
+			players.get(i).getPlayer().setPos(random.nextInt(SIZE), random.nextInt(SIZE));
+		}
+		ArrayList<Monster> monsters = new ArrayList<Monster>();
+		for (int i = 0; i < MONSTERS; i++) {
+			monsters.add(new Monster(i, 100));
+			monsters.get(i).setPos(random.nextInt(SIZE), random.nextInt(SIZE));
+		}
+		Snapshots snapshots = new Snapshots();
+		snapshots.setMonsters(monsters);
+
+		long snapshotBytes = 0, textBytes = 0, time = 0;
+		for (int tick = 0; tick < TICKS; tick++) {
+			for (NetworkPlayer p : players)
+				step(p.getPlayer(), random);
+			for (Monster m : monsters)
+				step(m, random);
+
+			long start = System.nanoTime();
+			int seq = snapshots.capture(players);
+			for (int i = 0; i < count; i++) {
+				snapshotBytes += snapshots.delta(seq - 1, i).length;
+				byte[] moves = snapshots.moves(i, false, false);
+				if (moves != null)
+					textBytes += moves.length;
+			}
+			time += System.nanoTime() - start;
+		}
+
+		// Without a view radius text players all get the tick's
+		// moves as one shared batch
+		if (radius == 0)
+			textBytes = TICKS * (long) count * allMoves(players, monsters);
+
+		return String.format("%5d players, radius %2d: snapshots %9d B/tick, text %9d B/tick, "
+				+ "%8.1f us/tick", count, radius, snapshotBytes / TICKS, textBytes / TICKS,
+				time / 1e3 / TICKS);
+	}
+
+	private static void step(Entity entity, Random random) {
+		entity.setPos(Math.floorMod(entity.X() + random.nextInt(3) - 1, SIZE),
+				Math.floorMod(entity.Y() + random.nextInt(3) - 1, SIZE));
+	}
+
+	// Length of one tick's moves as text: a line per player, and
+	// one for the monsters
+	private static int allMoves(ArrayList<NetworkPlayer> players, ArrayList<Monster> monsters) {
+		int length = 0;
+		for (NetworkPlayer p : players)
+			length += ("mv:" + p.getID() + "," + p.getPlayer().X() + "," + p.getPlayer().Y()
+					+ ";\n").length();
+		StringBuilder mon = new StringBuilder("mon:");
+		for (Monster m : monsters)
+			mon.append(m.X()).append(',').append(m.Y()).append(',');
+		return length + mon.length() + 1;
+	}
+}
@@ -0,0 +1,79 @@
+package monster.java.bench;
+
+import java.util.ArrayList;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.NetworkPlayer;
+import monster.java.server.world.Monster;
+import monster.java.server.world.MonsterGroup;
+import monster.java.server.world.Node;
+
+/**
+ * Benchmarks for the server's world: building the Node graph, the
+ * recursive Node.beginSearch, and moving the monsters one tick
+ * with whichever path finder MonsterGroup picks for the world.
+ *
+ * beginSearch only runs up to a 41x41 maze, it does not finish in
+ * reasonable time on the larger ones.
+ *
+ * Run from the repository root:
+ *   java monster.java.bench.WorldBenchmark [map...]
+ */
+public class WorldBenchmark {
+
+	// Worlds to run, bundled maps or generated, see Worlds.byName
+	private static final String[] MAPS = {"world.txt", "world_9x9Maze.txt", "world_ORIG.txt",
+			"maze41", "maze512", "maze2048"};
+
+	// Largest world to run the recursive search on
+	private static final int LEGACY_MAX_SIZE = 41;
+
+	public static void main(String[] args) throws Exception {
+		for (String map : args.length > 0 ? args : MAPS)
+			run(map);
+	}
+
+	private static void run(String map) throws Exception {
+		System.out.println(map);
+		String[] world = Worlds.byName(map);
+		ArrayList<NetworkPlayer> players = Worlds.players(world, 4);
+
+		Measure.report("nodeInit", () -> Node.init(world).length);
+
+		if (world.length <= LEGACY_MAX_SIZE) {
+			Node[][] nodes = Node.init(world);
+			int[] start = Worlds.nearestOpen(world, world.length / 2, world.length / 2);
+			Node node = Node.getNode(nodes, start[0], start[1]);
+			Measure.report("beginSearch", () -> node.beginSearch(players));
+		}
+
+		MonsterGroup group = new MonsterGroup(world, MonsterServer.NUM_MONSTERS);
+		ArrayList<Monster> monsters = group.getMonsters();
+
+		// Where each monster spawned, put back before every tick so
+		// every tick searches the same distance
+		int[] spawn = new int[monsters.size() * 2];
+		for (int i = 0; i < monsters.size(); i++) {
+			spawn[2 * i] = monsters.get(i).X();
+			spawn[2 * i + 1] = monsters.get(i).Y();
+		}
+		Runnable respawn = () -> {
+			for (int i = 0; i < monsters.size(); i++)
+				monsters.get(i).setPos(spawn[2 * i], spawn[2 * i + 1]);
+		};
+
+		Measure.report("moveToPlayer", () -> {
+			respawn.run();
+			Monster monster = monsters.get(0);
+			group.getPathFinder(0).update(players);
+			monster.moveToPlayer(group.getPathFinder(0));
+			return monster.X();
+		});
+
+		Measure.report("moveToPlayers", () -> {
+			respawn.run();
+			group.moveToPlayers(players);
+			return monsters.get(0).X();
+		});
+	}
+}
@@ -0,0 +1,202 @@
+package monster.java.bench;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Scanner;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Worlds and players for the benchmarks: the bundled map files
+ * and randomly generated mazes of any size
+ */
+public class Worlds {
+
+	// Bundled maps, relative to the repository root
+	public static final String[] MAPS = {
+		"world.txt", "world_9x9Maze.txt", "world_ORIG.txt"
+	};
+
+	/**
+	 * Load a world file the same way NetworkServer does
+	 * 
+	 * @param path
+	 * @return world rows
+	 * @throws FileNotFoundException
+	 */
+	public static String[] load(String path) throws FileNotFoundException {
+		Scanner in = new Scanner(new File(path));
+		StringBuilder sb = new StringBuilder();
+		
+		while (in.hasNextLine()) {
+			sb.append(in.nextLine() + ",");
+		}
+		
+		in.close();
+		return sb.toString().split(",");
+	}
+	
+	/**
+	 * Get a world by name: a bundled map file, or "maze" or "open"
+	 * followed by a size for a generated one, e.g. "maze2048"
+	 * 
+	 * @param name
+	 * @return world rows
+	 * @throws FileNotFoundException
+	 */
+	public static String[] byName(String name) throws FileNotFoundException {
+		if (name.startsWith("maze"))
+			return maze(Integer.parseInt(name.substring(4)), 1);
+		if (name.startsWith("open"))
+			return open(Integer.parseInt(name.substring(4)), 1);
+		return load(name);
+	}
+	
+	/**
+	 * Generate a square maze, carved by a randomised depth first
+	 * search with some extra walls knocked out so there are loops
+	 * 
+	 * @param size
+	 * @param seed
+	 * @return world rows
+	 */
+	public static String[] maze(int size, long seed) {
+		Random rand = new Random(seed);
+		char[][] grid = new char[size][size];
+		for (char[] row : grid)
+			java.util.Arrays.fill(row, '#');
+		
+		int[] dx = {0, 2, 0, -2};
+		int[] dy = {-2, 0, 2, 0};
+		int[] stack = new int[size * size];
+		int top = 0;
+		
+		grid[1][1] = '_';
+		stack[top++] = 1 * size + 1;
+		
+		while (top > 0) {
+			int cell = stack[top - 1];
+			int x = cell % size;
+			int y = cell / size;
+			
+			// try the four directions from a random start
+			int start = rand.nextInt(4);
+			boolean moved = false;
+			for (int k = 0; k < 4 && !moved; k++) {
+				int n = (start + k) % 4;
+				int nx = x + dx[n];
+				int ny = y + dy[n];
+				if (nx > 0 && ny > 0 && nx < size - 1 && ny < size - 1
+						&& grid[ny][nx] == '#') {
+					grid[y + dy[n] / 2][x + dx[n] / 2] = '_';
+					grid[ny][nx] = '_';
+					stack[top++] = ny * size + nx;
+					moved = true;
+				}
+			}
+			if (!moved)
+				top--;
+		}
+		
+		// open up some loops
+		for (int i = 0; i < size * size / 20; i++) {
+			int x = 1 + rand.nextInt(size - 2);
+			int y = 1 + rand.nextInt(size - 2);
+			grid[y][x] = '_';
+		}
+		
+		String[] world = new String[size];
+		for (int y = 0; y < size; y++)
+			world[y] = new String(grid[y]);
+		return world;
+	}
+	
+	/**
+	 * Generate a square open world, a bordered field with about one
+	 * cell in five a wall
+	 * 
+	 * @param size
+	 * @param seed
+	 * @return world rows
+	 */
+	public static String[] open(int size, long seed) {
+		Random rand = new Random(seed);
+		String[] world = new String[size];
+		char[] row = new char[size];
+		
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				boolean edge = x == 0 || y == 0 || x == size - 1 || y == size - 1;
+				row[x] = edge || rand.nextInt(5) == 0 ? '#' : '_';
+			}
+			world[y] = new String(row);
+		}
+		return world;
+	}
+	
+	/**
+	 * Create unconnected players standing on open cells near
+	 * the corners of the world
+	 * 
+	 * @param world
+	 * @param n
+	 * @return players
+	 */
+	public static ArrayList<NetworkPlayer> players(String[] world, int n) {
+		ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		int size = world.length;
+		int[][] corners = {{0, 0}, {size - 1, 0}, {0, size - 1}, {size - 1, size - 1}};
+		
+		for (int i = 0; i < n; i++) {
+			NetworkPlayer player = new NetworkPlayer(i);
+			int[] c = corners[i % 4];
+			int[] pos = nearestOpen(world, c[0], c[1]);
+			player.getPlayer().setPos(pos[0], pos[1]);
+			players.add(player);
+		}
+		return players;
+	}
+	
+	/**
+	 * Move every player one random step onto an open cell
+	 * 
+	 * @param world
+	 * @param players
+	 * @param rand
+	 */
+	public static void wander(String[] world, ArrayList<NetworkPlayer> players, Random rand) {
+		int[] dx = {0, 1, 0, -1};
+		int[] dy = {-1, 0, 1, 0};
+		for (NetworkPlayer player : players) {
+			int n = rand.nextInt(4);
+			int x = player.getPlayer().X() + dx[n];
+			int y = player.getPlayer().Y() + dy[n];
+			if (isOpen(world, x, y))
+				player.getPlayer().setPos(x, y);
+		}
+	}
+	
+	/**
+	 * Find the open cell closest (by square rings) to (x, y)
+	 * 
+	 * @param world
+	 * @param x
+	 * @param y
+	 * @return {x, y}
+	 */
+	public static int[] nearestOpen(String[] world, int x, int y) {
+		for (int r = 0; r < world.length; r++)
+			for (int j = y - r; j <= y + r; j++)
+				for (int i = x - r; i <= x + r; i++)
+					if (isOpen(world, i, j))
+						return new int[]{i, j};
+		return new int[]{x, y};
+	}
+	
+	public static boolean isOpen(String[] world, int x, int y) {
+		return y >= 0 && y < world.length && x >= 0
+				&& x < world[y].length() && world[y].charAt(x) != '#';
+	}
+}
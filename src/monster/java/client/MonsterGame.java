@@ -32,6 +32,16 @@ public class MonsterGame {
 	
 	public static final int GAME_SIZE = TILE_SIZE * WORLD_SIZE;
 	
+	// Ask the server for the binary protocol
+	public static boolean BINARY_PROTOCOL = true;
+	
+	// Ask the server for a UDP channel for moves and positions
+	public static boolean UDP = false;
+	
+	// Directory maps are kept in between games, so each is only
+	// downloaded once. null to download every map every time
+	public static String MAP_CACHE = System.getProperty("user.home") + "/.monster/maps";
+	
 	private void run() {
 		
 		this.sc = new Scanner(System.in);
@@ -119,6 +119,36 @@ public class Game extends Thread {
 		return addPlayer(id);
 	}
 
+	/**
+	 * Try to get a monster from its index, else create it
+	 * and return it. Monster i has entity id -i, so the first
+	 * monster keeps id 0
+	 * @param i
+	 * @return monster entity
+	 */
+	public Entity getMonster(int i) {
+		for (Entity p : this.players)
+			if (p.getID() == -i)
+				return p;
+		
+		Entity monster = new Entity(this.world.size() / 2, this.world.size() / 2);
+		monster.setID(-i);
+		this.players.add(monster);
+		return monster;
+	}
+	
+	/**
+	 * Count the players (not monsters) still in the game
+	 * @return number of players
+	 */
+	public int numPlayers() {
+		int n = 0;
+		for (Entity p : this.players)
+			if (p.getID() > 0)
+				n++;
+		return n;
+	}
+
 	/**
 	 * Check if (x, y) is a wall, player or out of bounds
 	 * 
@@ -154,8 +184,8 @@ public class Game extends Thread {
 			e.printStackTrace();
 		}
 
-		// create the monster
-		getEntity(0);
+		// create the first monster
+		getMonster(0);
 
 		// create texture loading object to load in
 		// the sprite sheet dynamically.
@@ -177,7 +207,7 @@ public class Game extends Thread {
 				go.updateTime();
 			go.drawTime();
 			
-			if (players.size() == 1)
+			if (numPlayers() == 0)
 				go.drawWinners();
 			
 			// cycle through player array list and draw
@@ -26,6 +26,7 @@ import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import monster.java.client.MonsterGame;
+import monster.java.client.net.MessageProtocol;
 import monster.java.server.MonsterServer;
 import monster.java.server.net.NetworkPlayer;
 
@@ -81,7 +82,7 @@ public class MainMenu extends Application {
 	public static class GameMenu extends Parent {
 
 		public static String IPAdr = null;
-		public static String playerNumbers = null;
+		public static volatile String playerNumbers = null;
 
 		UIHandler uiHandler = MonsterGame.instance.uiHandler;
 
@@ -257,6 +258,8 @@ public class MainMenu extends Application {
 			        if ((numOfPlayers.getText() != null && !numOfPlayers.getText().isEmpty())) {
 			        	
 			        	playerNumbers = numOfPlayers.getText();
+			        	// the server may have asked already
+			        	MessageProtocol.sendCount();
 			        	
 			        	@SuppressWarnings("rawtypes")
 						Task task = new Task<Void>() {
@@ -0,0 +1,130 @@
+package monster.java.client.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary wire format, the client's side of the server's
+ * BinaryProtocol. The client asks for it with a "proto:2" line and
+ * sends frames once the server has answered with the version both
+ * speak. From version 2 positions come as snapshots.
+ *
+ * A frame is a type byte, the payload length as a varint, then the
+ * payload. Type bytes are all below ' ' and never '\n', so a frame
+ * can be told from a text line by its first byte.
+ *
+ * Maps come as WORLD frames whether the client speaks the binary
+ * protocol or not, after it has said it doesn't have the map the
+ * server named in a "map:" line (see MapCache).
+ *
+ * With a UDP channel (see UdpChannel) moves and acks go by
+ * datagram, each the token the server gave, a seq, then frames.
+ * The server's datagrams are a seq then frames.
+ */
+public class BinaryProtocol {
+	public static final int VERSION = 2;
+	public static final String HELLO = "proto:";
+
+	// Frame types
+	public static final byte MOVE = 1;
+	public static final byte MONSTERS = 2;
+	public static final byte KILL = 3;
+	public static final byte DISCONNECT = 4;
+	public static final byte BEGIN = 5;
+	public static final byte END = 6;
+	public static final byte READY = 7;
+	public static final byte TIME = 8;
+	public static final byte NUM = 9;
+	public static final byte SNAPSHOT = 11;
+	public static final byte ACK = 12;
+	public static final byte UDP_HELLO = 14;
+	public static final byte WORLD = 15;
+	public static final String UDP = "udp:";
+
+	// Largest datagram the server sends
+	public static final int MAX_DATAGRAM = 1200;
+
+	// Longest payload accepted from the server, and longest map
+	public static final int MAX_PAYLOAD = 65536;
+	public static final int MAX_WORLD = 16 * 1024 * 1024;
+
+	/**
+	 * Check if a byte starts a frame rather than a text line
+	 *
+	 * @param b first byte of a message
+	 * @return true for a frame type
+	 */
+	public static boolean isFrame(int b) {
+		return (b >= MOVE && b <= ACK && b != '\n') || b == WORLD;
+	}
+
+	// Every frame the client sends has a payload under 128 bytes,
+	// so the length is always one byte
+	private static ByteBuffer frame(byte type, int length) {
+		return ByteBuffer.allocate(2 + length).put(type).put((byte) length);
+	}
+
+	public static byte[] move(int x, int y) {
+		return frame(MOVE, 4).putShort((short) x).putShort((short) y).array();
+	}
+
+	public static byte[] time(float time) {
+		return frame(TIME, 4).putFloat(time).array();
+	}
+
+	public static byte[] num(int numPlayers) {
+		return frame(NUM, 1).put((byte) numPlayers).array();
+	}
+
+	public static byte[] ready() {
+		return frame(READY, 0).array();
+	}
+
+	public static byte[] udpHello() {
+		return frame(UDP_HELLO, 0).array();
+	}
+
+	public static byte[] ack(int seq) {
+		ByteBuffer buf = frame(ACK, varintSize(seq));
+		putVarint(buf, seq);
+		return buf.array();
+	}
+
+	public static int varintSize(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Put a varint, low 7 bits first, the top bit set on every byte
+	 * but the last
+	 *
+	 * @param buf
+	 * @param value
+	 */
+	public static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Read a varint
+	 *
+	 * @param buf
+	 * @return value
+	 */
+	public static int getVarint(ByteBuffer buf) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Bad varint");
+	}
+}
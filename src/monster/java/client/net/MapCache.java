@@ -0,0 +1,141 @@
+package monster.java.client.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import monster.java.client.MonsterGame;
+
+/**
+ * Maps kept between games, by the hash the server names them by,
+ * so each is only downloaded once.
+ *
+ * A map is kept as the server sent it, deflated runs of floor and
+ * walls (see the server's EncodedWorld), in a file named by its
+ * hash in MonsterGame.MAP_CACHE. It is checked against the hash
+ * whenever it is read, so a damaged file is downloaded again.
+ */
+public class MapCache {
+
+	/**
+	 * Get a kept map
+	 *
+	 * @param hash
+	 * @return rows, or null if the map is not kept or is damaged
+	 */
+	public static String[] load(String hash) {
+		if (MonsterGame.MAP_CACHE == null)
+			return null;
+		try {
+			File file = new File(MonsterGame.MAP_CACHE, hash);
+			if (!file.isFile())
+				return null;
+			return decode(Long.parseUnsignedLong(hash, 16), Files.readAllBytes(file.toPath()));
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decode a map sent by the server and keep it
+	 *
+	 * @param payload WORLD frame payload
+	 * @return rows
+	 * @throws IOException if it does not match its hash
+	 */
+	public static String[] store(ByteBuffer payload) throws IOException {
+		long hash = payload.getLong();
+		byte[] deflated = new byte[payload.remaining()];
+		payload.get(deflated);
+		String[] rows = decode(hash, deflated);
+
+		// Kept by renaming so no other client reads half a file
+		if (MonsterGame.MAP_CACHE != null) {
+			try {
+				File dir = new File(MonsterGame.MAP_CACHE);
+				dir.mkdirs();
+				File tmp = File.createTempFile("map", null, dir);
+				Files.write(tmp.toPath(), deflated);
+				Files.move(tmp.toPath(), new File(dir, toHex(hash)).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				// downloaded again next time
+			}
+		}
+		return rows;
+	}
+
+	public static String toHex(long hash) {
+		return String.format("%016x", hash);
+	}
+
+	/**
+	 * Inflate the runs, check them against the hash and lay them
+	 * out as rows of '_' and '#'
+	 *
+	 * @param hash
+	 * @param deflated
+	 * @return rows
+	 * @throws IOException if the map is damaged
+	 */
+	private static String[] decode(long hash, byte[] deflated) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(deflated);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Map cut short");
+				out.write(buf, 0, n);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Map damaged", e);
+		} finally {
+			inflater.end();
+		}
+
+		byte[] runs = out.toByteArray();
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(runs);
+			if (ByteBuffer.wrap(digest).getLong() != hash)
+				throw new IOException("Map does not match its hash");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+		// Rows and columns, then runs starting with floor
+		ByteBuffer in = ByteBuffer.wrap(runs);
+		int height = BinaryProtocol.getVarint(in);
+		int width = BinaryProtocol.getVarint(in);
+		char[][] tiles = new char[height][width];
+		char tile = '_';
+		int x = 0, y = 0;
+		while (in.hasRemaining()) {
+			int run = BinaryProtocol.getVarint(in);
+			for (; run > 0 && y < height; run--) {
+				tiles[y][x] = tile;
+				if (++x == width) {
+					x = 0;
+					y++;
+				}
+			}
+			tile = tile == '_' ? '#' : '_';
+		}
+		if (y != height)
+			throw new IOException("Map cut short");
+
+		String[] rows = new String[height];
+		for (int i = 0; i < height; i++)
+			rows[i] = new String(tiles[i]);
+		return rows;
+	}
+}
@@ -1,6 +1,8 @@
 package monster.java.client.net;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -13,13 +15,17 @@ public class MessageProtocol {
 	private static Pattern movePattern = Pattern
 			.compile("([a-z]*):(\\d*),(\\d*),(\\d*)");
 
+	// Whether the server is waiting for the number of players, as
+	// this client is the first in its room
+	private static boolean countWanted = false;
+	
 	public static void sendReady() {
-		MonsterGame.instance.client.send("ready");
+		MonsterGame.instance.client.send("ready", BinaryProtocol.ready());
 	}
 	
 	public static void sendMove(int x, int y) {
 		String msg = "mv:" + x + "," + y;
-		MonsterGame.instance.client.send(msg);
+		MonsterGame.instance.client.sendLatest(msg, BinaryProtocol.move(x, y));
 	}
 	
 	/**
@@ -28,8 +34,34 @@ public class MessageProtocol {
 	 * when it ticks up
 	 */
 	public static void sendTime() {
-		String msg = String.format("time:%.02f;", MonsterGame.instance.game.go.time);
-		MonsterGame.instance.client.send(msg);
+		// Rounded as the text is, so both show the same score
+		float time = Math.round(MonsterGame.instance.game.go.time * 100) / 100f;
+		String msg = String.format("time:%.02f;", time);
+		MonsterGame.instance.client.send(msg, BinaryProtocol.time(time));
+	}
+	
+	/**
+	 * Send the server the number of players once it has asked and
+	 * the player has said, whichever comes last, so neither waits
+	 * on the other
+	 */
+	public static synchronized void sendCount() {
+		if (!countWanted)
+			return;
+		int numPlayers;
+		try {
+			numPlayers = Integer.parseInt(MainMenu.GameMenu.playerNumbers);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		countWanted = false;
+		MonsterGame.instance.client.send("num:" + numPlayers,
+				BinaryProtocol.num(numPlayers));
+	}
+	
+	private static synchronized void askCount() {
+		countWanted = true;
+		sendCount();
 	}
 	
 	/**
@@ -47,23 +79,18 @@ public class MessageProtocol {
 			if (msg.startsWith("mv:")) {
 				processMove(msg);
 			
+			// all monster positions
+			} else if (msg.startsWith("mon:")) {
+				processMonsters(msg);
+			
 			// player id from server
 			} else if (msg.startsWith("player:")) {
 				int id = Integer.parseInt(msg.split(":")[1]);
 				MonsterGame.instance.game.addLocalPlayer(id + 1);
 				// if no other players, send the requested numPlayers to
 				// the server
-				if (id == 0) {
-					int numPlayers = 0;
-					while (numPlayers == 0) {
-						try {
-							numPlayers = Integer.parseInt(MainMenu.GameMenu.playerNumbers);
-						} catch (NumberFormatException e) {
-							numPlayers = 0;
-						}
-					}
-					MonsterGame.instance.client.send("num:" + numPlayers);
-				}
+				if (id == 0)
+					askCount();
 			
 			// start the game after all clients are connected
 			} else if (msg.equals("begin")) {
@@ -73,6 +100,10 @@ public class MessageProtocol {
 			} else if (msg.startsWith("world:")) {
 				processWorld(msg);
 			
+			// the map about to be played, by its hash
+			} else if (msg.startsWith("map:")) {
+				processMap(msg);
+			
 			// player death
 			} else if (msg.startsWith("kill:")) {
 				processDeath(msg);
@@ -81,10 +112,101 @@ public class MessageProtocol {
 			// game over
 			} else if (msg.startsWith("end:")) {
 				processEnd(msg);
+			
+			// the server agreed to a version of the binary protocol,
+			// snapshots come as frames if it is one with them
+			} else if (msg.startsWith(BinaryProtocol.HELLO)) {
+				MonsterGame.instance.client.setBinary(true);
+				if (MonsterGame.UDP)
+					MonsterGame.instance.client.send(BinaryProtocol.UDP);
+			
+			// the server's UDP port and our token for it
+			} else if (msg.startsWith(BinaryProtocol.UDP)) {
+				String[] fields = msg.substring(BinaryProtocol.UDP.length()).split(",");
+				MonsterGame.instance.client.openUdp(Integer.parseInt(fields[0]),
+						Integer.parseInt(fields[1]));
 			}
 		}
 	}
 	
+	/**
+	 * Process a binary frame from the server, the same messages
+	 * as processLine handles as text
+	 * 
+	 * @param type
+	 * @param payload
+	 * @throws IOException
+	 */
+	public static void processFrame(int type, ByteBuffer payload) throws IOException {
+		try {
+			switch (type) {
+			case BinaryProtocol.MOVE:
+				int player = payload.get() & 0xFF;
+				int x = payload.getShort() & 0xFFFF;
+				int y = payload.getShort() & 0xFFFF;
+				MonsterGame.instance.game.getEntity(player).setPos(x, y);
+				break;
+			case BinaryProtocol.MONSTERS:
+				for (int i = 0; payload.hasRemaining(); i++) {
+					int mx = payload.getShort() & 0xFFFF;
+					int my = payload.getShort() & 0xFFFF;
+					MonsterGame.instance.game.getMonster(i).setPos(mx, my);
+				}
+				break;
+			case BinaryProtocol.KILL:
+				MonsterGame.instance.game.killPlayer(payload.get() & 0xFF);
+				sendTime();
+				break;
+			case BinaryProtocol.BEGIN:
+				MonsterGame.instance.game.start();
+				break;
+			case BinaryProtocol.SNAPSHOT:
+				processSnapshot(payload);
+				break;
+			case BinaryProtocol.WORLD:
+				MonsterGame.instance.game.loadWorld(MapCache.store(payload));
+				break;
+			case BinaryProtocol.END:
+				// Same text as the end message, names are by id
+				StringBuilder sb = new StringBuilder();
+				while (payload.hasRemaining()) {
+					if (sb.length() > 0)
+						sb.append(',');
+					sb.append("Player ").append(payload.get() & 0xFF);
+					sb.append(':').append(payload.getFloat());
+				}
+				MonsterGame.instance.game.go.setWinData(sb.toString());
+				break;
+			default:
+				// disconnects are not shown, as with dc lines
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			System.out.println("Invalid frame of type " + type);
+			throw new IOException();
+		}
+	}
+	
+	/**
+	 * Move whatever a snapshot says has moved, then acknowledge it
+	 * so the next one is a delta against it
+	 * 
+	 * @param payload
+	 */
+	private static void processSnapshot(ByteBuffer payload) {
+		Snapshots snapshots = MonsterGame.instance.client.getSnapshots();
+		int seq = snapshots.apply(payload);
+		
+		for (int i = 0; i < snapshots.getChangedCount(); i++) {
+			int key = snapshots.getChangedKey(i);
+			Entity e = key % 2 == 0
+					? MonsterGame.instance.game.getEntity(key / 2)
+					: MonsterGame.instance.game.getMonster(key / 2);
+			e.setPos(snapshots.getX(key), snapshots.getY(key));
+		}
+		
+		MonsterGame.instance.client.sendLatest(BinaryProtocol.ack(seq));
+	}
+	
 	/**
 	 * Set winData in GameOverlay, which will be displayed in the
 	 * main render loop in Game
@@ -103,6 +225,23 @@ public class MessageProtocol {
 		MonsterGame.instance.game.killPlayer(player);
 	}
 	
+	/**
+	 * Load the map the server named if it is kept from an earlier
+	 * game, and tell the server whether it has to send it
+	 * 
+	 * @param mapMsg
+	 */
+	public static void processMap(String mapMsg) {
+		String hash = mapMsg.substring("map:".length());
+		String[] rows = MapCache.load(hash);
+		if (rows != null) {
+			MonsterGame.instance.game.loadWorld(rows);
+			MonsterGame.instance.client.send("map:" + hash);
+		} else {
+			MonsterGame.instance.client.send("map:");
+		}
+	}
+	
 	public static void processWorld(String worldMsg) {
 		
 		String[] worldStrings = worldMsg.replace("world:", "").split(",");
@@ -110,6 +249,36 @@ public class MessageProtocol {
 		
 	}
 	
+	/**
+	 * Process the positions of every monster
+	 * @param monMsg
+	 * @throws IOException 
+	 */
+	public static void processMonsters(String monMsg) throws IOException {
+		/* Message looks like
+		 * mon:x0,y0,x1,y1
+		 * where monster i is at the i-th x,y pair
+		 */
+		
+		String[] coords = monMsg.replace("mon:", "").split(",");
+		
+		if (coords.length % 2 != 0) {
+			System.out.println("Invalid mon message: " + monMsg);
+			throw new IOException();
+		}
+		
+		try {
+			for (int i = 0; i < coords.length / 2; i++) {
+				int x = Integer.parseInt(coords[2 * i]);
+				int y = Integer.parseInt(coords[2 * i + 1]);
+				MonsterGame.instance.game.getMonster(i).setPos(x, y);
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid mon message: " + monMsg);
+			throw new IOException();
+		}
+	}
+	
 	/**
 	 * Process moves of the players
 	 * @param moveMsg
@@ -1,22 +1,46 @@
 package monster.java.client.net;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import monster.java.client.MonsterGame;
 
 /**
  * Initializes and handles IO between game and server.
  * 
+ * Messages from the server are text lines or, once the binary
+ * protocol has been agreed, binary frames. Both are read here.
+ * With a UDP channel positions come, and moves and acks go, by
+ * datagram instead.
+ * 
  * @author Alex
  *
  */
 public class NetworkClient extends Thread {
 	
-	private PrintWriter out;
-	private BufferedReader in;
+	private OutputStream out;
+	private DataInputStream in;
 	private Socket clientSocket;
+	
+	// Whether the server has agreed to binary frames
+	private volatile boolean binary = false;
+	
+	// Positions from the server's snapshots, only touched with the
+	// input lock held
+	private Snapshots snapshots = new Snapshots();
+	
+	// Held while a message from the server is processed
+	private final Object input = new Object();
+	
+	// Datagrams for what a newer message supersedes, once the
+	// server has given us a token
+	private volatile UdpChannel udp;
 
 	public NetworkClient(String host, int port) {
 
@@ -25,10 +49,15 @@ public class NetworkClient extends Thread {
 			
 			System.out.println("Connected to server.");
 			
-			this.out = new PrintWriter(clientSocket.getOutputStream(), true);
+			this.out = new BufferedOutputStream(clientSocket.getOutputStream());
 			
-			this.in = new BufferedReader(new InputStreamReader(
+			this.in = new DataInputStream(new BufferedInputStream(
 					clientSocket.getInputStream()));
+			
+			// Ask for the binary protocol, a server that doesn't
+			// know it ignores the line and we stay on text
+			if (MonsterGame.BINARY_PROTOCOL)
+				send(BinaryProtocol.HELLO + BinaryProtocol.VERSION);
 
 		} catch (Exception e) {
 			// failed to connect
@@ -37,16 +66,48 @@ public class NetworkClient extends Thread {
 
 	}
 	
+	/**
+	 * Create a client with no connection behind it, anything
+	 * sent is dropped. For benchmarks
+	 */
+	public NetworkClient() {
+	}
+	
 	/**
 	 * Server input loop.
 	 * Receives messages from the server and passes them to the
 	 * MessageProtocol
 	 */
 	public void run() {
-		String fromServer;
+		StringBuilder line = new StringBuilder();
+		byte[] payload = new byte[64];
+		int b;
 		try {
-			while ((fromServer = in.readLine()) != null) {
-				MessageProtocol.processLine(fromServer);
+			while ((b = in.read()) >= 0) {
+				if (BinaryProtocol.isFrame(b)) {
+					int length = readLength(b == BinaryProtocol.WORLD
+							? BinaryProtocol.MAX_WORLD : BinaryProtocol.MAX_PAYLOAD);
+					if (payload.length < length)
+						payload = new byte[length];
+					in.readFully(payload, 0, length);
+					synchronized (input) {
+						MessageProtocol.processFrame(b, ByteBuffer.wrap(payload, 0, length));
+					}
+					continue;
+				}
+				
+				// A text line, up to the newline
+				line.setLength(0);
+				while (b >= 0 && b != '\n') {
+					line.append((char) b);
+					b = in.read();
+				}
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r')
+					line.setLength(end - 1);
+				synchronized (input) {
+					MessageProtocol.processLine(line.toString());
+				}
 			}
 			
 			this.clientSocket.close();
@@ -55,6 +116,9 @@ public class NetworkClient extends Thread {
 			//e.printStackTrace();
 		}
 		
+		if (this.udp != null)
+			this.udp.close();
+		
 	}
 	
 	/**
@@ -62,6 +126,119 @@ public class NetworkClient extends Thread {
 	 * @param msg
 	 */
 	public void send(String msg) {
-		this.out.println(msg);
+		send((msg + "\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+	
+	/**
+	 * Send a message as a binary frame if the server has agreed to
+	 * them, or as text if not
+	 * 
+	 * @param msg text line
+	 * @param frame the same message encoded by BinaryProtocol
+	 */
+	public void send(String msg, byte[] frame) {
+		if (this.binary)
+			send(frame);
+		else
+			send(msg);
+	}
+	
+	/**
+	 * Send a message a newer one of its kind supersedes, by
+	 * datagram if the UDP channel is up
+	 * 
+	 * @param msg text line
+	 * @param frame the same message encoded by BinaryProtocol
+	 */
+	public void sendLatest(String msg, byte[] frame) {
+		UdpChannel udp = this.udp;
+		if (udp != null && udp.isReady())
+			udp.send(frame);
+		else
+			send(msg, frame);
+	}
+	
+	/**
+	 * Send a frame a newer one supersedes, binary clients only
+	 * 
+	 * @param frame
+	 */
+	void sendLatest(byte[] frame) {
+		UdpChannel udp = this.udp;
+		if (udp != null && udp.isReady())
+			udp.send(frame);
+		else
+			send(frame);
+	}
+	
+	/**
+	 * Open the UDP channel the server offered
+	 * 
+	 * @param port
+	 * @param token
+	 */
+	public void openUdp(int port, int token) {
+		if (this.clientSocket == null || this.udp != null)
+			return;
+		try {
+			this.udp = new UdpChannel(this.clientSocket.getInetAddress(), port, token, input);
+			this.udp.start();
+		} catch (IOException e) {
+			// stay on the stream
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Send bytes as they are
+	 * 
+	 * @param msg
+	 */
+	synchronized void send(byte[] msg) {
+		if (this.out == null)
+			return;
+		try {
+			this.out.write(msg);
+			this.out.flush();
+		} catch (IOException e) {
+			// the input loop finds out the server is gone
+		}
+	}
+	
+	/**
+	 * Read a frame's payload length, 7 bits per byte, low first
+	 * 
+	 * @return length
+	 * @throws IOException
+	 */
+	private int readLength(int max) throws IOException {
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (length > max)
+					throw new IOException("Frame too long: " + length);
+				return length;
+			}
+		}
+		throw new IOException("Bad frame length");
+	}
+	
+	/**
+	 * Switch the messages sent to the server to binary frames
+	 * 
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	public boolean isBinary() {
+		return this.binary;
+	}
+	
+	public Snapshots getSnapshots() {
+		return this.snapshots;
 	}
 }
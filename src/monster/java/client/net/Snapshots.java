@@ -0,0 +1,103 @@
+package monster.java.client.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The last few snapshots of entity positions from the server.
+ *
+ * Each snapshot only holds what moved since a base snapshot the
+ * client acknowledged, so it is rebuilt on top of that base, not
+ * on whatever was shown last. The entities whose position differs
+ * from what is shown are then listed for the game to move.
+ *
+ * Entities are keyed as player id * 2 and monster index * 2 + 1.
+ */
+public class Snapshots {
+	private static final int HISTORY = 32;
+
+	// Positions by key, x then y, -1 where there is no entity
+	private int[][] states = new int[HISTORY][];
+	private int[] seqs = new int[HISTORY];
+	private int[] shown = new int[0];
+
+	// Keys moved by the last snapshot applied
+	private int[] changed = new int[16];
+	private int numChanged = 0;
+
+	/**
+	 * Rebuild a snapshot from its base and work out what moved
+	 *
+	 * @param payload SNAPSHOT frame payload
+	 * @return sequence number, to acknowledge
+	 * @throws IllegalArgumentException if the base is not held
+	 */
+	public int apply(ByteBuffer payload) {
+		int seq = BinaryProtocol.getVarint(payload);
+		int base = BinaryProtocol.getVarint(payload);
+
+		int[] state;
+		if (base == 0) {
+			state = new int[0];
+		} else if (seqs[base % HISTORY] == base) {
+			state = states[base % HISTORY].clone();
+		} else {
+			throw new IllegalArgumentException("Snapshot base " + base + " not held");
+		}
+
+		while (payload.hasRemaining()) {
+			int key = BinaryProtocol.getVarint(payload);
+			state = grow(state, key);
+			state[2 * key] = BinaryProtocol.getVarint(payload);
+			state[2 * key + 1] = BinaryProtocol.getVarint(payload);
+		}
+		states[seq % HISTORY] = state;
+		seqs[seq % HISTORY] = seq;
+
+		numChanged = 0;
+		shown = grow(shown, state.length / 2 - 1);
+		for (int key = 0; 2 * key < state.length; key++) {
+			if (state[2 * key] < 0)
+				continue;
+			if (state[2 * key] == shown[2 * key] && state[2 * key + 1] == shown[2 * key + 1])
+				continue;
+
+			shown[2 * key] = state[2 * key];
+			shown[2 * key + 1] = state[2 * key + 1];
+			if (numChanged == changed.length)
+				changed = Arrays.copyOf(changed, 2 * numChanged);
+			changed[numChanged++] = key;
+		}
+		return seq;
+	}
+
+	private static int[] grow(int[] state, int key) {
+		if (2 * key + 1 < state.length)
+			return state;
+		int old = state.length;
+		state = Arrays.copyOf(state, 2 * key + 2);
+		Arrays.fill(state, old, state.length, -1);
+		return state;
+	}
+
+	/**
+	 * Get the number of entities moved by the last snapshot
+	 *
+	 * @return count
+	 */
+	public int getChangedCount() {
+		return this.numChanged;
+	}
+
+	public int getChangedKey(int i) {
+		return this.changed[i];
+	}
+
+	public int getX(int key) {
+		return this.shown[2 * key];
+	}
+
+	public int getY(int key) {
+		return this.shown[2 * key + 1];
+	}
+}
@@ -0,0 +1,187 @@
+package monster.java.client.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagrams to and from the server, for moves, acks and positions,
+ * where a late message is no use once a newer one is out.
+ *
+ * The channel says hello with the server's token until the server
+ * says it back, only then is anything sent on it. Each datagram
+ * sent gets the next sequence number, and the server's are dropped
+ * unless newer than the last taken. As nothing newer may follow
+ * the last move, it is sent again a few times so one lost datagram
+ * doesn't leave the player somewhere else on the server.
+ */
+public class UdpChannel extends Thread {
+	// ms between hellos, and between repeats of the last move
+	private static final int RESEND_INTERVAL = 50;
+
+	// Hellos before giving up and staying on the stream
+	private static final int HELLO_TRIES = 40;
+
+	// Times the last move is sent again
+	private static final int MOVE_REPEATS = 3;
+
+	private DatagramSocket socket;
+	private int token;
+
+	// Taken with the input loop's lock, so datagrams and the
+	// stream don't change the game at the same time
+	private Object lock;
+
+	private volatile boolean ready = false;
+
+	// Last seq sent, and the last taken from the server
+	private int seq = 0;
+	private int received = 0;
+
+	// Last move sent and the repeats it has left
+	private byte[] lastMove;
+	private int repeats = 0;
+
+	/**
+	 * Open a socket to the server. Call start to say hello
+	 *
+	 * @param address server
+	 * @param port
+	 * @param token from the server's udp line
+	 * @param lock held while a datagram is processed
+	 * @throws IOException
+	 */
+	public UdpChannel(InetAddress address, int port, int token, Object lock)
+			throws IOException {
+		super("UdpChannel");
+		this.token = token;
+		this.lock = lock;
+		this.socket = new DatagramSocket();
+		this.socket.connect(address, port);
+		this.socket.setSoTimeout(RESEND_INTERVAL);
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Send a frame, once isReady
+	 *
+	 * @param frame
+	 */
+	public synchronized void send(byte[] frame) {
+		byte[] datagram = datagram(frame);
+		if (frame[0] == BinaryProtocol.MOVE) {
+			lastMove = datagram;
+			repeats = MOVE_REPEATS;
+		}
+		send(datagram, datagram.length);
+	}
+
+	private byte[] datagram(byte[] frame) {
+		seq++;
+		ByteBuffer buf = ByteBuffer.allocate(BinaryProtocol.varintSize(token)
+				+ BinaryProtocol.varintSize(seq) + frame.length);
+		BinaryProtocol.putVarint(buf, token);
+		BinaryProtocol.putVarint(buf, seq);
+		return buf.put(frame).array();
+	}
+
+	private void send(byte[] datagram, int length) {
+		try {
+			socket.send(new DatagramPacket(datagram, length));
+		} catch (IOException e) {
+			// the next move or repeat goes instead
+		}
+	}
+
+	/**
+	 * Say hello, then repeat the last move while it is new
+	 */
+	private synchronized void resend() {
+		if (!ready) {
+			byte[] hello = datagram(BinaryProtocol.udpHello());
+			send(hello, hello.length);
+		} else if (repeats > 0) {
+			repeats--;
+			send(lastMove, lastMove.length);
+		}
+	}
+
+	/**
+	 * Receive loop, waking every RESEND_INTERVAL to resend
+	 */
+	public void run() {
+		byte[] buf = new byte[BinaryProtocol.MAX_DATAGRAM];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		long next = 0;
+		int hellos = 0;
+		while (!socket.isClosed()) {
+			if (System.nanoTime() - next >= 0) {
+				if (!ready && hellos++ == HELLO_TRIES) {
+					System.out.println("No answer on UDP, staying on TCP");
+					close();
+					return;
+				}
+				resend();
+				next = System.nanoTime() + RESEND_INTERVAL * 1000000L;
+			}
+
+			try {
+				packet.setLength(buf.length);
+				socket.receive(packet);
+				receive(ByteBuffer.wrap(buf, 0, packet.getLength()));
+			} catch (SocketTimeoutException e) {
+				// time to resend
+			} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+				// closed, or a mangled datagram
+			}
+		}
+	}
+
+	/**
+	 * Handle a datagram from the server: seq, then frames
+	 *
+	 * @param buf
+	 * @throws IOException if a frame is not valid
+	 */
+	private void receive(ByteBuffer buf) throws IOException {
+		int s = BinaryProtocol.getVarint(buf);
+		boolean fresh = s > received;
+		if (fresh)
+			received = s;
+
+		while (buf.hasRemaining()) {
+			int type = buf.get();
+			int length = BinaryProtocol.getVarint(buf);
+			ByteBuffer payload = buf.slice();
+			payload.limit(length);
+			buf.position(buf.position() + length);
+
+			if (type == BinaryProtocol.UDP_HELLO) {
+				if (!ready)
+					System.out.println("Positions by UDP");
+				ready = true;
+			} else if (fresh) {
+				synchronized (lock) {
+					MessageProtocol.processFrame(type, payload);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if the server has answered the hello
+	 *
+	 * @return true once datagrams can be sent
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	public void close() {
+		socket.close();
+	}
+}
@@ -50,6 +50,11 @@ public class Entity {
 	public Sprite getEntityTexture(int player) {
 		TextureLoading entityTexture = MonsterGame.instance.game
 				.getTextureLoading();
+		
+		// Monsters after the first have negative ids
+		if (player < 0)
+			return entityTexture.getSprite("monster");
+		
 		switch (player) {
 
 		case 0:
@@ -1,30 +1,109 @@
 package monster.java.server;
 
-import monster.java.server.net.NetworkServer;
+import monster.java.server.net.ConnectionMode;
+import monster.java.server.net.OverflowPolicy;
+import monster.java.server.net.RoomManager;
 
 public class MonsterServer {
 	public static final int PORT = 3286;
-	public static NetworkServer server;
+	
+	// ms between monster moves and monsters in each new room,
+	// each room speeds its own game up from there. More than one
+	// monster is opt-in, clients from before proto: lines only
+	// see the first
 	public static int MON_TICK = 750;
+	public static int NUM_MONSTERS = 1;
 	public static final boolean DEBUG = false;
 	
+	// World each new room is played on, from the class path
+	public static String WORLD = "world.txt";
+	
+	// ms a joining client has to say whether it has the map before
+	// it is sent the world as text, as clients from before map
+	// hashes never say
+	public static int WORLD_WAIT = 250;
+	
+	// Max bytes for the monster's precomputed route table, built
+	// once per map, larger worlds search every tick instead. 0
+	// disables the table, and tables over 2 GB are never built
+	public static long ROUTE_TABLE_BUDGET = 16 * 1024 * 1024;
+	
+	// Max A* cells expanded per tick, split between the monsters,
+	// on worlds too big for the route table. 0 shares a repaired
+	// distance field between the monsters instead, with no cap
+	public static int EXPANSION_BUDGET = 0;
+	
+	// Max bytes of cached BFS trees, one per recent player cell,
+	// on worlds too big for the route table. 0 disables the cache
+	public static long TREE_CACHE_BUDGET = 0;
+	
+	// Give each monster its own bitboard BFS on worlds too big
+	// for the route table, quickest on large open worlds
+	public static boolean BITBOARD_SEARCH = false;
+	
+	// How connections are served: one non-blocking I/O thread,
+	// or a blocking platform or virtual thread per player
+	public static ConnectionMode CONNECTIONS = ConnectionMode.NIO;
+	
+	// Event loops the rooms are spread over, 0 for one per core
+	public static int EVENT_LOOPS = 0;
+	
+	// Let clients that ask for it switch to the binary protocol
+	public static boolean BINARY_PROTOCOL = true;
+	
+	// Max ms a broadcast waits to be batched with others into one
+	// write per player. 0 sends every message straight away
+	public static int BROADCAST_TICK = 20;
+	
+	// Send clients that can take them one snapshot per broadcast
+	// tick of the positions that changed, instead of every move
+	public static boolean SNAPSHOTS = true;
+	
+	// Tiles around a player within which it is sent every move,
+	// 0 to send every move to everyone
+	public static int VIEW_RADIUS = 0;
+	
+	// Snapshots between sending players what is outside that
+	public static int VIEW_REFRESH = 25;
+	
+	// Offer clients a UDP channel for positions and moves, on the
+	// same port number as the stream
+	public static boolean UDP = true;
+	
+	// Fraction of datagrams dropped on purpose each way, to try
+	// the UDP channel on a lossy link over loopback
+	public static double UDP_LOSS = 0;
+	
+	// Bytes a client may have waiting to be written before the
+	// overflow policy is applied to it
+	public static int OUTBOUND_LIMIT = 64 * 1024;
+	
+	// What is done to a client that falls that far behind
+	public static OverflowPolicy OVERFLOW = OverflowPolicy.COALESCE;
+	
+	// Moves a second a client's moves are let through at, and how
+	// many it can send at once. The rest wait, merged into the
+	// latest. 0 for no limit
+	public static int MOVE_RATE = 30;
+	public static int MOVE_BURST = 10;
+	
+	// Keep the monster's world grid off-heap
+	public static boolean DIRECT_WORLD = false;
+	
 	/**
-	 * Main driver, runs a server in a loop (for when server is ran stand alone)
+	 * Main driver, hosts games in rooms for as long as it runs
+	 * (for when server is ran stand alone)
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		while (true) {
-			runServer();
-		}
+		new RoomManager(PORT, 0).run();
 	}
 	
 	/**
-	 * Run a single instance of the server
+	 * Host a single game, returns once it is over
 	 */
 	public static void runServer() {
-		server = new NetworkServer(PORT);
-		server.run();
-		server.close();
+		new RoomManager(PORT, 1).run();
 	}
 
 }
@@ -0,0 +1,127 @@
+package monster.java.server.net;
+
+import java.util.Arrays;
+
+/**
+ * Finds the entities within a view radius of a point, by bucketing
+ * them in a grid of cells as wide as the radius. Anything within
+ * the radius is in the point's cell or one of the eight around
+ * it, so only those are looked at, however big the world.
+ *
+ * Entities are numbered players first, then monsters, and each
+ * cell's are a list linked through arrays, so indexing a tick
+ * allocates nothing once the arrays are big enough.
+ *
+ * The grid covers the positions indexed, so it is only as big as
+ * the world because moves off the map are rejected as they come in.
+ */
+public class AreaOfInterest {
+	private int radius;
+
+	// First entity of each cell, row by row, -1 if empty, and the
+	// next entity in the same cell as each
+	private int[] head = new int[0];
+	private int[] next = new int[0];
+	private int cols = 0, rows = 0;
+
+	// Positions indexed, x and y per entity
+	private int[] playerXY = new int[0], monsterXY = new int[0];
+
+	/**
+	 * @param radius tiles either way, at least 1
+	 */
+	public AreaOfInterest(int radius) {
+		this.radius = Math.max(1, radius);
+	}
+
+	/**
+	 * Bucket a tick's positions. The arrays are kept, not copied
+	 *
+	 * @param playerXY x and y per player
+	 * @param monsterXY x and y per monster
+	 */
+	public void index(int[] playerXY, int[] monsterXY) {
+		this.playerXY = playerXY;
+		this.monsterXY = monsterXY;
+		int count = size();
+
+		int maxX = 0, maxY = 0;
+		for (int e = 0; e < count; e++) {
+			maxX = Math.max(maxX, x(e));
+			maxY = Math.max(maxY, y(e));
+		}
+		cols = maxX / radius + 1;
+		rows = maxY / radius + 1;
+		if (head.length < cols * rows)
+			head = new int[cols * rows];
+		Arrays.fill(head, 0, cols * rows, -1);
+		if (next.length < count)
+			next = new int[count];
+
+		for (int e = 0; e < count; e++) {
+			int cell = cellY(y(e)) * cols + cellX(x(e));
+			next[e] = head[cell];
+			head[cell] = e;
+		}
+	}
+
+	/**
+	 * Find the entities within the radius of a point
+	 *
+	 * @param x
+	 * @param y
+	 * @param out filled with entity numbers, at least size() long
+	 * @return number found
+	 */
+	public int near(int x, int y, int[] out) {
+		int found = 0;
+		int cx = cellX(x), cy = cellY(y);
+		for (int row = Math.max(0, cy - 1); row <= Math.min(rows - 1, cy + 1); row++) {
+			for (int col = Math.max(0, cx - 1); col <= Math.min(cols - 1, cx + 1); col++) {
+				for (int e = head[row * cols + col]; e >= 0; e = next[e]) {
+					if (isNear(x, y, x(e), y(e)))
+						out[found++] = e;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Check if two points are within the radius of each other,
+	 * either way along both axes
+	 *
+	 * @return true if near
+	 */
+	public boolean isNear(int x0, int y0, int x1, int y1) {
+		return Math.abs(x0 - x1) <= radius && Math.abs(y0 - y1) <= radius;
+	}
+
+	/**
+	 * Get the number of entities indexed
+	 *
+	 * @return players and monsters
+	 */
+	public int size() {
+		return (playerXY.length + monsterXY.length) / 2;
+	}
+
+	private int x(int e) {
+		int p = playerXY.length / 2;
+		return e < p ? playerXY[2 * e] : monsterXY[2 * (e - p)];
+	}
+
+	private int y(int e) {
+		int p = playerXY.length / 2;
+		return e < p ? playerXY[2 * e + 1] : monsterXY[2 * (e - p) + 1];
+	}
+
+	// Points off the world's edge go in the edge cells
+	private int cellX(int x) {
+		return Math.min(cols - 1, Math.max(0, x) / radius);
+	}
+
+	private int cellY(int y) {
+		return Math.min(rows - 1, Math.max(0, y) / radius);
+	}
+}
@@ -0,0 +1,207 @@
+package monster.java.server.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The binary wire format, used instead of text once a client has
+ * asked for it with a "proto:N" line and the server has answered
+ * with the version both speak. Clients that never ask keep getting
+ * text. Version 2 adds snapshots, sent instead of each move.
+ *
+ * A frame is a type byte, the payload length as a varint, then the
+ * payload. Type bytes are all below ' ' and are never '\n' or '\r',
+ * so a reader can tell a frame from a text line by its first byte,
+ * and both can arrive on the same stream.
+ *
+ * Coordinates are unsigned shorts and player ids single bytes, all
+ * big endian:
+ *   MOVE        server: id, x, y    client: x, y
+ *   MONSTERS    x, y for each monster in order
+ *   KILL        id
+ *   DISCONNECT  id
+ *   BEGIN       nothing
+ *   END         id, time (float) for each player in rank order
+ *   READY       nothing
+ *   TIME        time (float)
+ *   NUM         number of players
+ *   SNAPSHOT    seq, base seq, then key, x, y for each entity that
+ *               moved since the base, all varints (see Snapshots)
+ *   ACK         seq of the last snapshot applied, varint
+ *   WORLD       hash (long), then the map deflated (see
+ *               EncodedWorld)
+ *
+ * Whatever the protocol, a joining client is first sent a
+ * "map:hash" line. It answers "map:hash" if it kept that map from
+ * an earlier game, or "map:" if not and is sent a WORLD frame,
+ * before its "player:" line. A client that doesn't answer gets
+ * the "world:" text line.
+ *
+ * A binary client can also ask for a UDP channel with a "udp:" line.
+ * The server answers "udp:port,token", the client says UDP_HELLO
+ * from its socket until the server says it back, and from then on
+ * positions, moves and acks go by datagram. Each datagram is a
+ * varint seq then frames, and from a client the token comes first.
+ * A datagram older than the last one taken is dropped, the next
+ * supersedes any that are lost.
+ */
+public class BinaryProtocol {
+	// Latest version the server speaks, and the first with
+	// snapshots
+	public static final int VERSION = 2;
+	public static final int SNAPSHOT_VERSION = 2;
+	public static final String HELLO = "proto:";
+
+	// Frame types
+	public static final byte MOVE = 1;
+	public static final byte MONSTERS = 2;
+	public static final byte KILL = 3;
+	public static final byte DISCONNECT = 4;
+	public static final byte BEGIN = 5;
+	public static final byte END = 6;
+	public static final byte READY = 7;
+	public static final byte TIME = 8;
+	public static final byte NUM = 9;
+	public static final byte SNAPSHOT = 11;
+	public static final byte ACK = 12;
+
+	// Datagram only, 13 would be '\r'
+	public static final byte UDP_HELLO = 14;
+
+	// Server to client only, whether binary or not
+	public static final byte WORLD = 15;
+	public static final String UDP = "udp:";
+
+	// Largest datagram sent, anything bigger goes on the stream
+	public static final int MAX_DATAGRAM = 1200;
+
+	// Longest payload accepted, anything longer is a bad client
+	public static final int MAX_PAYLOAD = 4096;
+
+	/**
+	 * Check if a byte starts a frame rather than a text line
+	 *
+	 * @param b first byte of a message
+	 * @return true for a frame type
+	 */
+	public static boolean isFrame(int b) {
+		return b >= MOVE && b <= ACK && b != '\n';
+	}
+
+	/**
+	 * Start a frame of the given type and payload length
+	 *
+	 * @param type
+	 * @param length of the payload
+	 * @return buffer the payload is to be put in
+	 */
+	private static ByteBuffer frame(byte type, int length) {
+		int header = 1 + varintSize(length);
+		ByteBuffer buf = ByteBuffer.allocate(header + length);
+		buf.put(type);
+		putVarint(buf, length);
+		return buf;
+	}
+
+	public static byte[] move(int id, int x, int y) {
+		return frame(MOVE, 5).put((byte) id).putShort((short) x).putShort((short) y).array();
+	}
+
+	/**
+	 * @param xy x and y of each monster, in order
+	 * @param count number of monsters
+	 * @return frame
+	 */
+	public static byte[] monsters(int[] xy, int count) {
+		ByteBuffer buf = frame(MONSTERS, 4 * count);
+		for (int i = 0; i < 2 * count; i++)
+			buf.putShort((short) xy[i]);
+		return buf.array();
+	}
+
+	public static byte[] kill(int id) {
+		return frame(KILL, 1).put((byte) id).array();
+	}
+
+	public static byte[] disconnect(int id) {
+		return frame(DISCONNECT, 1).put((byte) id).array();
+	}
+
+	public static byte[] begin() {
+		return frame(BEGIN, 0).array();
+	}
+
+	public static byte[] udpHello() {
+		return frame(UDP_HELLO, 0).array();
+	}
+
+	/**
+	 * Put a sequence number in front of frames to make a datagram
+	 *
+	 * @param seq
+	 * @param frames
+	 * @return datagram
+	 */
+	public static byte[] datagram(int seq, byte[] frames) {
+		ByteBuffer buf = ByteBuffer.allocate(varintSize(seq) + frames.length);
+		putVarint(buf, seq);
+		return buf.put(frames).array();
+	}
+
+	/**
+	 * @param ids player ids in rank order
+	 * @param times time of each
+	 * @return frame
+	 */
+	public static byte[] end(int[] ids, float[] times) {
+		ByteBuffer buf = frame(END, 5 * ids.length);
+		for (int i = 0; i < ids.length; i++)
+			buf.put((byte) ids[i]).putFloat(times[i]);
+		return buf.array();
+	}
+
+	/**
+	 * Get the number of bytes a varint takes, 7 bits per byte
+	 *
+	 * @param value
+	 * @return bytes
+	 */
+	public static int varintSize(int value) {
+		int n = 1;
+		while ((value >>>= 7) != 0)
+			n++;
+		return n;
+	}
+
+	/**
+	 * Put a varint, low 7 bits first, the top bit set on every byte
+	 * but the last
+	 *
+	 * @param buf
+	 * @param value
+	 */
+	public static void putVarint(ByteBuffer buf, int value) {
+		while ((value & ~0x7F) != 0) {
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Read a varint
+	 *
+	 * @param buf
+	 * @return value
+	 * @throws IllegalArgumentException if it runs on too long
+	 */
+	public static int getVarint(ByteBuffer buf) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Bad varint");
+	}
+}
@@ -0,0 +1,345 @@
+package monster.java.server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.world.Monster;
+
+/**
+ * Gathers the messages broadcast during a tick and sends them to
+ * every player in one write each.
+ *
+ * Each message is encoded once, as a text line and as a binary
+ * frame, into shared batches, moves apart from the rest. A flush
+ * hands every player the batches for the protocol it uses, the
+ * same arrays for all of them, so the cost per player is two
+ * writes at most instead of one per message.
+ *
+ * Clients from before proto: lines get their own text batch of
+ * moves, with the first monster as a move of player 0 in place of
+ * the mon: line they don't know.
+ *
+ * Players taking snapshots get the batch without the moves, and
+ * instead one snapshot of what moved since the last they
+ * acknowledged.
+ *
+ * Players are only ever queued to, never written to directly, so
+ * a slow client holds nobody up. Moves go in the queue marked with
+ * what they are for, ahead of the other messages of the batch, so
+ * a client still holding more than the limit of earlier batches
+ * can be dealt with by the overflow policy: its queued moves that
+ * later ones make stale dropped, all of them dropped and the new
+ * ones replaced by every current position, or the client
+ * disconnected. Past EVICT_FACTOR times the limit it is
+ * disconnected whatever the policy.
+ *
+ * With a view radius (MonsterServer.VIEW_RADIUS) players are only
+ * sent the moves near them, and the rest now and then, as picked
+ * by Snapshots, instead of the shared batch of moves.
+ *
+ * Players with a UDP channel get their moves as one datagram per
+ * flush instead, numbered by the flush: their snapshot, or every
+ * position if they don't take snapshots, so each supersedes the
+ * last and a lost one needs no resending.
+ *
+ * The first message of a batch schedules a flush on the room's
+ * event loop the flush interval later, so messages close together
+ * go out together. The game loop also flushes at the end of its
+ * tick.
+ */
+public class Broadcaster {
+	private ArrayList<NetworkPlayer> players;
+
+	// Longest a message waits before it is sent, in ms
+	private int interval;
+
+	// Queued bytes, as a multiple of the limit, at which a client
+	// is disconnected
+	private static final int EVICT_FACTOR = 4;
+
+	// Moves and other messages since the last flush, encoded both
+	// ways
+	private ByteArrayOutputStream textMoves = new ByteArrayOutputStream();
+	private ByteArrayOutputStream frameMoves = new ByteArrayOutputStream();
+	private ByteArrayOutputStream legacyMoves = new ByteArrayOutputStream();
+	private ByteArrayOutputStream textEvents = new ByteArrayOutputStream();
+	private ByteArrayOutputStream frameEvents = new ByteArrayOutputStream();
+
+	// What has moved since the last flush, as OutboundQueue marks
+	// moves, 0 if nothing
+	private long moved = 0;
+
+	private Snapshots snapshots;
+	private UdpTransport udp;
+	private ArrayList<Monster> monsters = new ArrayList<Monster>();
+
+	// Loop flushes are scheduled on, null when the caller flushes
+	private NioTransport loop;
+	private boolean scheduled = false;
+	private boolean running = true;
+
+	// Batches and messages sent, for tuning the interval
+	private long flushes = 0, messages = 0;
+
+	/**
+	 * @param players list to send to, locked while sending
+	 * @param interval ms to gather messages for
+	 * @param snapshots positions to send deltas of, or null for
+	 *            no snapshots
+	 * @param loop to run the flushes on, or null to leave flushing
+	 *            to whoever broadcasts
+	 */
+	public Broadcaster(ArrayList<NetworkPlayer> players, int interval,
+			Snapshots snapshots, NioTransport loop) {
+		this.players = players;
+		this.interval = interval;
+		this.snapshots = snapshots;
+		this.loop = loop;
+	}
+
+	/**
+	 * Add a message to the batch
+	 *
+	 * @param msg text line
+	 * @param frame the same message encoded by BinaryProtocol, or
+	 *            null to send the text line to everyone
+	 */
+	public synchronized void add(String msg, byte[] frame) {
+		add(msg, frame, 0);
+	}
+
+	/**
+	 * Add a move to the batch, left out for players taking
+	 * snapshots
+	 *
+	 * @param msg text line
+	 * @param legacy text line for clients from before proto: lines,
+	 *            may be empty
+	 * @param frame the same message encoded by BinaryProtocol
+	 * @param entities what the move is for, as OutboundQueue marks
+	 *            moves
+	 */
+	public synchronized void addPosition(String msg, String legacy, byte[] frame,
+			long entities) {
+		add(msg, frame, entities);
+		if (!legacy.isEmpty())
+			legacyMoves.writeBytes((legacy + "\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void add(String msg, byte[] frame, long entities) {
+		boolean position = entities != 0;
+		byte[] line = (msg + "\n").getBytes(StandardCharsets.ISO_8859_1);
+		if (frame == null)
+			frame = line;
+		(position ? textMoves : textEvents).write(line, 0, line.length);
+		(position ? frameMoves : frameEvents).write(frame, 0, frame.length);
+		moved |= entities;
+		messages++;
+		
+		if (!scheduled && isBatching()) {
+			scheduled = true;
+			loop.schedule(this::flush, interval);
+		}
+	}
+	
+	/**
+	 * Check if broadcasts are held for a scheduled flush
+	 * 
+	 * @return false if the caller has to flush them
+	 */
+	public synchronized boolean isBatching() {
+		return running && loop != null && interval > 0;
+	}
+
+	/**
+	 * Set the monsters whose positions are resent to a client that
+	 * had moves dropped
+	 *
+	 * @param monsters
+	 */
+	public synchronized void setMonsters(ArrayList<Monster> monsters) {
+		this.monsters = monsters;
+	}
+
+	/**
+	 * Set the channel to send positions on to players that have
+	 * said hello on it
+	 *
+	 * @param udp
+	 */
+	public synchronized void setUdp(UdpTransport udp) {
+		this.udp = udp;
+	}
+
+	/**
+	 * Send everything gathered so far to every player. Flushes
+	 * run one at a time so batches can't overtake each other
+	 */
+	public void flush() {
+		synchronized (players) {
+			byte[] textMoveBatch, frameMoveBatch, legacyMoveBatch, textEventBatch,
+					frameEventBatch;
+			boolean snapshot;
+			long batched;
+			int seq;
+			UdpTransport udp;
+			synchronized (this) {
+				scheduled = false;
+				if (textMoves.size() == 0 && textEvents.size() == 0)
+					return;
+				textMoveBatch = textMoves.toByteArray();
+				frameMoveBatch = frameMoves.toByteArray();
+				legacyMoveBatch = legacyMoves.toByteArray();
+				textEventBatch = textEvents.toByteArray();
+				frameEventBatch = frameEvents.toByteArray();
+				snapshot = moved != 0;
+				batched = moved;
+				textMoves.reset();
+				frameMoves.reset();
+				legacyMoves.reset();
+				textEvents.reset();
+				frameEvents.reset();
+				moved = 0;
+				seq = (int) ++flushes;
+				udp = this.udp;
+			}
+
+			if (snapshot && snapshots != null)
+				snapshots.capture(players);
+
+			// Every position, encoded once a client needs it
+			byte[] textResync = null, frameResync = null, legacyResync = null, datagram = null;
+
+			for (int i = 0; i < players.size(); i++) {
+				NetworkPlayer player = players.get(i);
+				OutboundQueue queue = player.getOutbound();
+				if (!player.connected || queue == null)
+					continue;
+
+				// A delta from the acknowledged snapshot is exact
+				// even after the ones before it are dropped. With a
+				// view radius each player's moves are its own
+				byte[] moves, events;
+				long entities;
+				if (!player.usesSnapshots()) {
+					moves = player.isBinary() ? frameMoveBatch
+							: player.isLegacy() ? legacyMoveBatch : textMoveBatch;
+					events = player.isBinary() ? frameEventBatch : textEventBatch;
+					entities = batched;
+					byte[] near = snapshot && snapshots != null
+							? snapshots.moves(i, player.isBinary(), player.isLegacy()) : null;
+					if (near != null) {
+						moves = near;
+						entities = snapshots.getMovesEntities();
+					}
+				} else {
+					moves = snapshot && snapshots != null
+							? snapshots.delta(player.getAckedSnapshot(), i) : new byte[0];
+					events = frameEventBatch;
+					entities = OutboundQueue.ALL;
+				}
+
+				if (udp != null && snapshot && player.getUdpAddress() != null) {
+					byte[] positions;
+					if (player.usesSnapshots()) {
+						positions = BinaryProtocol.datagram(seq, moves);
+					} else {
+						if (frameResync == null)
+							frameResync = resync(true, false);
+						if (datagram == null)
+							datagram = BinaryProtocol.datagram(seq, frameResync);
+						positions = datagram;
+					}
+
+					// Too big for one datagram, it goes on the stream
+					if (positions.length <= BinaryProtocol.MAX_DATAGRAM) {
+						udp.send(player, positions);
+						moves = new byte[0];
+						entities = 0;
+					}
+				}
+
+				// Still holding earlier batches past the limit
+				int limit = MonsterServer.OUTBOUND_LIMIT;
+				if (queue.getBytes() > limit) {
+					if (MonsterServer.OVERFLOW == OverflowPolicy.DISCONNECT) {
+						player.evict();
+						continue;
+					}
+
+					if (MonsterServer.OVERFLOW == OverflowPolicy.DROP_MOVES)
+						queue.dropStale(moves.length > 0 ? entities : 0);
+					else
+						queue.dropPositions();
+					if (MonsterServer.OVERFLOW == OverflowPolicy.COALESCE
+							&& !player.usesSnapshots()) {
+						if (player.isBinary()) {
+							if (frameResync == null)
+								frameResync = resync(true, false);
+							moves = frameResync;
+						} else if (player.isLegacy()) {
+							if (legacyResync == null)
+								legacyResync = resync(false, true);
+							moves = legacyResync;
+						} else {
+							if (textResync == null)
+								textResync = resync(false, false);
+							moves = textResync;
+						}
+						entities = OutboundQueue.ALL;
+					}
+
+					// Too far behind even without its moves
+					if (queue.getBytes() > EVICT_FACTOR * limit) {
+						player.evict();
+						continue;
+					}
+				}
+
+				if (moves.length > 0)
+					player.sendPosition(moves, entities);
+				if (events.length > 0)
+					player.send(events);
+			}
+		}
+	}
+
+	private byte[] resync(boolean binary, boolean legacy) {
+		ArrayList<Monster> monsters;
+		synchronized (this) {
+			monsters = this.monsters;
+		}
+		return MessageProtocol.encodePositions(players, monsters, binary, legacy);
+	}
+
+	/**
+	 * Send anything left, later broadcasts are left to the caller
+	 * to flush
+	 */
+	public void close() {
+		synchronized (this) {
+			running = false;
+		}
+		flush();
+	}
+
+	/**
+	 * Get the number of batches sent
+	 *
+	 * @return flushes
+	 */
+	public synchronized long getFlushes() {
+		return this.flushes;
+	}
+
+	/**
+	 * Get the number of messages broadcast
+	 *
+	 * @return messages
+	 */
+	public synchronized long getMessages() {
+		return this.messages;
+	}
+}
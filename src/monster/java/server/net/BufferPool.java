@@ -0,0 +1,65 @@
+package monster.java.server.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct byte buffers of one size, so the I/O thread
+ * doesn't allocate (or wait on the cleaner for) a direct buffer
+ * per write. Owned by a single I/O thread, not thread safe.
+ */
+public class BufferPool {
+	private int bufferSize;
+
+	// Max buffers kept free, the rest are left to the GC
+	private int maxFree;
+
+	private ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	// Buffers allocated in total
+	private int allocated = 0;
+
+	public BufferPool(int bufferSize, int maxFree) {
+		this.bufferSize = bufferSize;
+		this.maxFree = maxFree;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if
+	 * none are free
+	 * 
+	 * @return buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			allocated++;
+		}
+		return buffer;
+	}
+
+	/**
+	 * Hand a buffer back to the pool
+	 * 
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		if (free.size() < maxFree)
+			free.push(buffer);
+	}
+
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Get the number of buffers allocated since the pool was made
+	 * 
+	 * @return buffers
+	 */
+	public int getAllocated() {
+		return this.allocated;
+	}
+}
@@ -0,0 +1,16 @@
+package monster.java.server.net;
+
+/**
+ * How client connections are served
+ */
+public enum ConnectionMode {
+	// A platform thread per player, blocked reading its socket
+	PLATFORM,
+
+	// A virtual thread per player, blocked reading its socket.
+	// Needs Java 21, older runtimes fall back to PLATFORM
+	VIRTUAL,
+
+	// One I/O thread for every player, see NioTransport
+	NIO
+}
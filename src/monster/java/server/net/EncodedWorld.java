@@ -0,0 +1,184 @@
+package monster.java.server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * A world as it is sent to clients, built once per map file and
+ * shared by every room playing it.
+ *
+ * Clients only tell walls from floor, so the map is sent as runs
+ * of the same tile, row by row: its rows and columns, then the
+ * length of each run as a varint, starting with floor. The runs
+ * are deflated into a WORLD frame.
+ *
+ * The map is named by a hash of its runs, sent to each client
+ * ahead of the map, so a client that kept the map from an earlier
+ * game can say it has it and not be sent it again. Clients from
+ * before the hash get the text line they always have.
+ */
+public class EncodedWorld {
+	// Worlds loaded, by file
+	private static ConcurrentHashMap<String, EncodedWorld> worlds =
+			new ConcurrentHashMap<String, EncodedWorld>();
+
+	private String[] rows;
+	private long hash;
+
+	// The world: line, and the WORLD frame
+	private byte[] text;
+	private byte[] frame;
+
+	/**
+	 * Get a world from the class path, loading it the first time
+	 *
+	 * @param worldFile
+	 * @return world
+	 */
+	public static EncodedWorld load(String worldFile) {
+		return worlds.computeIfAbsent(worldFile, EncodedWorld::read);
+	}
+
+	private static EncodedWorld read(String worldFile) {
+		StringBuilder sb = new StringBuilder();
+		try (InputStream stream = EncodedWorld.class.getClassLoader()
+				.getResource(worldFile).openStream();
+				Scanner in = new Scanner(stream)) {
+			while (in.hasNextLine())
+				sb.append(in.nextLine() + ",");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new EncodedWorld(sb.toString().split(","));
+	}
+
+	/**
+	 * Encode a world's rows
+	 *
+	 * @param rows
+	 */
+	public EncodedWorld(String[] rows) {
+		this.rows = rows;
+		this.text = ("world:" + String.join(",", rows) + ",\n")
+				.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] runs = encodeRuns(rows);
+		this.hash = hash(runs);
+
+		Deflater deflater = new Deflater();
+		deflater.setInput(runs);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		while (!deflater.finished())
+			out.write(buf, 0, deflater.deflate(buf));
+		deflater.end();
+
+		byte[] deflated = out.toByteArray();
+		ByteBuffer frame = ByteBuffer.allocate(1 + BinaryProtocol.varintSize(8 + deflated.length)
+				+ 8 + deflated.length);
+		frame.put(BinaryProtocol.WORLD);
+		BinaryProtocol.putVarint(frame, 8 + deflated.length);
+		frame.putLong(this.hash).put(deflated);
+		this.frame = frame.array();
+	}
+
+	/**
+	 * Encode the rows as runs of walls and floor
+	 *
+	 * @param rows
+	 * @return rows, columns, then runs, all varints
+	 */
+	private static byte[] encodeRuns(String[] rows) {
+		int cols = 0;
+		for (String row : rows)
+			cols = Math.max(cols, row.length());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		putVarint(out, rows.length);
+		putVarint(out, cols);
+		boolean wall = false;
+		int run = 0;
+		for (String row : rows) {
+			for (int x = 0; x < cols; x++) {
+				if ((x < row.length() && row.charAt(x) == '#') != wall) {
+					putVarint(out, run);
+					wall = !wall;
+					run = 0;
+				}
+				run++;
+			}
+		}
+		putVarint(out, run);
+		return out.toByteArray();
+	}
+
+	private static void putVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Hash the runs, the first 64 bits of their SHA-256
+	 *
+	 * @param runs
+	 * @return hash
+	 */
+	private static long hash(byte[] runs) {
+		try {
+			return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(runs)).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get the hash as it goes in a map: line
+	 *
+	 * @param hash
+	 * @return 16 hex digits
+	 */
+	public static String toHex(long hash) {
+		return String.format("%016x", hash);
+	}
+
+	/* * * Getters and Setters * * */
+	public String[] getRows() {
+		return this.rows;
+	}
+
+	public long getHash() {
+		return this.hash;
+	}
+
+	/**
+	 * Get the world as a text line, for clients that don't know
+	 * about hashes. The array is shared and must not be changed
+	 *
+	 * @return line
+	 */
+	public byte[] getText() {
+		return this.text;
+	}
+
+	/**
+	 * Get the deflated world as a WORLD frame. The array is shared
+	 * and must not be changed
+	 *
+	 * @return frame
+	 */
+	public byte[] getFrame() {
+		return this.frame;
+	}
+}
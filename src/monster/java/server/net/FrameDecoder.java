@@ -0,0 +1,106 @@
+package monster.java.server.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cuts the bytes from a client into text lines and binary frames,
+ * which may be mixed on the same stream. Bytes are fed in as they
+ * arrive, in pieces of any size, and each complete line or frame
+ * is handed to the player. Lines are gathered in a reused parser
+ * and frames in a reused buffer, so nothing is allocated per
+ * message.
+ */
+public class FrameDecoder {
+	// Line read so far
+	private LineParser line = new LineParser();
+	private boolean inLine = false;
+
+	// Type of the frame being read, -1 between messages
+	private int type = -1;
+
+	// Payload length, read 7 bits at a time while inLength
+	private int length = 0;
+	private int shift = 0;
+	private boolean inLength = false;
+
+	private ByteBuffer payload = ByteBuffer.allocate(64);
+
+	/**
+	 * Decode the bytes read, passing everything complete on
+	 *
+	 * @param in buffer flipped for reading
+	 * @param player
+	 * @throws IOException if a frame is malformed or the player
+	 *             rejects a message
+	 */
+	public void decode(ByteBuffer in, NetworkPlayer player) throws IOException {
+		while (in.hasRemaining()) {
+			if (inLine) {
+				line(in, player);
+			} else if (inLength) {
+				length(in, player);
+			} else if (type >= 0) {
+				int n = Math.min(in.remaining(), payload.remaining());
+				int limit = in.limit();
+				in.limit(in.position() + n);
+				payload.put(in);
+				in.limit(limit);
+				if (!payload.hasRemaining())
+					dispatch(player);
+			} else if (BinaryProtocol.isFrame(in.get(in.position()))) {
+				type = in.get();
+				length = 0;
+				shift = 0;
+				inLength = true;
+			} else {
+				inLine = true;
+			}
+		}
+	}
+
+	private void line(ByteBuffer in, NetworkPlayer player) throws IOException {
+		while (in.hasRemaining()) {
+			byte b = in.get();
+			if (b != '\n') {
+				line.append(b);
+				continue;
+			}
+
+			line.end();
+			inLine = false;
+			player.receive(line);
+			line.reset();
+			return;
+		}
+	}
+
+	private void length(ByteBuffer in, NetworkPlayer player) throws IOException {
+		int b = in.get();
+		length |= (b & 0x7F) << shift;
+		shift += 7;
+		if ((b & 0x80) != 0) {
+			if (shift > 28)
+				throw new IOException("Bad frame length");
+			return;
+		}
+
+		inLength = false;
+		if (length > BinaryProtocol.MAX_PAYLOAD)
+			throw new IOException("Frame too long: " + length);
+
+		if (payload.capacity() < length)
+			payload = ByteBuffer.allocate(length);
+		payload.clear();
+		payload.limit(length);
+		if (length == 0)
+			dispatch(player);
+	}
+
+	private void dispatch(NetworkPlayer player) throws IOException {
+		int t = type;
+		type = -1;
+		payload.flip();
+		player.receiveFrame(t, payload);
+	}
+}
@@ -0,0 +1,349 @@
+package monster.java.server.net;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses a text line from a client in place, into primitive fields,
+ * one message at a time. The bytes are appended as they arrive and
+ * the same buffer is reused for every line, so a message is parsed
+ * without making any garbage.
+ *
+ * A line holds messages separated by ';', each a keyword then its
+ * fields:
+ *   mv:x,y  num:n  time:t  proto:v  ready  udp:  map:hash
+ *
+ * where the map's hash is 16 hex digits, or nothing for a client
+ * that doesn't have it.
+ *
+ * A malformed move, count or time is reported and throws, as a bad
+ * move always has. A malformed proto is ignored, the client keeps
+ * using text. A line longer than MAX_LINE throws as it is read.
+ */
+public class LineParser {
+	// Message types returned by next
+	public static final int END = 0;
+	public static final int MOVE = 1;
+	public static final int NUM = 2;
+	public static final int TIME = 3;
+	public static final int PROTO = 4;
+	public static final int READY = 5;
+	public static final int UDP = 6;
+	public static final int UNKNOWN = 7;
+	public static final int MAP = 8;
+
+	// Longest line accepted, anything longer is a bad client
+	public static final int MAX_LINE = 4096;
+
+	private static final byte[] MV = ascii("mv:");
+	private static final byte[] NUM_KEY = ascii("num:");
+	private static final byte[] TIME_KEY = ascii("time:");
+	private static final byte[] PROTO_KEY = ascii(BinaryProtocol.HELLO);
+	private static final byte[] READY_KEY = ascii("ready");
+	private static final byte[] UDP_KEY = ascii(BinaryProtocol.UDP);
+	private static final byte[] MAP_KEY = ascii("map:");
+
+	// Exact powers of ten as doubles
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private byte[] line = new byte[64];
+	private int length = 0;
+
+	// Start of the next message, and the bounds of the last one
+	private int pos = 0;
+	private int start, end;
+
+	// Fields of the last message
+	private int x, y, value;
+	private long hash;
+	private float time;
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Add a byte read to the line
+	 *
+	 * @param b
+	 * @throws IOException if the line is longer than MAX_LINE
+	 */
+	public void append(byte b) throws IOException {
+		if (length == MAX_LINE)
+			throw new IOException("Line too long");
+		put(b);
+	}
+
+	private void put(byte b) {
+		if (length == line.length) {
+			byte[] bigger = new byte[2 * length];
+			System.arraycopy(line, 0, bigger, 0, length);
+			line = bigger;
+		}
+		line[length++] = b;
+	}
+
+	/**
+	 * The line is complete, a trailing '\r' is dropped
+	 */
+	public void end() {
+		if (length > 0 && line[length - 1] == '\r')
+			length--;
+		pos = 0;
+	}
+
+	/**
+	 * Empty the buffer for the next line
+	 */
+	public void reset() {
+		length = 0;
+		pos = 0;
+	}
+
+	/**
+	 * Parse the line again from its first message
+	 */
+	public void rewind() {
+		pos = 0;
+	}
+
+	/**
+	 * Replace the line with one already read
+	 *
+	 * @param text
+	 */
+	public void set(String text) {
+		reset();
+		for (int i = 0; i < text.length(); i++)
+			put((byte) text.charAt(i));
+		end();
+	}
+
+	/**
+	 * Parse the next message of the line, skipping empty ones
+	 *
+	 * @return message type, END when the line is used up
+	 * @throws IOException if a message is malformed
+	 */
+	public int next() throws IOException {
+		while (pos < length) {
+			start = pos;
+			end = start;
+			while (end < length && line[end] != ';')
+				end++;
+			pos = end + 1;
+
+			if (end == start)
+				continue;
+
+			if (startsWith(MV)) {
+				int comma = indexOf(',', start + MV.length);
+				x = parseInt(start + MV.length, comma);
+				y = parseInt(comma + 1, end);
+				if (comma < 0 || x < 0 || y < 0)
+					throw invalid("mv");
+				return MOVE;
+			}
+			if (startsWith(NUM_KEY)) {
+				value = parseInt(start + NUM_KEY.length, end);
+				if (value < 0)
+					throw invalid("num");
+				return NUM;
+			}
+			if (startsWith(TIME_KEY)) {
+				if (!parseTime(start + TIME_KEY.length, end))
+					throw invalid("time");
+				return TIME;
+			}
+			if (startsWith(PROTO_KEY)) {
+				value = parseInt(start + PROTO_KEY.length, end);
+				return value < 0 ? UNKNOWN : PROTO;
+			}
+			if (end - start == READY_KEY.length && startsWith(READY_KEY))
+				return READY;
+			if (startsWith(UDP_KEY))
+				return UDP;
+			if (startsWith(MAP_KEY))
+				return parseHash(start + MAP_KEY.length, end) ? MAP : UNKNOWN;
+			return UNKNOWN;
+		}
+		return END;
+	}
+
+	private IOException invalid(String keyword) {
+		System.out.println("Invalid " + keyword + " message: " + message());
+		return new IOException();
+	}
+
+	private boolean startsWith(byte[] key) {
+		if (end - start < key.length)
+			return false;
+		for (int i = 0; i < key.length; i++)
+			if (line[start + i] != key[i])
+				return false;
+		return true;
+	}
+
+	private int indexOf(char c, int from) {
+		for (int i = from; i < end; i++)
+			if (line[i] == c)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Parse digits, at most nine so there is no overflow
+	 *
+	 * @param from
+	 * @param to
+	 * @return value, or -1 if not a number
+	 */
+	private int parseInt(int from, int to) {
+		if (from >= to || to - from > 9)
+			return -1;
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			int d = line[i] - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			n = 10 * n + d;
+		}
+		return n;
+	}
+
+	/**
+	 * Parse a map hash, 16 hex digits, or nothing for none
+	 *
+	 * @param from
+	 * @param to
+	 * @return false if not a hash
+	 */
+	private boolean parseHash(int from, int to) {
+		hash = 0;
+		if (from == to)
+			return true;
+		if (to - from != 16)
+			return false;
+		for (int i = from; i < to; i++) {
+			int d = Character.digit(line[i], 16);
+			if (d < 0)
+				return false;
+			hash = hash << 4 | d;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a decimal as Float.toString writes it, an optional sign,
+	 * digits with an optional fraction, and an optional exponent
+	 *
+	 * @param from
+	 * @param to
+	 * @return false if not a number
+	 */
+	private boolean parseTime(int from, int to) {
+		int i = from;
+		boolean negative = i < to && line[i] == '-';
+		if (negative || (i < to && line[i] == '+'))
+			i++;
+
+		// Digits past the 18th only move the decimal point
+		long mantissa = 0;
+		int exponent = 0, digits = 0;
+		boolean point = false;
+		for (; i < to; i++) {
+			int d = line[i] - '0';
+			if (line[i] == '.' && !point) {
+				point = true;
+			} else if (d >= 0 && d <= 9) {
+				if (digits < 18) {
+					mantissa = 10 * mantissa + d;
+					if (point)
+						exponent--;
+				} else if (!point) {
+					exponent++;
+				}
+				digits++;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0)
+			return false;
+
+		if (i < to && (line[i] == 'E' || line[i] == 'e')) {
+			int e = i + 1;
+			boolean negativeE = e < to && line[e] == '-';
+			if (negativeE)
+				e++;
+			int n = parseInt(e, to);
+			if (n < 0)
+				return false;
+			exponent += negativeE ? -n : n;
+			i = to;
+		}
+		if (i != to)
+			return false;
+
+		double d = mantissa;
+		if (exponent < 0)
+			d = -exponent < POW10.length ? d / POW10[-exponent] : d * Math.pow(10, exponent);
+		else if (exponent > 0)
+			d = exponent < POW10.length ? d * POW10[exponent] : d * Math.pow(10, exponent);
+		time = (float) (negative ? -d : d);
+		return true;
+	}
+
+	public int getX() {
+		return this.x;
+	}
+
+	public int getY() {
+		return this.y;
+	}
+
+	/**
+	 * Get the number of a num or proto message
+	 *
+	 * @return value
+	 */
+	public int getValue() {
+		return this.value;
+	}
+
+	public float getTime() {
+		return this.time;
+	}
+
+	/**
+	 * Get the hash of a map message
+	 *
+	 * @return hash, 0 for none
+	 */
+	public long getHash() {
+		return this.hash;
+	}
+
+	/**
+	 * Get the last message parsed as text, for reporting it
+	 *
+	 * @return message
+	 */
+	public String message() {
+		return new String(line, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get the whole line as text
+	 *
+	 * @return line
+	 */
+	public String toString() {
+		return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -1,27 +1,28 @@
 package monster.java.server.net;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 import monster.java.server.MonsterServer;
+import monster.java.server.world.Monster;
 
 public class MessageProtocol {
 
-	// regex pattern to match move msg
-	private static Pattern movePattern = Pattern
-			.compile("([a-z]*):(\\d*),(\\d*)");
-
 	// OUTGOING MESSAGES //
 	
 	/**
-	 * Send the world as a string to a client
+	 * Name the map a client is about to play, by its hash:
+	 * map:hash
 	 * 
 	 * @param client
-	 * @param worldString
+	 * @param hash
 	 */
-	public static void sendWorld(NetworkPlayer client, String worldString) {
-		client.send("world:" + worldString);
+	public static void sendMap(NetworkPlayer client, long hash) {
+		client.send("map:" + EncodedWorld.toHex(hash));
 	}
 	
 	/**
@@ -32,8 +33,13 @@ public class MessageProtocol {
 	 * @param y
 	 */
 	public static void sendMove(NetworkPlayer client, int x, int y) {
-		String msg = "mv:" + client.getID() + "," + x + "," + y + ";";		
-		MonsterServer.server.broadcast(msg);
+		String msg = moveText(client.getID(), x, y);
+		client.getServer().broadcastPosition(msg, BinaryProtocol.move(client.getID(), x, y),
+				OutboundQueue.player(client.getID()));
+	}
+	
+	static String moveText(int id, int x, int y) {
+		return "mv:" + id + "," + x + "," + y + ";";
 	}
 	
 	/**
@@ -43,7 +49,7 @@ public class MessageProtocol {
 	 */
 	public static void sendDisconnect(NetworkPlayer client) {
 		String msg = "dc:" + client.getID() + ";";
-		MonsterServer.server.broadcast(msg);
+		client.getServer().broadcast(msg, BinaryProtocol.disconnect(client.getID()));
 	}
 	
 	/**
@@ -53,105 +59,324 @@ public class MessageProtocol {
 	 */
 	public static void sendKill(NetworkPlayer client) {
 		String msg = "kill:" + client.getID();
-		MonsterServer.server.broadcast(msg);
+		client.getServer().broadcast(msg, BinaryProtocol.kill(client.getID()));
 	}
 	
 	/**
-	 * Broadcast monster movement to all clients
+	 * Broadcast every monster's position to all clients in one
+	 * message, monster i at the i-th x,y pair:
+	 * mon:x0,y0,x1,y1;
 	 * 
-	 * @param x
-	 * @param y
+	 * Clients from before proto: lines are sent the first monster
+	 * as they always were, mv:0,x,y;
+	 * 
+	 * @param server room the monsters are in
+	 * @param monsters
 	 */
-	public static void sendMonsterMove(int x, int y) {
-		String msg = "mv:0," + x + "," + y + ";";
-		MonsterServer.server.broadcast(msg);
+	public static void sendMonsterMoves(NetworkServer server, ArrayList<Monster> monsters) {
+		int[] xy = monsterPositions(monsters);
+		server.broadcastPosition(monstersText(xy, monsters.size(), false),
+				monstersText(xy, monsters.size(), true),
+				BinaryProtocol.monsters(xy, monsters.size()), OutboundQueue.MONSTERS);
 	}
 	
-	public static void sendBegin() {
-		MonsterServer.server.broadcast("begin");
+	private static int[] monsterPositions(ArrayList<Monster> monsters) {
+		int[] xy = new int[2 * monsters.size()];
+		for (int i = 0; i < monsters.size(); i++) {
+			xy[2 * i] = monsters.get(i).X();
+			xy[2 * i + 1] = monsters.get(i).Y();
+		}
+		return xy;
+	}
+	
+	/**
+	 * Encode the monsters' positions as text
+	 * 
+	 * @param xy
+	 * @param count
+	 * @param legacy true for a client from before proto: lines
+	 * @return mon: message, or mv:0 for the first monster only
+	 */
+	static String monstersText(int[] xy, int count, boolean legacy) {
+		if (legacy)
+			return count > 0 ? moveText(0, xy[0], xy[1]) : "";
+		StringBuilder sb = new StringBuilder("mon:");
+		for (int i = 0; i < 2 * count; i += 2) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(xy[i]).append(',').append(xy[i + 1]);
+		}
+		return sb.append(';').toString();
+	}
+	
+	/**
+	 * Encode every player's and monster's position, to replace
+	 * moves dropped from a client's queue. As text it is one line:
+	 * mv:1,x,y;mv:2,x,y;mon:x0,y0;
+	 * 
+	 * @param players
+	 * @param monsters
+	 * @param binary frames if true, text if not
+	 * @param legacy text for a client from before proto: lines
+	 * @return encoded positions
+	 */
+	public static byte[] encodePositions(ArrayList<NetworkPlayer> players,
+			ArrayList<Monster> monsters, boolean binary, boolean legacy) {
+		int[] xy = monsterPositions(monsters);
+		if (!binary) {
+			StringBuilder sb = new StringBuilder();
+			for (NetworkPlayer p : players)
+				sb.append(moveText(p.getID(), p.getPlayer().X(), p.getPlayer().Y()));
+			sb.append(monstersText(xy, monsters.size(), legacy)).append('\n');
+			return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (NetworkPlayer p : players)
+			out.writeBytes(BinaryProtocol.move(p.getID(), p.getPlayer().X(), p.getPlayer().Y()));
+		out.writeBytes(BinaryProtocol.monsters(xy, monsters.size()));
+		return out.toByteArray();
+	}
+	
+	public static void sendBegin(NetworkServer server) {
+		server.broadcast("begin", BinaryProtocol.begin());
+	}
+	
+	/**
+	 * Broadcast the final times, best ranked player first:
+	 * end:name:time,name:time;
+	 * 
+	 * @param server room the game was played in
+	 * @param ranked players in rank order
+	 * @param times time of each
+	 */
+	public static void sendEnd(NetworkServer server, NetworkPlayer[] ranked, float[] times) {
+		StringBuilder sb = new StringBuilder("end:");
+		int[] ids = new int[ranked.length];
+		for (int i = 0; i < ranked.length; i++) {
+			ids[i] = ranked[i].getID();
+			if (i > 0)
+				sb.append(',');
+			sb.append(ranked[i].getName()).append(':').append(times[i]);
+		}
+		sb.append(';');
+		server.broadcast(sb.toString(), BinaryProtocol.end(ids, times));
 	}
 	
 	// INCOMING MESSAGES //
 	
 	/**
-	 * Process a message from a client and perform appropriate actions
+	 * Process the messages of a line from a client and perform
+	 * appropriate actions
 	 * 
 	 * @param client
 	 * @param line
-	 * @throws IOException
+	 * @throws IOException if a message is malformed
 	 */
-	public static void process(NetworkPlayer client, String line)
+	public static void process(NetworkPlayer client, LineParser line)
 			throws IOException {
 
-		for (String msg : line.split(";")) {
-
-			// player move
-			if (msg.startsWith("mv:"))
-				processMove(client, msg);
-			// num players
-			else if (msg.startsWith("num:"))
-				processNumPlayers(client, msg);
-			// player time
-			else if (msg.startsWith("time:"))
-				processPlayerTime(client, msg);
-			
+		int type;
+		while ((type = line.next()) != LineParser.END) {
+			switch (type) {
+			case LineParser.MOVE:
+				processMove(client, line.getX(), line.getY());
+				break;
+			case LineParser.NUM:
+				client.getServer().setNumPlayers(line.getValue());
+				break;
+			case LineParser.TIME:
+				processTime(client, line.getTime());
+				break;
+			case LineParser.PROTO:
+				processProtocol(client, line.getValue());
+				break;
+			case LineParser.READY:
+				client.ready();
+				break;
+			case LineParser.UDP:
+				processUdp(client);
+				break;
+			case LineParser.MAP:
+				client.getServer().sendWorld(client, true, line.getHash());
+				break;
+			default:
+				// unknown messages are ignored
+			}
 		}
 
 	}
 	
 	/**
-	 * Process a player sending their play time
+	 * Process a binary frame from a client
 	 * 
 	 * @param client
-	 * @param timeMsg
+	 * @param type
+	 * @param payload
+	 * @throws IOException
 	 */
-	private static void processPlayerTime(NetworkPlayer client, String timeMsg) {
-		float time = Float.parseFloat(timeMsg.replace("time:", ""));
-		client.setTime(time);
+	public static void processFrame(NetworkPlayer client, int type,
+			ByteBuffer payload) throws IOException {
+		
+		try {
+			switch (type) {
+			case BinaryProtocol.MOVE:
+				int x = payload.getShort() & 0xFFFF;
+				int y = payload.getShort() & 0xFFFF;
+				processMove(client, x, y);
+				break;
+			case BinaryProtocol.TIME:
+				processTime(client, payload.getFloat());
+				break;
+			case BinaryProtocol.NUM:
+				client.getServer().setNumPlayers(payload.get() & 0xFF);
+				break;
+			case BinaryProtocol.ACK:
+				client.setAckedSnapshot(getVarint(payload));
+				break;
+			default:
+				// not sent by clients, ignored like unknown lines
+			}
+		} catch (BufferUnderflowException e) {
+			System.out.println("Invalid frame of type " + type);
+			throw new IOException();
+		}
 	}
 	
 	/**
-	 * Process the first player setting numPlayers
+	 * Read a varint, 7 bits per byte, low first
+	 * 
+	 * @param payload
+	 * @return value
+	 * @throws IOException if it runs on too long
+	 */
+	private static int getVarint(ByteBuffer payload) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = payload.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		System.out.println("Invalid varint");
+		throw new IOException();
+	}
+	
+	/**
+	 * Process a client asking for the binary protocol. The answer
+	 * is the highest version both speak, sent as text, and from then
+	 * on messages to the client are frames. With no answer the
+	 * client keeps using text
 	 * 
 	 * @param client
-	 * @param npMsg
+	 * @param version highest the client speaks
 	 */
-	private static void processNumPlayers(NetworkPlayer client, String npMsg) {
-		int numPlayers = Integer.parseInt(npMsg.split(":")[1]);
-		MonsterServer.server.setNumPlayers(numPlayers);		
+	private static void processProtocol(NetworkPlayer client, int version) {
+		client.setHello();
+		if (!MonsterServer.BINARY_PROTOCOL || version < 1)
+			return;
+		
+		version = Math.min(version, client.getServer().getProtocolVersion());
+		client.send(BinaryProtocol.HELLO + version);
+		client.setBinary(true);
+		client.setSnapshots(version >= BinaryProtocol.SNAPSHOT_VERSION);
 	}
-
+	
+	/**
+	 * Process a client asking for a UDP channel. Only binary
+	 * clients get one, as datagrams hold frames. With no answer the
+	 * client keeps everything on its stream
+	 * 
+	 * @param client
+	 */
+	private static void processUdp(NetworkPlayer client) {
+		UdpTransport udp = client.getServer().getUdp();
+		if (udp == null || !client.isBinary())
+			return;
+		
+		int token = udp.register(client);
+		client.setUdpToken(token);
+		client.send(BinaryProtocol.UDP + udp.getPort() + "," + token);
+	}
+	
+	/**
+	 * Process a player's time, which the results may be waiting on
+	 * 
+	 * @param client
+	 * @param time
+	 */
+	private static void processTime(NetworkPlayer client, float time) {
+		client.setTime(time);
+		client.getServer().checkTimes();
+	}
+	
 	/**
 	 * Process a player move
 	 * 
 	 * @param client
-	 * @param mvMsg
-	 * @throws IOException
+	 * @param x
+	 * @param y
 	 */
-	private static void processMove(NetworkPlayer client, String mvMsg)
-			throws IOException {
-
-		// Message should look like
-		// mv:10,12
-		// (where 10 is x and 12 is y)
+	private static void processMove(NetworkPlayer client, int x, int y) {
 		
 		// prevents glitching on scores being displayed
 		if (!client.getPlayer().isAlive())
 			return;
+		
+		// only a broken client moves off the map, and the view's
+		// grid is sized by where players are
+		if (!client.getServer().isOnMap(x, y))
+			return;
 
-		Matcher matcher = movePattern.matcher(mvMsg);
-
-		if (!matcher.matches()) {
-			System.out.println("Invalid mv message: " + mvMsg);
-			throw new IOException();
+		// Over its rate a move waits for a token, in place of any
+		// move waiting already. Held moves are released on the
+		// room's loop, so moves taken are applied there too, in the
+		// order the limiter let them through
+		MoveLimiter limiter = client.getMoveLimiter();
+		if (limiter != null) {
+			int admitted = limiter.admit(x, y);
+			if (admitted == MoveLimiter.HOLD)
+				client.getServer().schedule(() -> releaseMove(client), limiter.getWait());
+			if (admitted == MoveLimiter.TAKE)
+				client.getServer().execute(() -> applyMove(client, x, y));
+			return;
 		}
 
-		int x = Integer.parseInt(matcher.group(2));
-		int y = Integer.parseInt(matcher.group(3));
-
-		// update player, broadcast move
+		applyMove(client, x, y);
+		
+	}
+	
+	/**
+	 * Update the player and broadcast its move
+	 * 
+	 * @param client
+	 * @param x
+	 * @param y
+	 */
+	private static void applyMove(NetworkPlayer client, int x, int y) {
 		client.getPlayer().setPos(x, y);
 		sendMove(client, x, y);
+	}
+	
+	/**
+	 * Apply a move held back by the client's limiter, once it has
+	 * a token for it
+	 * 
+	 * @param client
+	 */
+	private static void releaseMove(NetworkPlayer client) {
+		MoveLimiter limiter = client.getMoveLimiter();
+		if (!client.connected || !client.getPlayer().isAlive()) {
+			limiter.discard();
+			return;
+		}
+		
+		long move = limiter.release();
+		if (move == MoveLimiter.WAIT) {
+			client.getServer().schedule(() -> releaseMove(client), limiter.getWait());
+		} else if (move != MoveLimiter.NONE) {
+			applyMove(client, (int) (move >>> 32), (int) move);
+		}
 		
 	}
 
@@ -0,0 +1,145 @@
+package monster.java.server.net;
+
+/**
+ * Token bucket for one client's moves, so a client sending more
+ * than it could ever play can't make the room broadcast them all.
+ *
+ * Each move takes a token, and tokens come back at a fixed rate up
+ * to a burst. A move with no token left is held back, taking the
+ * place of any move held already, and is let through once a token
+ * comes back. Whatever the client sends, its latest position gets
+ * to the room, at most at the rate.
+ *
+ * Moves are taken from the client's connection and released on the
+ * room's loop, which may be different threads.
+ */
+public class MoveLimiter {
+	// What admit does with a move: take it now, hold it and have
+	// release scheduled, or hold it in place of one already held
+	public static final int TAKE = 0;
+	public static final int HOLD = 1;
+	public static final int MERGE = 2;
+
+	// What release returns with no move for the room
+	public static final long NONE = -1;
+	public static final long WAIT = -2;
+
+	// Tokens per ns, and most tokens saved up
+	private double rate;
+	private double burst;
+
+	private double tokens;
+	private long last;
+
+	// Move held back for a token
+	private boolean held = false;
+	private int heldX, heldY;
+
+	// Moves taken straight away or once released, merged into a
+	// later one while held, and dropped as the player left or died
+	private long taken = 0, merged = 0, dropped = 0;
+
+	/**
+	 * @param perSecond tokens coming back a second
+	 * @param burst most tokens saved up, at least 1
+	 */
+	public MoveLimiter(int perSecond, int burst) {
+		this.rate = perSecond / 1e9;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.last = System.nanoTime();
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate);
+		last = now;
+	}
+
+	/**
+	 * Take a move if there is a token for it, or hold it back. A
+	 * move taken also replaces one held
+	 *
+	 * @param x
+	 * @param y
+	 * @return TAKE to apply it now, HOLD to schedule release, or
+	 *         MERGE if a release is scheduled already
+	 */
+	public synchronized int admit(int x, int y) {
+		refill();
+		if (tokens >= 1) {
+			tokens--;
+			taken++;
+			if (held) {
+				held = false;
+				merged++;
+			}
+			return TAKE;
+		}
+
+		heldX = x;
+		heldY = y;
+		if (held) {
+			merged++;
+			return MERGE;
+		}
+		held = true;
+		return HOLD;
+	}
+
+	/**
+	 * Let the held move through if a token has come back for it
+	 *
+	 * @return x in the high int and y in the low of the move to
+	 *         apply, NONE if nothing is held, or WAIT if there is no
+	 *         token yet
+	 */
+	public synchronized long release() {
+		if (!held)
+			return NONE;
+		refill();
+		if (tokens < 1)
+			return WAIT;
+
+		tokens--;
+		taken++;
+		held = false;
+		return (long) heldX << 32 | heldY;
+	}
+
+	/**
+	 * Throw away the held move, the player can no longer move
+	 */
+	public synchronized void discard() {
+		if (held)
+			dropped++;
+		held = false;
+	}
+
+	/**
+	 * Get the time until the next token comes back
+	 *
+	 * @return ms, at least 1
+	 */
+	public synchronized long getWait() {
+		refill();
+		return Math.max(1, (long) Math.ceil((1 - tokens) / rate / 1e6));
+	}
+
+	/**
+	 * Get counts for the DEBUG output
+	 *
+	 * @return moves taken, merged and dropped
+	 */
+	public synchronized String getStats() {
+		return taken + " moves taken, " + merged + " merged, " + dropped + " dropped";
+	}
+
+	public synchronized long getMerged() {
+		return this.merged;
+	}
+
+	public synchronized long getDropped() {
+		return this.dropped;
+	}
+}
@@ -1,18 +1,25 @@
 package monster.java.server.net;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import monster.java.server.MonsterServer;
 import monster.java.server.world.Entity;
 
 /**
  * NetworkPlayer handles a client's connection to
- * the server and all attributes related to a player
+ * the server and all attributes related to a player.
+ * 
+ * The connection is either a socket read by this thread, or an
+ * NioConnection served by the shared I/O thread
  * 
  * @author Alex
  *
@@ -20,19 +27,57 @@ import monster.java.server.world.Entity;
 public class NetworkPlayer extends Thread {
 
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	private NioConnection connection;
+	private OutputStream out;
+	private InputStream in;
 	private Entity player;
 	private int id;
-	public boolean connected;
-	public float time;
+	
+	// Room the player is in
+	private NetworkServer server;
+	public volatile boolean connected;
+	public volatile float time;
 	public static String socketID;
 	
 	private boolean isReady = false;
+	
+	// Whether the world has been sent, guarded by the room
+	private boolean hasWorld = false;
+	
+	// Whether the client has agreed to binary frames, and to
+	// snapshots instead of moves
+	private volatile boolean binary = false;
+	private volatile boolean snapshots = false;
+	
+	// Whether the client has said which protocol it speaks. Ones
+	// from before proto: don't, and only know the first monster,
+	// as a move of player 0
+	private volatile boolean hello = false;
+	
+	// Last snapshot the client has applied, 0 for none
+	private volatile int ackedSnapshot = 0;
+	
+	// Messages for the writer thread to send, when on a socket
+	private OutboundQueue outbound;
+	
+	// Where the client's datagrams come from once it has said
+	// hello, null while positions go on the stream
+	private volatile SocketAddress udpAddress;
+	
+	// Sequence number of the last move taken by datagram
+	private int udpSeq = 0;
+	
+	// Token the client says hello with, -1 for none. Not under the
+	// player's lock, as the room gives it up holding its own
+	private final AtomicInteger udpToken = new AtomicInteger(-1);
+	
+	// Holds back moves over the rate, null for no limit
+	private MoveLimiter moves;
 
-	public NetworkPlayer(Socket socket, int id) {
+	public NetworkPlayer(Socket socket, int id, NetworkServer server) {
 		this.socket = socket;
 		this.id = id + 1;
+		this.server = server;
 		this.connected = true;
 
 		System.out.println("New player connected to " + socket.getInetAddress()
@@ -45,9 +90,8 @@ public class NetworkPlayer extends Thread {
 		try {
 
 			// initialize output and input streams
-			this.out = new PrintWriter(socket.getOutputStream(), true);
-			this.in = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.in = socket.getInputStream();
 
 		} catch (IOException e) {
 			System.out.println("Unable to connect to player streams.");
@@ -55,15 +99,111 @@ public class NetworkPlayer extends Thread {
 		}
 
 		this.player = new Entity();
+		this.outbound = new OutboundQueue();
+		this.moves = limiter(server);
 		
-		// Begin the thread
-		this.start();
+		// Begin the reading and writing threads, or run the same
+		// loops on virtual ones
+		Runnable writer = () -> writeLoop();
+		if (MonsterServer.CONNECTIONS == ConnectionMode.VIRTUAL) {
+			VirtualThreads.start(this);
+			VirtualThreads.start(writer);
+		} else {
+			this.start();
+			Thread t = new Thread(writer, "Player " + this.id + " writer");
+			t.setDaemon(true);
+			t.start();
+		}
 	}
 	
 	/**
-	 * Close the socket
+	 * Create a player on a connection served by a NioTransport.
+	 * No thread is started, lines arrive through receive
+	 * 
+	 * @param connection
+	 * @param id
+	 * @param server room the player is in
+	 */
+	public NetworkPlayer(NioConnection connection, int id, NetworkServer server) {
+		this.connection = connection;
+		this.id = id + 1;
+		this.server = server;
+		this.connected = true;
+		this.player = new Entity();
+		this.moves = limiter(server);
+
+		System.out.println("New player connected to " + connection.getAddress());
+		socketID = connection.getAddress();
+
+		connection.attach(this, server != null ? server.getLoop() : null);
+	}
+	
+	/**
+	 * Create a player with no connection behind it, for
+	 * benchmarks and server side testing
+	 * 
+	 * @param id
+	 * @param server room the player's moves are broadcast in
+	 */
+	public NetworkPlayer(int id, NetworkServer server) {
+		this.id = id + 1;
+		this.server = server;
+		this.connected = false;
+		this.player = new Entity();
+	}
+	
+	/**
+	 * Create a player with no connection and in no room, for
+	 * path finding benchmarks
+	 * 
+	 * @param id
+	 */
+	public NetworkPlayer(int id) {
+		this(id, null);
+	}
+	
+	/**
+	 * Limit a connected player's moves, if the room has a loop to
+	 * release the ones held back on
+	 * 
+	 * @param server
+	 * @return limiter, or null for none
+	 */
+	private static MoveLimiter limiter(NetworkServer server) {
+		if (MonsterServer.MOVE_RATE <= 0 || server == null || server.getLoop() == null)
+			return null;
+		return new MoveLimiter(MonsterServer.MOVE_RATE, MonsterServer.MOVE_BURST);
+	}
+	
+	/**
+	 * Close the connection once what is queued has been written
 	 */
 	public void close() {
+		if (this.connection != null)
+			this.connection.close();
+		if (this.outbound != null)
+			this.outbound.close();
+	}
+	
+	/**
+	 * Drop a client that can't keep up with what it is sent,
+	 * without waiting for its queue to drain
+	 */
+	public void evict() {
+		System.out.println("Disconnecting slow client " + this.id);
+		OutboundQueue queue = getOutbound();
+		if (queue != null)
+			queue.clear();
+		if (this.connection != null)
+			this.connection.close();
+		closeSocket();
+		disconnected();
+	}
+	
+	private void closeSocket() {
+		if (this.socket == null)
+			return;
+		
 		try {
 			this.socket.close();
 		} catch (IOException e) {
@@ -77,45 +217,180 @@ public class NetworkPlayer extends Thread {
 	 * @param msg
 	 */
 	public void send(String msg) {
-		this.out.println(msg);
+		if (this.connection != null)
+			this.connection.send(msg);
+		else
+			send((msg + "\n").getBytes(StandardCharsets.ISO_8859_1));
 	}
 
 	/**
-	 * Threaded loop for all messages
+	 * Send a message as a binary frame if the client has agreed to
+	 * them, or as text if not
+	 * 
+	 * @param msg text line
+	 * @param frame the same message encoded by BinaryProtocol, or
+	 *            null to send the text line either way
 	 */
-	public void run() {
-		String inputLine;
+	public void send(String msg, byte[] frame) {
+		if (this.binary && frame != null)
+			send(frame);
+		else
+			send(msg);
+	}
+
+	/**
+	 * Send bytes already encoded as they are. The array may be
+	 * shared with other players and must not be changed
+	 * 
+	 * @param msg
+	 */
+	void send(byte[] msg) {
+		send(msg, 0);
+	}
+	
+	/**
+	 * Send encoded moves, which may be dropped if the client falls
+	 * behind and a later message replaces them
+	 * 
+	 * @param msg
+	 * @param entities what the moves are for, as OutboundQueue
+	 *            marks them
+	 */
+	void sendPosition(byte[] msg, long entities) {
+		send(msg, entities);
+	}
+	
+	private void send(byte[] msg, long entities) {
+		if (this.connection != null)
+			this.connection.send(msg, entities);
+		else if (this.outbound != null)
+			this.outbound.add(msg, entities);
+	}
+	
+	/**
+	 * Get the messages waiting to be written to the client
+	 * 
+	 * @return queue, or null with no connection
+	 */
+	public OutboundQueue getOutbound() {
+		if (this.connection != null)
+			return this.connection.getOutbound();
+		return this.outbound;
+	}
+	
+	/**
+	 * Writing loop, so no thread sending to the player ever waits
+	 * on its socket. Closes the socket once the queue is closed and
+	 * written out
+	 */
+	private void writeLoop() {
 		try {
-			while ((inputLine = this.in.readLine()) != null) {
-				if (MonsterServer.DEBUG) 
-					System.out.println("MSG: " + inputLine);
-
-				if (inputLine.equals("ready") && !this.isReady) {
-					
-					this.isReady = true;
-					MonsterServer.server.addReady();
-					
-				} else {
+			byte[] msg;
+			while ((msg = this.outbound.take()) != null) {
+				this.out.write(msg);
 				
-					// handle all other messages in the protocol
-					// processor class
-					MessageProtocol.process(this, inputLine);
+				// one flush for everything queued together
+				if (this.outbound.isEmpty())
+					this.out.flush();
+			}
+			this.out.flush();
+		} catch (IOException | InterruptedException e) {
+			// the reading thread finds out the socket is gone
+			this.outbound.clear();
+		}
+		closeSocket();
+	}
 
-				}
+	/**
+	 * Threaded loop for all messages
+	 */
+	public void run() {
+		FrameDecoder decoder = new FrameDecoder();
+		byte[] buf = new byte[4096];
+		ByteBuffer wrapped = ByteBuffer.wrap(buf);
+		int n;
+		try {
+			while ((n = this.in.read(buf)) >= 0) {
+				wrapped.limit(n).position(0);
+				decoder.decode(wrapped, this);
 			}
 		} catch (SocketException e) {
 			
-			System.out.println("Connection lost to " + this.socket.getInetAddress());
-			MessageProtocol.sendDisconnect(this);
+			disconnected();
 			
 		} catch (IOException e) {
 			
 			System.out.println("Bad message from client "
 					+ this.socket.getInetAddress());
 			e.printStackTrace();
+			disconnected();
+			
+		} catch (RuntimeException e) {
+			
+			System.out.println("Failed on message from client "
+					+ this.socket.getInetAddress());
+			e.printStackTrace();
+			disconnected();
+			
+		}
+		disconnected();
 		
+		// nothing more can be written, let the writer go
+		this.outbound.clear();
+	}
+
+	/**
+	 * Handle a line from the client
+	 * 
+	 * @param line parsed in place, only valid during the call
+	 * @throws IOException if the line is not valid
+	 */
+	public void receive(LineParser line) throws IOException {
+		if (MonsterServer.DEBUG) 
+			System.out.println("MSG: " + line);
+
+		// handle the messages in the protocol processor class
+		MessageProtocol.process(this, line);
+	}
+	
+	/**
+	 * The client is ready to start, counted once
+	 */
+	void ready() {
+		if (!this.isReady) {
+			this.isReady = true;
+			this.server.addReady();
 		}
+	}
+
+	/**
+	 * Handle a binary frame from the client
+	 * 
+	 * @param type
+	 * @param payload
+	 * @throws IOException if the frame is not valid
+	 */
+	public void receiveFrame(int type, ByteBuffer payload) throws IOException {
+		if (type == BinaryProtocol.READY) {
+			ready();
+		} else {
+			MessageProtocol.processFrame(this, type, payload);
+		}
+	}
+
+	/**
+	 * The connection to the client has been lost
+	 */
+	public synchronized void disconnected() {
+		if (!this.connected)
+			return;
 		this.connected = false;
+		System.out.println("Connection lost to " + (this.socket != null
+				? this.socket.getInetAddress() : this.connection.getAddress()));
+		MessageProtocol.sendDisconnect(this);
+		releaseUdp();
+		if (this.server != null)
+			this.server.left(this);
 	}
 
 	/**
@@ -127,6 +402,15 @@ public class NetworkPlayer extends Thread {
 		return this.player;
 	}
 	
+	/**
+	 * Get the room the player is in
+	 * 
+	 * @return room
+	 */
+	public NetworkServer getServer() {
+		return this.server;
+	}
+	
 	/**
 	 * Get the player's ID
 	 * 
@@ -136,6 +420,135 @@ public class NetworkPlayer extends Thread {
 		return this.id;
 	}
 
+	/**
+	 * Switch the messages sent to the client to binary frames
+	 * 
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	public boolean isReady() {
+		return this.isReady;
+	}
+	
+	public boolean isBinary() {
+		return this.binary;
+	}
+	
+	/**
+	 * Mark the client as having said which protocol it speaks,
+	 * binary or not
+	 */
+	public void setHello() {
+		this.hello = true;
+	}
+	
+	/**
+	 * Check if the client is from before proto: lines, and is sent
+	 * the first monster as mv:0 in place of mon:
+	 * 
+	 * @return true if it never said which protocol it speaks
+	 */
+	public boolean isLegacy() {
+		return !this.hello && !this.binary;
+	}
+	
+	/**
+	 * Mark the world as sent to the client, with the room locked
+	 * 
+	 * @param hasWorld
+	 */
+	void setHasWorld(boolean hasWorld) {
+		this.hasWorld = hasWorld;
+	}
+	
+	boolean hasWorld() {
+		return this.hasWorld;
+	}
+	
+	/**
+	 * Get the limiter of the client's moves
+	 * 
+	 * @return limiter, or null if they are not limited
+	 */
+	public MoveLimiter getMoveLimiter() {
+		return this.moves;
+	}
+	
+	/**
+	 * Send the client snapshots instead of each move
+	 * 
+	 * @param snapshots
+	 */
+	public void setSnapshots(boolean snapshots) {
+		this.snapshots = snapshots;
+	}
+	
+	public boolean usesSnapshots() {
+		return this.snapshots;
+	}
+	
+	/**
+	 * Set the last snapshot the client has applied, the base of
+	 * the next one sent
+	 * 
+	 * @param seq
+	 */
+	public void setAckedSnapshot(int seq) {
+		this.ackedSnapshot = seq;
+	}
+	
+	public int getAckedSnapshot() {
+		return this.ackedSnapshot;
+	}
+	
+	/**
+	 * Send positions to the client by datagram from now on
+	 * 
+	 * @param address the client's UDP socket
+	 */
+	public void setUdpAddress(SocketAddress address) {
+		this.udpAddress = address;
+	}
+	
+	public SocketAddress getUdpAddress() {
+		return this.udpAddress;
+	}
+	
+	/**
+	 * Remember the token the client was given, giving up any it had
+	 * before
+	 * 
+	 * @param token
+	 */
+	void setUdpToken(int token) {
+		unregister(this.udpToken.getAndSet(token));
+	}
+	
+	/**
+	 * Give up the client's token, so no more datagrams are taken
+	 * for it
+	 */
+	void releaseUdp() {
+		unregister(this.udpToken.getAndSet(-1));
+	}
+	
+	private void unregister(int token) {
+		UdpTransport udp = this.server != null ? this.server.getUdp() : null;
+		if (token >= 0 && udp != null)
+			udp.unregister(token);
+	}
+	
+	void setUdpSeq(int seq) {
+		this.udpSeq = seq;
+	}
+	
+	int getUdpSeq() {
+		return this.udpSeq;
+	}
+
 	/**
 	 * Set player's time
 	 * 
@@ -1,10 +1,7 @@
 package monster.java.server.net;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Scanner;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -12,205 +9,525 @@ import static org.junit.Assert.*;
 import monster.java.server.MonsterServer;
 import monster.java.server.world.Entity;
 import monster.java.server.world.Monster;
+import monster.java.server.world.MonsterGroup;
 
-public class NetworkServer extends Thread {
+/**
+ * One game, a room of a RoomManager. Players are put in the room
+ * as they connect until the game starts, and the room plays it
+ * out with its own world, monsters and tick rate, sharing nothing
+ * with the other rooms but the sockets and, read only, the map.
+ *
+ * A room has no thread of its own. Its lobby, ticks and flushes
+ * are tasks on the event loop it was placed on, the same thread
+ * that reads its players' connections, so a tick never waits on
+ * another thread's lock and the loop is free between ticks.
+ *
+ * The lobby moves on as the messages it waits for come in: the
+ * game begins as soon as the last player in a full room is ready,
+ * and the results go out as soon as the last time is in. Timers
+ * only cap the wait for a client that never sends them.
+ */
+public class NetworkServer {
+	// Most players a game can take
+	public static final int MAX_PLAYERS = 4;
 
-	private int port;
-	private ServerSocket serverSocket;
+	// Most ms a full room waits for players that are not yet ready
+	// before beginning anyway, and ms from the begin message to the
+	// monsters' first move, so players can move around first
+	private static final int READY_WAIT = 1000;
+	private static final int FIRST_TICK_DELAY = 5000;
+	
+	// ms the game pauses after a player dies
+	private static final int KILL_PAUSE = 1000;
+	
+	// Most ms the results wait for the last players' times
+	private static final int END_WAIT = 5000;
+
+	/**
+	 * Where a room is in its life. Each step is taken as soon as
+	 * the message it waits for comes in, timers only cap how long
+	 * it waits for a client that never sends it
+	 */
+	private enum State {
+		// taking players, until full or enough are ready
+		JOINING,
+		// full, waiting for every player to be ready
+		STARTING,
+		PLAYING,
+		// every player is dead, waiting for their times
+		ENDING,
+		CLOSED
+	}
+
+	private String name = "Room";
+	private RoomManager manager;
+	private NioTransport loop;
+	private String worldFile;
+	private Broadcaster broadcaster;
+	private Snapshots snapshots;
 	private ArrayList<NetworkPlayer> players;
-	private int readyPlayers = 0;
-	private Monster monster;
+	private volatile int readyPlayers = 0;
+	private MonsterGroup monsters;
 	private String[] world;
-	private int numPlayers = 5;
+	private EncodedWorld map;
+	private volatile int numPlayers = 5;
+	
+	// Guarded by the room
+	private State state = State.JOINING;
+	
+	// ms between monster moves, shorter every tick
+	private int monTick = MonsterServer.MON_TICK;
+	private int numMonsters = MonsterServer.NUM_MONSTERS;
+	
+	// ns a tick takes, averaged, for placing rooms on loops
+	private volatile double tickCost = 0;
 
-	public NetworkServer(int port) {
-		this.port = port;
+	/**
+	 * Create a room with no players, open for them to join
+	 * 
+	 * @param manager hosting the room, or null for a room on its own
+	 * @param worldFile world to play on, from the class path
+	 * @param loop to run the room on, or null for a room that is
+	 *            never played, where broadcasts go out straight away
+	 */
+	public NetworkServer(RoomManager manager, String worldFile, NioTransport loop) {
+		this.manager = manager;
+		this.worldFile = worldFile;
+		this.loop = loop;
 		this.players = new ArrayList<NetworkPlayer>();
+		this.snapshots = new Snapshots();
+		this.broadcaster = new Broadcaster(this.players, MonsterServer.BROADCAST_TICK,
+				this.snapshots, loop);
+		if (getUdp() != null)
+			this.broadcaster.setUdp(getUdp());
+	}
+	
+	/**
+	 * Create a room on its own, for benchmarks and testing
+	 */
+	public NetworkServer() {
+		this(null, MonsterServer.WORLD, null);
+	}
+	
+	/**
+	 * Run a task on the room's loop
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (this.loop != null)
+			this.loop.execute(task);
+		else
+			task.run();
+	}
+	
+	/**
+	 * Run a task on the room's loop after a delay
+	 * 
+	 * @param task
+	 * @param delayMs
+	 */
+	void schedule(Runnable task, long delayMs) {
+		this.loop.schedule(task, delayMs);
 	}
 	
 	/**
-	 * Broadcast a message to all connected players
+	 * Broadcast a message to all connected players. Called from the
+	 * connection threads as well as the game loop
 	 * 
 	 * @param msg
 	 */
 	public void broadcast(String msg) {
-		for (NetworkPlayer client : players) {
-			client.send(msg);
-		}
+		broadcast(msg, null);
+	}
+	
+	/**
+	 * Broadcast a message as text to the players using text, and
+	 * as a binary frame to the rest. The message is batched and
+	 * goes out with the rest of the tick's, or straight away when
+	 * the room isn't batching
+	 * 
+	 * @param msg
+	 * @param frame the same message encoded by BinaryProtocol
+	 */
+	public void broadcast(String msg, byte[] frame) {
+		this.broadcaster.add(msg, frame);
+		if (!this.broadcaster.isBatching())
+			this.broadcaster.flush();
+	}
+	
+	/**
+	 * Broadcast a move, which players taking snapshots get as part
+	 * of their next snapshot instead
+	 * 
+	 * @param msg
+	 * @param frame the same message encoded by BinaryProtocol
+	 * @param entities what the move is for, as OutboundQueue marks
+	 *            moves
+	 */
+	public void broadcastPosition(String msg, byte[] frame, long entities) {
+		broadcastPosition(msg, msg, frame, entities);
+	}
+	
+	/**
+	 * Broadcast a move, as a different text line to clients from
+	 * before proto: lines
+	 * 
+	 * @param msg
+	 * @param legacy text line for old clients, may be empty
+	 * @param frame the same message encoded by BinaryProtocol
+	 * @param entities what the move is for, as OutboundQueue marks
+	 *            moves
+	 */
+	public void broadcastPosition(String msg, String legacy, byte[] frame, long entities) {
+		this.broadcaster.addPosition(msg, legacy, frame, entities);
+		if (!this.broadcaster.isBatching())
+			this.broadcaster.flush();
+	}
+	
+	/**
+	 * Get the highest binary protocol version the server can speak.
+	 * Snapshots are sent on the broadcast tick, so without one
+	 * clients are held to the version before them
+	 * 
+	 * @return version
+	 */
+	public int getProtocolVersion() {
+		if (MonsterServer.SNAPSHOTS && MonsterServer.BROADCAST_TICK > 0)
+			return BinaryProtocol.VERSION;
+		return BinaryProtocol.SNAPSHOT_VERSION - 1;
+	}
+	
+	/**
+	 * Send the messages batched so far without waiting for the
+	 * flush interval
+	 */
+	public void flushBroadcasts() {
+		this.broadcaster.flush();
 	}
 
 	/**
-	 * Increment the ready counter to break from the initialization loop.
+	 * Increment the ready counter, which may start the game
 	 */
 	public void addReady() {
-		this.readyPlayers++;
-		System.out.println(this.readyPlayers + " player(s) ready.");
+		synchronized (this) {
+			this.readyPlayers++;
+			System.out.println(getName() + ": " + this.readyPlayers + " player(s) ready.");
+		}
+		checkStart();
+		checkReady();
 	}
 	
+	/**
+	 * Set the number of players the game is for, letting the
+	 * players waiting for it in
+	 * 
+	 * @param numPlayers
+	 */
 	public void setNumPlayers(int numPlayers) {
-		this.numPlayers = numPlayers;
+		synchronized (this) {
+			this.numPlayers = numPlayers;
+		}
+		checkStart();
+		if (this.manager != null)
+			this.manager.seat();
 	}
 	
 	/**
-	 * Load world from file, set it to the world attr and return it
-	 * to send to clients
-	 * @return
-	 * @throws FileNotFoundException
+	 * Check if the first player is in but has yet to say how many
+	 * are playing
+	 * 
+	 * @return true while players should wait to join
 	 */
-	private String loadWorld() {
-		Scanner in;
-		try {
-			in = new Scanner(getClass().getClassLoader().getResource("world.txt").openStream());
-			StringBuilder sb = new StringBuilder();
-			
-			while (in.hasNextLine()) {
-				sb.append(in.nextLine() + ",");
-			}
-			
-			world = sb.toString().split(",");
-			
-			in.close();
-			return sb.toString();
-		} catch (IOException e) {
-			e.printStackTrace();
+	public synchronized boolean isWaitingForCount() {
+		return this.state == State.JOINING && this.numPlayers == 5 && !this.players.isEmpty();
+	}
+	
+	/**
+	 * Put a player connected on a socket in the room
+	 * 
+	 * @param socket
+	 * @return player, or null if the room no longer takes players
+	 */
+	public NetworkPlayer join(Socket socket) {
+		NetworkPlayer player = join(socket, null);
+		if (player != null)
+			checkStart();
+		return player;
+	}
+	
+	/**
+	 * Put a player connected through a NioTransport in the room
+	 * 
+	 * @param connection
+	 * @return player, or null if the room no longer takes players
+	 */
+	public NetworkPlayer join(NioConnection connection) {
+		NetworkPlayer player = join(null, connection);
+		if (player != null)
+			checkStart();
+		return player;
+	}
+	
+	private synchronized NetworkPlayer join(Socket socket, NioConnection connection) {
+		int i = this.players.size();
+		if (this.state != State.JOINING || i >= Math.min(this.numPlayers, MAX_PLAYERS))
+			return null;
+		
+		// add new NetworkPlayer object to list
+		NetworkPlayer player = socket != null ? new NetworkPlayer(socket, i, this)
+				: new NetworkPlayer(connection, i, this);
+		synchronized (this.players) {
+			this.players.add(player);
+		}
+		
+		// Name the map to the client, the world and its number
+		// follow once it says whether it has the map
+		if (this.map == null) {
+			this.map = EncodedWorld.load(this.worldFile);
+			this.world = this.map.getRows();
+		}
+		player.setName("Player " + (i + 1));
+		if (this.loop == null) {
+			sendWorld(player, false, 0);
+		} else {
+			MessageProtocol.sendMap(player, this.map.getHash());
+			this.loop.schedule(() -> sendWorld(player, false, 0), MonsterServer.WORLD_WAIT);
+		}
+		return player;
+	}
+	
+	/**
+	 * Start the game once every player is in and ready, or enough
+	 * of them, and stop taking players. Checked whenever a player
+	 * joins, is ready or the count is set
+	 */
+	private void checkStart() {
+		synchronized (this) {
+			int n = this.players.size();
+			// wait while less than 4 players and not all players are ready
+			if (this.state != State.JOINING || n == 0 || (!(this.numPlayers == 1 && n == 1)
+					&& (this.readyPlayers == 0 || (this.readyPlayers < this.numPlayers
+					&& n < this.numPlayers))))
+				return;
+			this.state = State.STARTING;
+		}
+		if (this.manager != null)
+			this.manager.started(this);
+		
+		System.out.println(getName() + ": " + this.players.size()
+				+ " players ready, starting game.");
+		this.loop.schedule(this::begin, READY_WAIT);
+		checkReady();
+	}
+	
+	/**
+	 * Begin the game as soon as every player still connected is
+	 * ready. Checked when the game starts, and whenever a player is
+	 * ready or leaves
+	 */
+	private void checkReady() {
+		synchronized (this) {
+			if (this.state != State.STARTING)
+				return;
+			for (NetworkPlayer player : this.players)
+				if (player.connected && !player.isReady())
+					return;
+		}
+		execute(this::begin);
+	}
+	
+	/**
+	 * Send the results as soon as every player still connected has
+	 * sent its time. Checked when the last player dies, and whenever
+	 * a time comes in or a player leaves
+	 */
+	void checkTimes() {
+		synchronized (this) {
+			if (this.state != State.ENDING)
+				return;
+			for (NetworkPlayer player : this.players)
+				if (player.connected && player.time == 0)
+					return;
 		}
-		return "";
+		execute(this::end);
 	}
 	
 	/**
+	 * A player's connection has been lost, which the room may have
+	 * been waiting on
 	 * 
+	 * @param player
 	 */
-	public void close() {
-		try {
-			this.serverSocket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	void left(NetworkPlayer player) {
+		checkReady();
+		checkTimes();
+	}
+	
+	/**
+	 * Send a joining player the world, then its number. A client
+	 * that knows map hashes answers the map: line, and is sent the
+	 * map compressed unless it says it has it. One that has not
+	 * answered in WORLD_WAIT ms gets the world as a text line, as
+	 * clients always have. Only the first of these sends anything
+	 * 
+	 * @param player
+	 * @param answered true if the client answered the map: line
+	 * @param cached hash the client has the map for, 0 for none
+	 */
+	void sendWorld(NetworkPlayer player, boolean answered, long cached) {
+		synchronized (this) {
+			if (player.hasWorld())
+				return;
+			player.setHasWorld(true);
 		}
+		if (!answered)
+			player.send(this.map.getText());
+		else if (cached != this.map.getHash())
+			player.send(this.map.getFrame());
+		player.send("player:" + (player.getID() - 1));
 	}
-
+	
 	/**
-	 * Initialize connections with player clients, and create new threads for
-	 * each ongoing conversation.
+	 * Stop the room's broadcasts, once its game is over
 	 */
-	public void init() {
-
-		try {
-			System.out.println("Working Directory = " +
-		              System.getProperty("user.dir"));
-			
-			// Create the server socket
-			this.serverSocket = new ServerSocket(this.port);
-
-			System.out.println("Waiting for players on port " + this.port);
-			
-			int i = 0;
-			// loop while less than 4 players and not all players are ready
-			while (!(this.numPlayers == 1 && this.players.size() == 1) && (this.readyPlayers == 0
-					|| (this.readyPlayers < this.numPlayers 
-					&& i < this.numPlayers))) {
-				// add new NetworkPlayer object to list
-				this.players.add(new NetworkPlayer(this.serverSocket.accept(),
-						i));
-				
-				// Send an initial message to the client
-				MessageProtocol.sendWorld(this.players.get(i), loadWorld());
-				this.players.get(i).send("player:" + i);
-				this.players.get(i).setName("Player " + (i + 1));
-				
-				// sleep until the num players is set by p1
-				if (i == 0) {
-					//System.out.println("Waiting for player count...");
-					while (this.numPlayers == 5) {
-						Thread.sleep(1000);
-					}
+	public void close() {
+		synchronized (this) {
+			this.state = State.CLOSED;
+		}
+		this.broadcaster.close();
+		if (this.monsters != null)
+			this.monsters.close();
+		synchronized (this.players) {
+			for (NetworkPlayer player : this.players)
+				player.releaseUdp();
+		}
+		if (MonsterServer.DEBUG) {
+			System.out.println(getName() + ": broadcast " + this.broadcaster.getMessages()
+					+ " messages in " + this.broadcaster.getFlushes() + " batches");
+			synchronized (this.players) {
+				for (NetworkPlayer player : this.players) {
+					OutboundQueue queue = player.getOutbound();
+					if (queue != null)
+						System.out.println("Player " + player.getID() + " queue: peak "
+								+ queue.getPeakBytes() + " bytes, " + queue.getDropped()
+								+ " of " + queue.getAdded() + " messages dropped");
+					if (player.getMoveLimiter() != null)
+						System.out.println("Player " + player.getID() + " moves: "
+								+ player.getMoveLimiter().getStats());
 				}
-				i++;
 			}
-			
-			System.out.println(i + " players ready, starting game.");
-			
-			Thread.sleep(1000);
-			
-			MessageProtocol.sendBegin();
-			
-			// Create the Monster
-			monster = new Monster(world);
-			monster.setPos((int) Math.ceil(world.length/2), 
-						   (int) Math.ceil(world.length/2));
-
-		} catch (IOException e) {
-
-			System.out.println("Error connecting to players.");
-			e.printStackTrace();
+		}
+		if (this.manager != null)
+			this.manager.ended(this);
+	}
 
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * Begin the game and create the monsters, which first move
+	 * once the players have had time to move around
+	 */
+	private void begin() {
+		synchronized (this) {
+			if (this.state != State.STARTING)
+				return;
+			this.state = State.PLAYING;
 		}
+		MessageProtocol.sendBegin(this);
+		flushBroadcasts();
+		
+		// Create the Monsters
+		monsters = new MonsterGroup(world, this.numMonsters);
+		MessageProtocol.sendMonsterMoves(this, monsters.getMonsters());
+		this.snapshots.setMonsters(monsters.getMonsters());
+		this.broadcaster.setMonsters(monsters.getMonsters());
+		
+		// Wait BEFORE moving so players can't easily move away
+		this.loop.schedule(this::tick, FIRST_TICK_DELAY + Math.max(165, this.monTick));
 	}
 
 	/**
-	 * Server-side game loop
+	 * Server-side game tick, scheduling the next until every
+	 * player is dead or gone
 	 */
-	public void run() {
-		this.init();
+	private void tick() {
+		long start = System.nanoTime();
+		long delay = 0;
 		
-		boolean exit = false;
+		// Begin the AI movement
+		monsters.moveToPlayers(players);
+		MessageProtocol.sendMonsterMoves(this, monsters.getMonsters());
 		
-		// Allow players to move around before monster
-		this.sleepn(5);
+		// Increase the speed by 1%
+		this.monTick = (int) Math.ceil(this.monTick*0.99);
 		
-		while(!exit) {
-			// Sleep BEFORE moving so players can't easily move away
-			try {
-				Thread.sleep(Math.max(165, MonsterServer.MON_TICK));
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			
-			// Begin the AI movement
-			monster.moveToPlayer(players);
-			
-			// Increase the speed by 1%
-			MonsterServer.MON_TICK = (int) Math.ceil(MonsterServer.MON_TICK*0.99);
-			
-			for (NetworkPlayer player : this.players) {
-				Entity playerObj = player.getPlayer();
-				if (playerObj.isAlive()) {
-					if (playerObj.X() == monster.X() && playerObj.Y() == monster.Y()) {
-						// if player at monster's position, broadcast the
-						// kill message and remove the player from the array
-						MessageProtocol.sendKill(player);
-						playerObj.kill();
-						playerObj.setRank(numAlivePlayers());
-						System.out.println("Player " + player.getID() + " died.");
-						sleepn(1);
-					}
+		for (NetworkPlayer player : this.players) {
+			Entity playerObj = player.getPlayer();
+			if (playerObj.isAlive()) {
+				if (monsters.isMonsterOn(playerObj)) {
+					// if player at monster's position, broadcast the
+					// kill message and remove the player from the array
+					MessageProtocol.sendKill(player);
+					playerObj.kill();
+					playerObj.setRank(numAlivePlayers());
+					System.out.println(getName() + ": player " + player.getID() + " died.");
+					delay += KILL_PAUSE;
 				}
 			}
-			
-			// all players are dead, exit
-			if (numAlivePlayers() == 0)
-				exit = true;
-			
-			// no players are connected, destroy the socket
-			// and exit
-			if (numConnectedPlayers() == 0) {
-				this.close();
+		}
+		
+		// send the tick's moves and deaths together
+		flushBroadcasts();
+		
+		long cost = System.nanoTime() - start;
+		this.tickCost = this.tickCost == 0 ? cost : 0.9 * this.tickCost + 0.1 * cost;
+		
+		// no players are connected, end the room
+		if (numConnectedPlayers() == 0) {
+			this.close();
+			return;
+		}
+		
+		// all players are dead, wait for their times
+		if (numAlivePlayers() == 0) {
+			this.loop.schedule(this::ending, delay);
+			return;
+		}
+		
+		// Sleep BEFORE moving so players can't easily move away
+		this.loop.schedule(this::tick, delay + Math.max(165, this.monTick));
+	}
+	
+	/**
+	 * Wait for every player's time, the results going out when the
+	 * last comes in or after END_WAIT without it
+	 */
+	private void ending() {
+		synchronized (this) {
+			this.state = State.ENDING;
+		}
+		this.loop.schedule(this::end, END_WAIT);
+		checkTimes();
+	}
+	
+	/**
+	 * Send the results, then close the connections and the room
+	 */
+	private void end() {
+		synchronized (this) {
+			if (this.state != State.ENDING)
 				return;
-			}
-			
+			this.state = State.CLOSED;
 		}
 		
 		// create and send win message
-		String winMsg = "end:";
+		NetworkPlayer[] ranked = new NetworkPlayer[this.players.size()];
+		float[] times = new float[this.players.size()];
 		for (int i = 0; i < this.players.size(); i++) {
-			// try to wait for last player to send their message...
-			while (this.players.get(i).time == 0) sleepn(1);
-			winMsg = winMsg + getRankedPlayer(i).getName() + ":" + this.players.get(i).time + ",";
+			ranked[i] = getRankedPlayer(i);
+			times[i] = this.players.get(i).time;
 		}
-		// replace last comma with semi
-		winMsg = winMsg.substring(0, winMsg.length() - 1) + ";";
-		this.broadcast(winMsg);
+		MessageProtocol.sendEnd(this, ranked, times);
+		flushBroadcasts();
 		
 		// close connections
 		for (NetworkPlayer player : this.players) {
@@ -247,6 +564,54 @@ public class NetworkServer extends Thread {
 	}
 	
 	/* * * Getters and Setters * * */
+	public String getName() {
+		return this.name;
+	}
+	
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Get the loop the room runs on
+	 * 
+	 * @return loop, null for a room that is never played
+	 */
+	public NioTransport getLoop() {
+		return this.loop;
+	}
+	
+	/**
+	 * Get the share of a loop the room's ticks take, from the
+	 * average tick's time over the time between ticks
+	 * 
+	 * @return fraction of a core, 0 before the first tick
+	 */
+	public double getLoad() {
+		return this.tickCost / (Math.max(165, this.monTick) * 1e6);
+	}
+	
+	public UdpTransport getUdp() {
+		return this.manager != null ? this.manager.getUdp() : null;
+	}
+	
+	/**
+	 * Set the ms between monster moves the game starts at
+	 * 
+	 * @param monTick
+	 */
+	public void setMonTick(int monTick) {
+		this.monTick = monTick;
+	}
+	
+	public int getMonTick() {
+		return this.monTick;
+	}
+	
+	public void setNumMonsters(int numMonsters) {
+		this.numMonsters = numMonsters;
+	}
+	
 	public String[] getWorld() {
 		return this.world;
 	}
@@ -255,33 +620,40 @@ public class NetworkServer extends Thread {
 		return this.world.length;
 	}
 	
+	/**
+	 * Check if a position is on the map, wall or not
+	 * 
+	 * @param x
+	 * @param y
+	 * @return true if on the map, or no map is loaded yet
+	 */
+	public boolean isOnMap(int x, int y) {
+		String[] world = this.world;
+		if (world == null)
+			return true;
+		return x >= 0 && y >= 0 && y < world.length && x < world[y].length();
+	}
+	
 	/* * * JUnit Testing Below * * */
 	@Test
 	public void monsterInDomain() {
-		// Verify that monster does not move outside the grid
-		
-		// Check left boundary
-		assertTrue(monster.X() > 0);
-		
-		// Check top boundary
-		assertTrue(monster.Y() > 0);
-		
-		// Check right boundary
-		assertTrue(monster.X() < getWorldSize());
-		
-		// Check bottom boundary
-		assertTrue(monster.Y() < getWorldSize());
-	}
-	
-	private void sleepn(float n) {
-		try {
-			Thread.sleep((int) (n * 1000));
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		// Verify that no monster moves outside the grid
+		for (Monster monster : monsters.getMonsters()) {
+			
+			// Check left boundary
+			assertTrue(monster.X() > 0);
+			
+			// Check top boundary
+			assertTrue(monster.Y() > 0);
+			
+			// Check right boundary
+			assertTrue(monster.X() < getWorldSize());
+			
+			// Check bottom boundary
+			assertTrue(monster.Y() < getWorldSize());
 		}
 	}
-		
+	
 	@Test
 	public void gameStartWithMaxPlayers() {
 		// Verify that the game does not start until the specified number of players join
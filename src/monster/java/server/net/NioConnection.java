@@ -0,0 +1,323 @@
+package monster.java.server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One client connection served by a NioTransport. Bytes read are
+ * cut into lines and frames and handed to the connection's
+ * NetworkPlayer. Messages sent by the game are queued from any
+ * thread and written out by the I/O thread.
+ *
+ * A connection is accepted by the listening loop and moved to the
+ * loop of the room its player joins, so the player's input is
+ * handled on the same thread as the room's tick.
+ */
+public class NioConnection {
+	private volatile NioTransport transport;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private NetworkPlayer player;
+	private String address;
+
+	private FrameDecoder decoder = new FrameDecoder();
+
+	// Bytes that arrived before a player was attached, at most
+	// LineParser.MAX_LINE as a client may wait long to be seated
+	private ByteArrayOutputStream early = new ByteArrayOutputStream();
+
+	// Messages waiting to be written, and the one being written
+	private OutboundQueue outbound = new OutboundQueue();
+	private byte[] current;
+	private int offset;
+
+	// Pooled buffer holding bytes the socket hasn't taken yet
+	private ByteBuffer pending;
+
+	private volatile boolean open = true;
+
+	public NioConnection(NioTransport transport, SocketChannel channel) {
+		this.transport = transport;
+		this.channel = channel;
+		try {
+			this.address = channel.getRemoteAddress().toString();
+		} catch (IOException e) {
+			this.address = "unknown";
+		}
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Attach the player the connection's messages go to, and hand it
+	 * anything that arrived before it. Called from the game thread
+	 * 
+	 * @param player
+	 */
+	public void attach(NetworkPlayer player) {
+		attach(player, null);
+	}
+	
+	/**
+	 * Attach the player and move the connection to the loop of the
+	 * player's room
+	 * 
+	 * @param player
+	 * @param loop to serve the connection from, or null to stay
+	 */
+	public void attach(NetworkPlayer player, NioTransport loop) {
+		transport.execute(() -> {
+			this.player = player;
+			if (loop == null || loop == transport) {
+				decodeEarly();
+				return;
+			}
+			
+			// Nothing is read until the new loop has registered
+			// it, writes asked of this loop are left to that one
+			if (key != null)
+				key.cancel();
+			key = null;
+			transport = loop;
+			loop.execute(() -> {
+				if (!open)
+					return;
+				try {
+					loop.register(this);
+				} catch (IOException e) {
+					disconnected();
+					return;
+				}
+				decodeEarly();
+				if (hasOutbound())
+					loop.wantWrite(this);
+			});
+		});
+	}
+	
+	private void decodeEarly() {
+		decode(ByteBuffer.wrap(early.toByteArray()));
+		early = null;
+	}
+
+	/**
+	 * Queue a line to be sent, from any thread
+	 * 
+	 * @param msg
+	 */
+	public void send(String msg) {
+		send((msg + "\n").getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Queue encoded bytes to be sent as they are, from any thread.
+	 * The array must not be changed afterwards, it may be shared
+	 * between connections
+	 * 
+	 * @param msg
+	 */
+	public void send(byte[] msg) {
+		send(msg, 0);
+	}
+
+	/**
+	 * Queue encoded bytes, from any thread
+	 * 
+	 * @param msg
+	 * @param entities what the moves are for, as OutboundQueue
+	 *            marks them, or 0 if not moves
+	 */
+	public void send(byte[] msg, long entities) {
+		if (!open || !outbound.add(msg, entities))
+			return;
+		transport.wantWrite(this);
+	}
+
+	/**
+	 * Get the messages waiting to be written
+	 * 
+	 * @return queue
+	 */
+	public OutboundQueue getOutbound() {
+		return this.outbound;
+	}
+
+	/**
+	 * Pass the bytes read on to the player, or keep them until
+	 * one is attached
+	 * 
+	 * @param in buffer flipped for reading
+	 */
+	void received(ByteBuffer in) {
+		if (player == null) {
+			if (early.size() + in.remaining() > LineParser.MAX_LINE) {
+				System.out.println("Too much sent before joining by client " + getAddress());
+				disconnected();
+				return;
+			}
+			while (in.hasRemaining())
+				early.write(in.get());
+			return;
+		}
+		decode(in);
+	}
+
+	private void decode(ByteBuffer in) {
+		if (!open)
+			return;
+		try {
+			decoder.decode(in, player);
+		} catch (IOException e) {
+			System.out.println("Bad message from client " + getAddress());
+			e.printStackTrace();
+			disconnected();
+		} catch (RuntimeException e) {
+			// the game failing on one client's message drops that
+			// client, not the loop and every room on it
+			System.out.println("Failed on message from client " + getAddress());
+			e.printStackTrace();
+			disconnected();
+		}
+	}
+
+	/**
+	 * Write as much of the queue as the socket will take
+	 * 
+	 * @param pool
+	 * @return true if everything queued was written
+	 * @throws IOException
+	 */
+	boolean flush(BufferPool pool) throws IOException {
+		while (true) {
+			if (pending == null) {
+				pending = pool.acquire();
+				fill(pending);
+				pending.flip();
+				if (!pending.hasRemaining()) {
+					pool.release(pending);
+					pending = null;
+					return true;
+				}
+			}
+
+			channel.write(pending);
+			if (pending.hasRemaining())
+				return false;
+
+			pool.release(pending);
+			pending = null;
+		}
+	}
+
+	/**
+	 * Copy queued messages into a buffer, splitting any that
+	 * doesn't fit over several buffers
+	 * 
+	 * @param buffer
+	 */
+	private void fill(ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			if (current == null) {
+				current = outbound.poll();
+				if (current == null)
+					return;
+				offset = 0;
+			}
+
+			int n = Math.min(buffer.remaining(), current.length - offset);
+			buffer.put(current, offset, n);
+			offset += n;
+			if (offset == current.length)
+				current = null;
+		}
+	}
+
+	/**
+	 * Check if there is anything left to write
+	 * 
+	 * @return true if messages are queued or partly written
+	 */
+	boolean hasOutbound() {
+		return pending != null || current != null || !outbound.isEmpty();
+	}
+
+	/**
+	 * The client has gone, or sent something that can't be handled
+	 */
+	void disconnected() {
+		if (!open)
+			return;
+		close();
+		if (player != null)
+			player.disconnected();
+	}
+
+	/**
+	 * Close the connection, from any thread. Whatever the socket
+	 * will take of the queue is written first, so the last messages
+	 * sent before a close still go out
+	 */
+	public void close() {
+		if (!open)
+			return;
+		open = false;
+		transport.execute(this::closeChannel);
+	}
+	
+	private void closeChannel() {
+		// moved while the close was on its way
+		if (Thread.currentThread() != transport) {
+			transport.execute(this::closeChannel);
+			return;
+		}
+		
+		try {
+			flush(transport.getPool());
+		} catch (IOException e) {
+			// gone already
+		}
+		outbound.clear();
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (pending != null) {
+			transport.getPool().release(pending);
+			pending = null;
+		}
+	}
+
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	SelectionKey getKey() {
+		return this.key;
+	}
+
+	NioTransport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Get the remote address of the client
+	 * 
+	 * @return address
+	 */
+	public String getAddress() {
+		return this.address;
+	}
+}
@@ -0,0 +1,388 @@
+package monster.java.server.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Non-blocking transport: one I/O thread serves client
+ * connections through a Selector, instead of a thread per player
+ * blocked on readLine.
+ * 
+ * Accepted connections are queued for the game to take. Lines
+ * read are handed straight to the connection's NetworkPlayer on
+ * the I/O thread, the same handling the per player threads did.
+ * Lines sent from any thread are queued on the connection and
+ * written out here through pooled direct buffers.
+ * 
+ * The thread is also an event loop for the rooms placed on it,
+ * running their ticks and flushes as timed tasks between
+ * selects. A loop made without a port only serves connections
+ * moved to it, those of its rooms' players.
+ */
+public class NioTransport extends Thread {
+	// Size of the read buffer and of each pooled write buffer
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	// Connections the OS may hold before they are accepted
+	private static final int BACKLOG = 1024;
+
+	// Write buffers kept around for reuse
+	private static final int MAX_FREE_BUFFERS = 256;
+
+	// ms to stop accepting for after an accept fails, as when out
+	// of file descriptors, so the loop doesn't spin on it
+	private static final int ACCEPT_RETRY = 100;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+
+	// Reused for every read, only the I/O thread reads
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private BufferPool pool = new BufferPool(BUFFER_SIZE, MAX_FREE_BUFFERS);
+
+	// Connections accepted but not yet taken by the game
+	private LinkedBlockingQueue<NioConnection> accepted = new LinkedBlockingQueue<NioConnection>();
+
+	// Connections with new lines to write, and other work for the
+	// I/O thread, queued from other threads
+	private ConcurrentLinkedQueue<NioConnection> writable = new ConcurrentLinkedQueue<NioConnection>();
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	// Timed tasks, soonest first, only touched by the I/O thread
+	private PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+	private long timersAdded = 0;
+
+	private volatile boolean running = true;
+
+	// ns spent outside select, for the DEBUG output
+	private long busy = 0;
+
+	/**
+	 * A task to run once its time has come
+	 */
+	private static class Timer implements Comparable<Timer> {
+		long due;
+		long order;
+		Runnable task;
+
+		Timer(long due, long order, Runnable task) {
+			this.due = due;
+			this.order = order;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other) {
+			if (due != other.due)
+				return Long.compare(due - other.due, 0);
+			return Long.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * Open the listening socket. Call start to begin serving
+	 * 
+	 * @param port
+	 * @throws IOException
+	 */
+	public NioTransport(int port) throws IOException {
+		super("NioTransport");
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		this.serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+		this.serverChannel.configureBlocking(false);
+		this.acceptKey = this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Open an event loop that doesn't accept connections. Call
+	 * start to begin serving
+	 * 
+	 * @param name of the thread
+	 * @throws IOException
+	 */
+	public NioTransport(String name) throws IOException {
+		super(name);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Wait for the next client to connect
+	 * 
+	 * @return connection
+	 * @throws InterruptedException
+	 */
+	public NioConnection take() throws InterruptedException {
+		return accepted.take();
+	}
+
+	/**
+	 * I/O loop
+	 */
+	public void run() {
+		try {
+			while (running) {
+				selector.select(nextTimeout());
+				long start = System.nanoTime();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+					runTask(task);
+				runTimers();
+
+				NioConnection conn;
+				while ((conn = writable.poll()) != null)
+					write(conn);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid())
+						continue;
+
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							conn = (NioConnection) key.attachment();
+							if (key.isReadable())
+								read(conn);
+							if (key.isValid() && key.isWritable())
+								write(conn);
+						}
+					} catch (CancelledKeyException e) {
+						// the connection was closed meanwhile
+					}
+				}
+				busy += System.nanoTime() - start;
+			}
+		} catch (ClosedSelectorException e) {
+			// closed while selecting
+		} catch (IOException e) {
+			System.out.println("Network I/O loop failed.");
+			e.printStackTrace();
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Accept everyone waiting, so a burst of connections does not
+	 * overflow the backlog. A failure only costs the connection it
+	 * happened on, not the loop and the rooms on it
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				// the rest wait in the backlog until accepting again
+				System.out.println("Failed to accept a connection.");
+				e.printStackTrace();
+				acceptKey.interestOps(0);
+				schedule(() -> {
+					if (acceptKey.isValid())
+						acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				}, ACCEPT_RETRY);
+				return;
+			}
+			if (channel == null)
+				return;
+
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				NioConnection conn = new NioConnection(this, channel);
+				conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+				accepted.add(conn);
+			} catch (IOException e) {
+				System.out.println("Failed to set up a connection.");
+				e.printStackTrace();
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					// gone already
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the ms select may block for before the next timer is
+	 * due, rounded up so it doesn't wake early and spin
+	 * 
+	 * @return ms, 0 to block until woken
+	 */
+	private long nextTimeout() {
+		Timer next = timers.peek();
+		if (next == null)
+			return 0;
+		long wait = next.due - System.nanoTime();
+		return wait <= 0 ? 1 : (wait + 999999) / 1000000;
+	}
+
+	private void runTimers() {
+		long now = System.nanoTime();
+		Timer next;
+		while ((next = timers.peek()) != null && next.due - now <= 0) {
+			timers.poll();
+			runTask(next.task);
+		}
+	}
+
+	/**
+	 * Run a task, a failing one is reported rather than ending
+	 * the loop and every room on it
+	 * 
+	 * @param task
+	 */
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	void register(NioConnection conn) throws IOException {
+		conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+	}
+
+	private void read(NioConnection conn) {
+		readBuffer.clear();
+		int n;
+		try {
+			n = conn.getChannel().read(readBuffer);
+		} catch (IOException e) {
+			n = -1;
+		}
+
+		if (n < 0) {
+			conn.disconnected();
+			return;
+		}
+
+		readBuffer.flip();
+		conn.received(readBuffer);
+	}
+
+	private void write(NioConnection conn) {
+		// moved to another loop since it asked
+		if (conn.getTransport() != this)
+			return;
+
+		SelectionKey key = conn.getKey();
+		if (!conn.isOpen() || key == null || !key.isValid())
+			return;
+
+		try {
+			// Only ask to be told when the socket can take more
+			// while there is something left over
+			boolean done = conn.flush(pool);
+			key.interestOps(done ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			conn.disconnected();
+		}
+	}
+
+	/**
+	 * A connection has lines queued, write them from the I/O
+	 * thread
+	 * 
+	 * @param conn
+	 */
+	void wantWrite(NioConnection conn) {
+		writable.add(conn);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the I/O thread
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		if (Thread.currentThread() == this) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run a task on the I/O thread once a delay has passed
+	 * 
+	 * @param task
+	 * @param delay ms
+	 */
+	void schedule(Runnable task, long delay) {
+		long due = System.nanoTime() + delay * 1000000;
+		execute(() -> timers.add(new Timer(due, timersAdded++, task)));
+	}
+
+	/**
+	 * Get the time the loop has spent working rather than waiting
+	 * 
+	 * @return ns
+	 */
+	long getBusyTime() {
+		return this.busy;
+	}
+
+	BufferPool getPool() {
+		return this.pool;
+	}
+
+	/**
+	 * Stop the I/O thread, which closes every connection on the
+	 * way out. Returns once the port is free again
+	 */
+	public void close() {
+		running = false;
+		if (!isAlive()) {
+			closeAll();
+			return;
+		}
+
+		selector.wakeup();
+		if (Thread.currentThread() != this) {
+			try {
+				join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void closeAll() {
+		try {
+			if (selector.isOpen())
+				for (SelectionKey key : selector.keys())
+					key.channel().close();
+			selector.close();
+			if (serverChannel != null)
+				serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
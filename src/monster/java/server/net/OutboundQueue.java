@@ -0,0 +1,201 @@
+package monster.java.server.net;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Messages waiting to be written to one client. The game and the
+ * broadcaster add to it from any thread without blocking, and the
+ * connection's writer takes from it.
+ *
+ * Moves are marked with the entities they are for, so a client that
+ * falls behind can have the moves a later one makes stale dropped,
+ * or all of them when every position is resent. The queue takes
+ * whatever it is given and tracks how many bytes it holds, and the
+ * most it has held: it is the broadcaster that keeps it in bounds,
+ * checking it at each flush against MonsterServer.OUTBOUND_LIMIT.
+ */
+public class OutboundQueue {
+	// What queued moves are for, as bits: the monsters, sent all
+	// at once, each player by id, and every position. Players past
+	// the bits are OTHERS, their moves are only made stale by ALL
+	public static final long MONSTERS = 1;
+	public static final long OTHERS = Long.MIN_VALUE;
+	public static final long ALL = -1;
+
+	private static class Entry {
+		byte[] data;
+		// 0 if not moves
+		long entities;
+
+		Entry(byte[] data, long entities) {
+			this.data = data;
+			this.entities = entities;
+		}
+	}
+
+	private ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	private int bytes = 0;
+	private boolean closed = false;
+
+	// Metrics
+	private int peakBytes = 0;
+	private long added = 0, dropped = 0;
+
+	/**
+	 * Get the bit a player's moves are marked with
+	 *
+	 * @param id
+	 * @return bit, or OTHERS past the last
+	 */
+	public static long player(int id) {
+		return id > 0 && id < 63 ? 1L << id : OTHERS;
+	}
+
+	/**
+	 * Queue a message
+	 *
+	 * @param data
+	 * @param entities what the moves are for, or 0 if not moves
+	 * @return false if the queue is closed
+	 */
+	public synchronized boolean add(byte[] data, long entities) {
+		if (closed)
+			return false;
+
+		entries.add(new Entry(data, entities));
+		bytes += data.length;
+		peakBytes = Math.max(peakBytes, bytes);
+		added++;
+		notify();
+		return true;
+	}
+
+	/**
+	 * Take the next message if there is one
+	 *
+	 * @return message, or null if empty
+	 */
+	public synchronized byte[] poll() {
+		Entry e = entries.poll();
+		if (e == null)
+			return null;
+		bytes -= e.data.length;
+		return e.data;
+	}
+
+	/**
+	 * Wait for the next message
+	 *
+	 * @return message, or null once closed and empty
+	 * @throws InterruptedException
+	 */
+	public synchronized byte[] take() throws InterruptedException {
+		while (entries.isEmpty() && !closed)
+			wait();
+		return poll();
+	}
+
+	/**
+	 * Drop every queued move, to be replaced by every position
+	 *
+	 * @return number dropped
+	 */
+	public synchronized int dropPositions() {
+		return dropStale(ALL);
+	}
+
+	/**
+	 * Drop the queued moves that a later one makes stale, each
+	 * entity they are for moving again after them
+	 *
+	 * @param next what the moves about to be queued are for
+	 * @return number dropped
+	 */
+	public synchronized int dropStale(long next) {
+		long later = next;
+		int n = 0;
+		Iterator<Entry> it = entries.descendingIterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (e.entities == 0)
+				continue;
+			if (later == ALL || ((e.entities & OTHERS) == 0 && (e.entities & ~later) == 0)) {
+				it.remove();
+				bytes -= e.data.length;
+				n++;
+			} else {
+				later |= e.entities == ALL ? ALL : e.entities & ~OTHERS;
+			}
+		}
+		dropped += n;
+		return n;
+	}
+
+	/**
+	 * Stop taking messages. What is queued can still be taken
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Stop taking messages and drop what is queued
+	 */
+	public synchronized void clear() {
+		close();
+		dropped += entries.size();
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Get the number of bytes queued
+	 *
+	 * @return bytes
+	 */
+	public synchronized int getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Get the number of messages queued
+	 *
+	 * @return messages
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the most bytes the queue has held at once
+	 *
+	 * @return bytes
+	 */
+	public synchronized int getPeakBytes() {
+		return this.peakBytes;
+	}
+
+	/**
+	 * Get the number of messages ever queued
+	 *
+	 * @return messages
+	 */
+	public synchronized long getAdded() {
+		return this.added;
+	}
+
+	/**
+	 * Get the number of messages dropped before being written
+	 *
+	 * @return messages
+	 */
+	public synchronized long getDropped() {
+		return this.dropped;
+	}
+}
@@ -0,0 +1,16 @@
+package monster.java.server.net;
+
+/**
+ * What to do with a client whose outbound queue is full
+ */
+public enum OverflowPolicy {
+	// Drop the queued moves that a later one makes stale, the
+	// latest for each player and the monsters is kept
+	DROP_MOVES,
+
+	// Replace the queued moves with one message of every position
+	COALESCE,
+
+	// Disconnect the client
+	DISCONNECT
+}
@@ -0,0 +1,319 @@
+package monster.java.server.net;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import monster.java.server.MonsterServer;
+
+/**
+ * Hosts any number of games at once over one listening port. Each
+ * game is a room, a NetworkServer with its own world, monsters,
+ * tick rate and players.
+ *
+ * Rooms run on a fixed set of event loops, one per core unless
+ * MonsterServer.EVENT_LOOPS says otherwise. A new room goes on the
+ * loop its rooms' ticks load least, by their measured cost, and
+ * stays there. Over NIO the first loop also accepts connections,
+ * each moving to its room's loop once seated.
+ *
+ * Players connecting are put in the room that is filling, until
+ * it starts its game or has as many as its first player asked
+ * for, then the next one to connect opens a new room. Until the
+ * first player has said how many, the rest wait their turn.
+ *
+ * The listening socket, or the NIO transport serving every
+ * connection, and the UDP channel are shared by all the rooms.
+ */
+public class RoomManager {
+	private int port;
+	private ServerSocket serverSocket;
+	private NioTransport transport;
+	private UdpTransport udp;
+
+	// Event loops the rooms run on, the first is the transport
+	// when serving connections over NIO
+	private NioTransport[] loops;
+
+	// Rooms not yet ended, and the one players are joining
+	private ArrayList<NetworkServer> rooms = new ArrayList<NetworkServer>();
+	private NetworkServer filling;
+
+	// Connections waiting for a seat, Sockets or NioConnections
+	private ArrayDeque<Object> waiting = new ArrayDeque<Object>();
+
+	// Games to host before closing, 0 for no limit, and the
+	// number started so far
+	private int games;
+	private int started = 0;
+	private int opened = 0;
+
+	// Thread taking new connections, stopped once the last game
+	// has started
+	private Thread acceptor;
+	private volatile boolean accepting = true;
+
+	/**
+	 * @param port
+	 * @param games rooms to host before closing, 0 to keep going
+	 */
+	public RoomManager(int port, int games) {
+		this.port = port;
+		this.games = games;
+	}
+
+	/**
+	 * Take connections and put them in rooms until the last game
+	 * has started, then wait for every game to end and close
+	 */
+	public void run() {
+		this.acceptor = Thread.currentThread();
+
+		try {
+			System.out.println("Working Directory = " +
+					System.getProperty("user.dir"));
+
+			// Create the server socket, or the I/O thread accepting
+			// connections, and the loops to run the rooms on
+			int n = MonsterServer.EVENT_LOOPS > 0 ? MonsterServer.EVENT_LOOPS
+					: Runtime.getRuntime().availableProcessors();
+			this.loops = new NioTransport[n];
+			if (MonsterServer.CONNECTIONS == ConnectionMode.NIO) {
+				this.transport = new NioTransport(this.port);
+				this.loops[0] = this.transport;
+			} else {
+				this.serverSocket = new ServerSocket(this.port);
+			}
+			for (int i = 0; i < n; i++) {
+				if (this.loops[i] == null)
+					this.loops[i] = new NioTransport("EventLoop " + i);
+				else
+					this.loops[i].setName("EventLoop " + i);
+				this.loops[i].start();
+			}
+
+			// Positions by datagram for clients that ask
+			if (MonsterServer.UDP) {
+				this.udp = new UdpTransport(this.port);
+				this.udp.start();
+			}
+
+			System.out.println("Waiting for players on port " + this.port);
+
+			while (this.accepting) {
+				if (this.transport != null)
+					join(this.transport.take());
+				else
+					join(this.serverSocket.accept());
+			}
+		} catch (IOException | InterruptedException e) {
+			if (this.accepting) {
+				System.out.println("Error connecting to players.");
+				e.printStackTrace();
+			}
+		}
+
+		waitForRooms();
+		close();
+	}
+
+	/**
+	 * Queue a connection for a room and seat whoever can be
+	 *
+	 * @param connection Socket or NioConnection
+	 */
+	private synchronized void join(Object connection) {
+		if (!this.accepting) {
+			close(connection);
+			return;
+		}
+		this.waiting.add(connection);
+		seat();
+	}
+
+	/**
+	 * Put waiting connections in the filling room, opening one if
+	 * there is none or it has filled up. While the room's first
+	 * player has yet to say how many are playing, the rest wait
+	 */
+	synchronized void seat() {
+		while (!this.waiting.isEmpty()) {
+			// the last game has started, no more rooms
+			if (!this.accepting) {
+				close(this.waiting.poll());
+				continue;
+			}
+			if (this.filling == null)
+				this.filling = openRoom();
+			if (this.filling.isWaitingForCount())
+				return;
+
+			// gone while waiting
+			Object connection = this.waiting.peek();
+			if (connection instanceof NioConnection && !((NioConnection) connection).isOpen()) {
+				this.waiting.poll();
+				continue;
+			}
+			NetworkPlayer player = connection instanceof Socket
+					? this.filling.join((Socket) connection)
+					: this.filling.join((NioConnection) connection);
+			if (player == null)
+				this.filling = null;
+			else
+				this.waiting.poll();
+		}
+	}
+
+	private void close(Object connection) {
+		try {
+			if (connection instanceof Socket)
+				((Socket) connection).close();
+			else
+				((NioConnection) connection).close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private NetworkServer openRoom() {
+		NetworkServer room = new NetworkServer(this, MonsterServer.WORLD, place());
+		room.setName("Room " + (++this.opened));
+		this.rooms.add(room);
+		System.out.println(this.rooms.size() + " room(s) open.");
+		return room;
+	}
+
+	/**
+	 * Pick the loop for a new room: the one whose rooms' ticks take
+	 * the least of it, or with fewest rooms if that is even, as
+	 * new rooms have not ticked yet
+	 *
+	 * @return loop
+	 */
+	private NioTransport place() {
+		double[] load = new double[this.loops.length];
+		int[] count = new int[this.loops.length];
+		for (NetworkServer room : this.rooms) {
+			for (int i = 0; i < this.loops.length; i++) {
+				if (this.loops[i] == room.getLoop()) {
+					load[i] += room.getLoad();
+					count[i]++;
+				}
+			}
+		}
+
+		int best = 0;
+		for (int i = 1; i < this.loops.length; i++) {
+			if (load[i] < load[best] || (load[i] == load[best] && count[i] < count[best]))
+				best = i;
+		}
+		return this.loops[best];
+	}
+
+	/**
+	 * A room has stopped taking players and begun its game
+	 *
+	 * @param room
+	 */
+	synchronized void started(NetworkServer room) {
+		if (this.filling == room)
+			this.filling = null;
+		this.started++;
+		if (this.games > 0 && this.started >= this.games)
+			stopAccepting();
+	}
+
+	/**
+	 * A room's game is over and its players are gone
+	 *
+	 * @param room
+	 */
+	synchronized void ended(NetworkServer room) {
+		if (this.filling == room)
+			this.filling = null;
+		this.rooms.remove(room);
+		notifyAll();
+	}
+
+	private void stopAccepting() {
+		this.accepting = false;
+		this.acceptor.interrupt();
+		try {
+			if (this.serverSocket != null)
+				this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void waitForRooms() {
+		// the interrupt that stopped the accept loop may still be set
+		Thread.interrupted();
+		while (!this.rooms.isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stop taking connections and close the shared sockets, which
+	 * ends the games still being played
+	 */
+	public void close() {
+		synchronized (this) {
+			this.accepting = false;
+			while (!this.waiting.isEmpty())
+				close(this.waiting.poll());
+		}
+		if (this.udp != null) {
+			this.udp.close();
+			if (MonsterServer.DEBUG)
+				System.out.println("UDP: " + this.udp.getStats());
+		}
+		if (this.loops != null) {
+			for (NioTransport loop : this.loops) {
+				if (loop == null)
+					continue;
+				if (MonsterServer.DEBUG)
+					System.out.println(loop.getName() + ": busy "
+							+ loop.getBusyTime() / 1000000 + " ms");
+				loop.close();
+			}
+		}
+		try {
+			if (this.serverSocket != null)
+				this.serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/* * * Getters and Setters * * */
+	public UdpTransport getUdp() {
+		return this.udp;
+	}
+
+	/**
+	 * Get the event loops the rooms are spread over
+	 *
+	 * @return loops
+	 */
+	public NioTransport[] getLoops() {
+		return this.loops.clone();
+	}
+
+	/**
+	 * Get the rooms not yet ended
+	 *
+	 * @return rooms
+	 */
+	public synchronized ArrayList<NetworkServer> getRooms() {
+		return new ArrayList<NetworkServer>(this.rooms);
+	}
+}
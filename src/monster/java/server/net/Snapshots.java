@@ -0,0 +1,349 @@
+package monster.java.server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.world.Entity;
+import monster.java.server.world.Monster;
+
+/**
+ * The positions of every player and monster at each of the last
+ * few broadcast ticks, for sending clients deltas.
+ *
+ * Each tick's positions are captured under a new sequence number.
+ * A client acknowledges each snapshot it applies, and the next one
+ * it is sent only holds the entities that moved since the last it
+ * acknowledged. If that one is too old to still be held, or there
+ * is none yet, every entity is sent.
+ *
+ * With a view radius (MonsterServer.VIEW_RADIUS) each player is
+ * only sent the entities near it: those that moved since its base,
+ * or that were not near it then, as it has not been kept up to
+ * date on them. Everything else is sent every VIEW_REFRESH
+ * snapshots, so far entities are still seen, only less often.
+ *
+ * Entities are keyed as player id * 2 and monster index * 2 + 1.
+ */
+public class Snapshots {
+	// Ticks of history kept, a client further behind gets everything
+	private static final int HISTORY = 32;
+
+	// Positions of each snapshot, x and y per player then per
+	// monster, by sequence number mod HISTORY
+	private int[][] playerXY = new int[HISTORY][];
+	private int[][] monsterXY = new int[HISTORY][];
+	private int[] seqs = new int[HISTORY];
+	private int seq = 0;
+
+	private ArrayList<Monster> monsters = new ArrayList<Monster>();
+
+	// Deltas encoded for the current tick, by base snapshot
+	private HashMap<Integer, byte[]> deltas = new HashMap<Integer, byte[]>();
+
+	private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+	// Entities near the latest positions, null to send everything
+	// to everyone, and the entities picked for a player
+	private AreaOfInterest view = MonsterServer.VIEW_RADIUS > 0
+			? new AreaOfInterest(MonsterServer.VIEW_RADIUS) : null;
+	private int[] near = new int[0];
+	private int[] visible = new int[0];
+
+	// What the moves last encoded for a player are for
+	private long movesEntities = 0;
+
+	/**
+	 * Set the monsters whose positions go in the snapshots
+	 *
+	 * @param monsters
+	 */
+	public synchronized void setMonsters(ArrayList<Monster> monsters) {
+		this.monsters = monsters;
+	}
+
+	/**
+	 * Capture the current positions as the next snapshot
+	 *
+	 * @param players in id order
+	 * @return sequence number of the snapshot
+	 */
+	public synchronized int capture(ArrayList<NetworkPlayer> players) {
+		seq++;
+		int slot = seq % HISTORY;
+		playerXY[slot] = positions(playerXY[slot], players.size());
+		monsterXY[slot] = positions(monsterXY[slot], monsters.size());
+		seqs[slot] = seq;
+
+		for (int i = 0; i < players.size(); i++)
+			put(playerXY[slot], i, players.get(i).getPlayer());
+		for (int i = 0; i < monsters.size(); i++)
+			put(monsterXY[slot], i, monsters.get(i));
+		if (view != null)
+			view.index(playerXY[slot], monsterXY[slot]);
+
+		deltas.clear();
+		return seq;
+	}
+
+	private static int[] positions(int[] xy, int count) {
+		return xy != null && xy.length == 2 * count ? xy : new int[2 * count];
+	}
+
+	private static void put(int[] xy, int i, Entity entity) {
+		xy[2 * i] = entity.X();
+		xy[2 * i + 1] = entity.Y();
+	}
+
+	/**
+	 * Get the latest snapshot as a frame holding what changed since
+	 * the base. Clients acknowledging the same snapshot share one
+	 * encoding
+	 *
+	 * @param base sequence number the client acknowledged, 0 for
+	 *            none
+	 * @return SNAPSHOT frame
+	 */
+	public synchronized byte[] delta(int base) {
+		base = held(base);
+		byte[] frame = deltas.get(base);
+		if (frame != null)
+			return frame;
+
+		int slot = seq % HISTORY, baseSlot = base % HISTORY;
+		scratch.clear();
+		putVarint(seq);
+		putVarint(base);
+		changes(playerXY[slot], base > 0 ? playerXY[baseSlot] : null, false);
+		changes(monsterXY[slot], base > 0 ? monsterXY[baseSlot] : null, true);
+
+		frame = frame();
+		deltas.put(base, frame);
+		return frame;
+	}
+
+	/**
+	 * Get the latest snapshot as a frame for one player, holding
+	 * only what it is to be sent since the base. The same as
+	 * delta(base) with no view radius
+	 *
+	 * @param base sequence number the client acknowledged, 0 for
+	 *            none
+	 * @param viewer index of the player in the snapshot
+	 * @return SNAPSHOT frame
+	 */
+	public synchronized byte[] delta(int base, int viewer) {
+		if (!isFiltered(viewer))
+			return delta(base);
+
+		base = held(base);
+		int count = visible(viewer, base);
+		int slot = seq % HISTORY;
+		int players = playerXY[slot].length / 2;
+		scratch.clear();
+		putVarint(seq);
+		putVarint(base);
+		for (int i = 0; i < count; i++) {
+			int e = visible[i];
+			putVarint(e < players ? 2 * (e + 1) : 2 * (e - players) + 1);
+			putVarint(x(slot, e));
+			putVarint(y(slot, e));
+		}
+		return frame();
+	}
+
+	/**
+	 * Encode the moves in the latest snapshot for one player not
+	 * taking snapshots, since the one before: a move per player
+	 * it is to be sent, and every monster's position if any of
+	 * them is to be, as that is one message
+	 *
+	 * @param viewer index of the player in the snapshot
+	 * @param binary frames if true, text if not
+	 * @param legacy text for a client from before proto: lines
+	 * @return encoded moves, or null with no view radius
+	 */
+	public synchronized byte[] moves(int viewer, boolean binary, boolean legacy) {
+		if (!isFiltered(viewer))
+			return null;
+
+		int count = visible(viewer, held(seq - 1));
+		int slot = seq % HISTORY;
+		int players = playerXY[slot].length / 2;
+		boolean monsters = false;
+		movesEntities = 0;
+		StringBuilder text = new StringBuilder();
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		for (int i = 0; i < count; i++) {
+			int e = visible[i];
+			movesEntities |= e >= players ? OutboundQueue.MONSTERS : OutboundQueue.player(e + 1);
+			if (e >= players) {
+				monsters = true;
+			} else if (binary) {
+				frames.writeBytes(BinaryProtocol.move(e + 1, x(slot, e), y(slot, e)));
+			} else {
+				text.append(MessageProtocol.moveText(e + 1, x(slot, e), y(slot, e)));
+			}
+		}
+
+		int[] xy = monsterXY[slot];
+		if (monsters && binary)
+			frames.writeBytes(BinaryProtocol.monsters(xy, xy.length / 2));
+		else if (monsters)
+			text.append(MessageProtocol.monstersText(xy, xy.length / 2, legacy));
+		if (binary)
+			return frames.toByteArray();
+		return text.length() == 0 ? new byte[0]
+				: text.append('\n').toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get what the moves last encoded by moves are for, as
+	 * OutboundQueue marks moves
+	 *
+	 * @return entities
+	 */
+	public synchronized long getMovesEntities() {
+		return movesEntities;
+	}
+
+	/**
+	 * Check if what a player is sent depends on where it is
+	 *
+	 * @param viewer index of the player in the snapshot
+	 * @return true with a view radius and the player in the latest
+	 *         snapshot
+	 */
+	private boolean isFiltered(int viewer) {
+		return view != null && seq > 0 && 2 * viewer < playerXY[seq % HISTORY].length;
+	}
+
+	/**
+	 * @param base
+	 * @return the base if it is still held, 0 if not
+	 */
+	private int held(int base) {
+		if (base <= 0 || base >= seq || seqs[base % HISTORY] != base
+				|| seq - base >= HISTORY)
+			return 0;
+		return base;
+	}
+
+	/**
+	 * Pick the entities to send a player with the latest snapshot:
+	 * those near it that moved since the base or were not near it
+	 * then, and with no base or on a refresh every one not near it
+	 *
+	 * @param viewer index of the player
+	 * @param base held snapshot, 0 for none
+	 * @return number of entities put in visible
+	 */
+	private int visible(int viewer, int base) {
+		int slot = seq % HISTORY, baseSlot = base % HISTORY;
+		int size = view.size();
+		if (near.length < size) {
+			near = new int[size];
+			visible = new int[size];
+		}
+
+		int vx = x(slot, viewer), vy = y(slot, viewer);
+		int found = view.near(vx, vy, near);
+		int count = 0;
+		for (int i = 0; i < found; i++) {
+			int e = near[i];
+			if (base == 0 || !inBase(baseSlot, e)
+					|| !view.isNear(x(baseSlot, viewer), y(baseSlot, viewer),
+							x(baseSlot, e), y(baseSlot, e))
+					|| x(baseSlot, e) != x(slot, e) || y(baseSlot, e) != y(slot, e))
+				visible[count++] = e;
+		}
+
+		// Players are refreshed on different ticks, so no one tick
+		// sends everyone everything
+		if (base == 0 || (seq + viewer) % Math.max(1, MonsterServer.VIEW_REFRESH) == 0) {
+			for (int e = 0; e < size; e++) {
+				if (!view.isNear(vx, vy, x(slot, e), y(slot, e)))
+					visible[count++] = e;
+			}
+		}
+		return count;
+	}
+
+	// Whether an entity, numbered players first then monsters, is
+	// in a snapshot, as in the latest
+	private boolean inBase(int slot, int e) {
+		int players = playerXY[seq % HISTORY].length / 2;
+		return playerXY[slot].length == 2 * players
+				&& (e < players || 2 * (e - players) < monsterXY[slot].length);
+	}
+
+	private int x(int slot, int e) {
+		int players = playerXY[seq % HISTORY].length / 2;
+		return e < players ? playerXY[slot][2 * e] : monsterXY[slot][2 * (e - players)];
+	}
+
+	private int y(int slot, int e) {
+		int players = playerXY[seq % HISTORY].length / 2;
+		return e < players ? playerXY[slot][2 * e + 1] : monsterXY[slot][2 * (e - players) + 1];
+	}
+
+	/**
+	 * Wrap what has been put in scratch as a SNAPSHOT frame
+	 *
+	 * @return frame
+	 */
+	private byte[] frame() {
+		scratch.flip();
+		int length = scratch.remaining();
+		ByteBuffer buf = ByteBuffer.allocate(1 + BinaryProtocol.varintSize(length) + length);
+		buf.put(BinaryProtocol.SNAPSHOT);
+		BinaryProtocol.putVarint(buf, length);
+		buf.put(scratch);
+		return buf.array();
+	}
+
+	/**
+	 * Put the entities whose position is not the same as in the
+	 * base, or all of them with no base
+	 *
+	 * @param xy
+	 * @param baseXY
+	 * @param monsters true for monsters, false for players
+	 */
+	private void changes(int[] xy, int[] baseXY, boolean monsters) {
+		for (int i = 0; 2 * i < xy.length; i++) {
+			int x = xy[2 * i], y = xy[2 * i + 1];
+			if (baseXY != null && 2 * i < baseXY.length
+					&& baseXY[2 * i] == x && baseXY[2 * i + 1] == y)
+				continue;
+
+			// Player ids start at 1
+			int key = monsters ? 2 * i + 1 : 2 * (i + 1);
+			putVarint(key);
+			putVarint(x);
+			putVarint(y);
+		}
+	}
+
+	private void putVarint(int value) {
+		if (scratch.remaining() < 5) {
+			ByteBuffer bigger = ByteBuffer.allocate(scratch.capacity() * 2);
+			scratch.flip();
+			bigger.put(scratch);
+			scratch = bigger;
+		}
+		BinaryProtocol.putVarint(scratch, value);
+	}
+
+	/**
+	 * Get the sequence number of the latest snapshot
+	 *
+	 * @return seq, 0 before the first
+	 */
+	public synchronized int getSeq() {
+		return this.seq;
+	}
+}
@@ -0,0 +1,248 @@
+package monster.java.server.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import monster.java.server.MonsterServer;
+
+/**
+ * Datagram channel for the traffic where only the latest message
+ * matters: positions to clients, and moves and snapshot acks from
+ * them. Everything else stays on the client's stream.
+ *
+ * A client is given a random token over its stream and says hello
+ * with it from its UDP socket, which is then the address its
+ * datagrams are sent to and taken from. Each datagram carries a
+ * sequence number, and one older than the last taken is dropped,
+ * so a late move can't undo a newer one.
+ *
+ * Moves and acks taken are handed to the loop of the player's
+ * room, as if they had come on its stream.
+ *
+ * Datagrams can be dropped on purpose, both ways, to test the
+ * channel over loopback (MonsterServer.UDP_LOSS).
+ */
+public class UdpTransport extends Thread {
+	private DatagramChannel channel;
+
+	// Players by the token they were given
+	private HashMap<Integer, NetworkPlayer> players = new HashMap<Integer, NetworkPlayer>();
+	private SecureRandom tokens = new SecureRandom();
+	private Random loss = new Random();
+
+	// Datagrams sent and received, moves dropped as stale or
+	// repeated, and datagrams lost on purpose
+	private AtomicLong sent = new AtomicLong(), received = new AtomicLong(),
+			stale = new AtomicLong(), lost = new AtomicLong();
+
+	/**
+	 * Bind the datagram socket. Call start to begin receiving
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public UdpTransport(int port) throws IOException {
+		super("UdpTransport");
+		this.channel = DatagramChannel.open();
+		this.channel.bind(new InetSocketAddress(port));
+		this.setDaemon(true);
+	}
+
+	/**
+	 * Give a player a token to say hello with
+	 *
+	 * @param player
+	 * @return token
+	 */
+	public synchronized int register(NetworkPlayer player) {
+		int token;
+		do {
+			token = tokens.nextInt() & 0x7FFFFFFF;
+		} while (players.containsKey(token));
+		players.put(token, player);
+		return token;
+	}
+
+	/**
+	 * Forget a token once its player has left or its room has
+	 * ended, so its datagrams are no longer taken
+	 *
+	 * @param token
+	 */
+	public synchronized void unregister(int token) {
+		players.remove(token);
+	}
+
+	private synchronized NetworkPlayer lookup(int token) {
+		return players.get(token);
+	}
+
+	/**
+	 * Get the port datagrams are received on
+	 *
+	 * @return port
+	 */
+	public int getPort() {
+		try {
+			return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Send a datagram to a player that has said hello
+	 *
+	 * @param player
+	 * @param datagram seq then frames
+	 */
+	public void send(NetworkPlayer player, byte[] datagram) {
+		send(player.getUdpAddress(), datagram);
+	}
+
+	private void send(SocketAddress address, byte[] datagram) {
+		if (address == null)
+			return;
+		if (isLost()) {
+			lost.incrementAndGet();
+			return;
+		}
+		try {
+			channel.send(ByteBuffer.wrap(datagram), address);
+			sent.incrementAndGet();
+		} catch (IOException e) {
+			// positions are resent every tick anyway
+		}
+	}
+
+	private boolean isLost() {
+		return MonsterServer.UDP_LOSS > 0 && loss.nextDouble() < MonsterServer.UDP_LOSS;
+	}
+
+	/**
+	 * Receive loop
+	 */
+	public void run() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(BinaryProtocol.MAX_DATAGRAM);
+		try {
+			while (true) {
+				buf.clear();
+				SocketAddress from = channel.receive(buf);
+				buf.flip();
+				if (isLost()) {
+					lost.incrementAndGet();
+					continue;
+				}
+				received.incrementAndGet();
+
+				try {
+					receive(from, buf);
+				} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+					// not from a client, or mangled
+				}
+			}
+		} catch (AsynchronousCloseException e) {
+			// closed
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handle a datagram: token, seq, then frames
+	 *
+	 * @param from
+	 * @param buf
+	 * @throws IOException if a frame is not valid
+	 */
+	private void receive(SocketAddress from, ByteBuffer buf) throws IOException {
+		NetworkPlayer player = lookup(BinaryProtocol.getVarint(buf));
+		if (player == null || !player.connected)
+			return;
+		int seq = BinaryProtocol.getVarint(buf);
+
+		while (buf.hasRemaining()) {
+			int type = buf.get();
+			int length = BinaryProtocol.getVarint(buf);
+			ByteBuffer payload = buf.slice();
+			payload.limit(length);
+			buf.position(buf.position() + length);
+
+			if (type == BinaryProtocol.UDP_HELLO) {
+				// The client may have a new socket, the latest hello
+				// wins and its moves are numbered from scratch
+				if (!from.equals(player.getUdpAddress())) {
+					player.setUdpAddress(from);
+					player.setUdpSeq(0);
+				}
+				send(from, BinaryProtocol.datagram(0, BinaryProtocol.udpHello()));
+				continue;
+			}
+			if (!from.equals(player.getUdpAddress()))
+				return;
+
+			if (type == BinaryProtocol.MOVE) {
+				if (seq <= player.getUdpSeq()) {
+					stale.incrementAndGet();
+					continue;
+				}
+				player.setUdpSeq(seq);
+				process(player, type, payload);
+			} else if (type == BinaryProtocol.ACK) {
+				// Acks only go up, a late one is ignored
+				if (BinaryProtocol.getVarint(payload.duplicate()) > player.getAckedSnapshot())
+					process(player, type, payload);
+			}
+		}
+	}
+
+	/**
+	 * Process a frame on the loop of the player's room. The
+	 * receive buffer is reused, so the payload is copied
+	 *
+	 * @param player
+	 * @param type
+	 * @param payload
+	 */
+	private void process(NetworkPlayer player, int type, ByteBuffer payload) {
+		byte[] frame = new byte[payload.remaining()];
+		payload.get(frame);
+		player.getServer().execute(() -> {
+			try {
+				MessageProtocol.processFrame(player, type, ByteBuffer.wrap(frame));
+			} catch (IOException e) {
+				// a mangled datagram is dropped
+			}
+		});
+	}
+
+	/**
+	 * Stop receiving and close the socket
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Get counts for the DEBUG output
+	 *
+	 * @return sent, received, stale and lost datagrams
+	 */
+	public String getStats() {
+		return sent.get() + " datagrams sent, " + received.get() + " received, "
+				+ stale.get() + " stale, " + lost.get() + " lost on purpose";
+	}
+}
@@ -0,0 +1,56 @@
+package monster.java.server.net;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts virtual threads where the runtime has them (Java 21+).
+ * Looked up by reflection so the server still builds and runs on
+ * older runtimes, where platform threads are used instead.
+ */
+public class VirtualThreads {
+	// Thread.ofVirtual(), null if not available
+	private static Method ofVirtual;
+
+	// Thread.Builder.start(Runnable)
+	private static Method start;
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+			System.out.println("Virtual threads not available, using platform threads.");
+		}
+	}
+
+	/**
+	 * Check if virtual threads can be started
+	 * 
+	 * @return true on Java 21+
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Run a task on a new virtual thread, or a platform thread if
+	 * there are no virtual threads
+	 * 
+	 * @param task
+	 * @return the thread started
+	 */
+	public static Thread start(Runnable task) {
+		if (ofVirtual != null) {
+			try {
+				return (Thread) start.invoke(ofVirtual.invoke(null), task);
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}
+
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,337 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Breadth first search over bitboards. Each row of the world is
+ * stored as 64 cells per long, and a whole BFS layer is advanced at
+ * once: the frontier is shifted left, right, up and down, and'ed
+ * with the open cells and with the cells not yet visited. That
+ * moves 64 cells per operation, and the word loops are plain enough
+ * for the JIT to vectorise further.
+ *
+ * No distances are stored. The search runs out from the monster
+ * until a layer lands on a player, at distance d. A second search
+ * runs back from the players found for d - 1 layers, and the first
+ * of the monster's neighbours it reaches is the way to go. Both
+ * only cover the square of radius d around the monster, so the
+ * cost follows how far away the nearest player is, not the size of
+ * the world. Each monster runs its own searches.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class BitboardField implements PathFinder {
+	private Grid grid;
+	private int height;
+
+	// Longs per row
+	private int words;
+
+	// Bitboards, row y word k holds cells 64k to 64k + 63
+	private long[] open;
+	private long[] players;
+	private long[] visited;
+	private long[] frontier;
+	private long[] next;
+
+	// Rows of the frontier holding any bits
+	private int lo = 0, hi = -1;
+
+	// Rows and words the search may touch
+	private int rowMin, rowMax, wordMin, wordMax;
+
+	// Rows and words of the boards written since they were cleared
+	private int dirtyLo = 0, dirtyHi = -1, dirtyWordLo = 0, dirtyWordHi = -1;
+
+	// Whether the last layer expanded landed on a player
+	private boolean hit;
+
+	// Cells of the living players
+	private int[] targets = new int[0];
+	private int numTargets = 0;
+
+	// Number of layers expanded by the last search
+	private int lastLayers = 0;
+
+	public BitboardField(Grid grid) {
+		this.grid = grid;
+		this.height = grid.getHeight();
+		this.words = (grid.getWidth() + 63) / 64;
+
+		this.open = new long[height * words];
+		this.players = new long[height * words];
+		this.visited = new long[height * words];
+		this.frontier = new long[height * words];
+		this.next = new long[height * words];
+
+		for (int i = 0; i < grid.size(); i++)
+			if (!grid.isWall(i))
+				set(open, grid.X(i), grid.Y(i));
+	}
+
+	/**
+	 * Mark the cells of the living players
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		for (int k = 0; k < numTargets; k++)
+			clear(this.players, grid.X(targets[k]), grid.Y(targets[k]));
+
+		if (targets.length < players.size())
+			targets = new int[players.size()];
+
+		numTargets = 0;
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (p.isAlive() && grid.isOpen(p.X(), p.Y())) {
+				targets[numTargets++] = grid.index(p.X(), p.Y());
+				set(this.players, p.X(), p.Y());
+			}
+		}
+	}
+
+	/**
+	 * Search out to the nearest players, then back from them to
+	 * the monster's neighbours
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int i = grid.index(x, y);
+		if (i < 0 || numTargets == 0)
+			return -1;
+
+		// Out from the monster, the window widens with the frontier
+		clearBoards(true);
+		rowMin = 0;
+		rowMax = height - 1;
+		set(frontier, x, y);
+		set(visited, x, y);
+		lo = hi = y;
+		touch(y, y, x >> 6, x >> 6);
+
+		int d = 0;
+		hit = get(players, x, y);
+		while (!hit) {
+			if (lo > hi) {
+				lastLayers = d;
+				return -1;
+			}
+
+			d++;
+			wordMin = Math.max(0, (x - d) >> 6);
+			wordMax = Math.min(words - 1, (x + d) >> 6);
+			expand();
+		}
+		lastLayers = d;
+
+		// Standing on a player, every open neighbour is 1 away
+		if (d == 0)
+			return first(i);
+
+		// Back from the players just reached. Only cells within d
+		// of the monster can be on a shortest path
+		clearBoards(false);
+		for (int r = lo; r <= hi; r++) {
+			for (int k = wordMin; k <= wordMax; k++) {
+				frontier[r * words + k] &= players[r * words + k];
+				visited[r * words + k] = frontier[r * words + k];
+			}
+		}
+		rowMin = Math.max(0, y - d);
+		rowMax = Math.min(height - 1, y + d);
+
+		for (int layer = 1; layer < d; layer++)
+			expand();
+		lastLayers += d - 1;
+
+		// Ties go to the first direction, as in Node.beginSearch
+		for (int n = 0; n < 4; n++)
+			if (grid.neighbour(i, n) >= 0 && get(frontier, x + Grid.DX[n], y + Grid.DY[n]))
+				return n;
+		return -1;
+	}
+
+	/**
+	 * Get the first open neighbour of cell i
+	 *
+	 * @param i
+	 * @return direction, or -1 if walled in
+	 */
+	private int first(int i) {
+		for (int n = 0; n < 4; n++)
+			if (grid.neighbour(i, n) >= 0)
+				return n;
+		return -1;
+	}
+
+	/**
+	 * Zero what has been written since the last clear, so only the
+	 * area searched is cleared, not the whole world
+	 *
+	 * @param frontier true to clear the frontier too
+	 */
+	private void clearBoards(boolean frontier) {
+		for (int y = dirtyLo; y <= dirtyHi; y++) {
+			for (int k = dirtyWordLo; k <= dirtyWordHi; k++) {
+				visited[y * words + k] = 0;
+				next[y * words + k] = 0;
+				if (frontier)
+					this.frontier[y * words + k] = 0;
+			}
+		}
+
+		// A kept frontier still needs clearing next time
+		if (frontier) {
+			dirtyLo = height;
+			dirtyHi = -1;
+			dirtyWordLo = words;
+			dirtyWordHi = -1;
+		}
+	}
+
+	private void touch(int rowLo, int rowHi, int wordLo, int wordHi) {
+		dirtyLo = Math.min(dirtyLo, rowLo);
+		dirtyHi = Math.max(dirtyHi, rowHi);
+		dirtyWordLo = Math.min(dirtyWordLo, wordLo);
+		dirtyWordHi = Math.max(dirtyWordHi, wordHi);
+	}
+
+	/**
+	 * Advance the frontier by one layer within the window
+	 */
+	private void expand() {
+		int from = Math.max(rowMin, lo - 1);
+		int to = Math.min(rowMax, hi + 1);
+		int newLo = height;
+		int newHi = -1;
+		long found = 0;
+		long[] frontier = this.frontier, next = this.next;
+		long[] open = this.open, visited = this.visited, players = this.players;
+
+		for (int y = from; y <= to; y++) {
+			int row = y * words;
+			int up = y > 0 ? row - words : row;
+			int down = y < height - 1 ? row + words : row;
+			long any = 0;
+
+			// Left and right neighbours within each word, carrying
+			// bits across word boundaries, and the rows above and
+			// below. At the edges the row itself stands in for the
+			// missing one, its bits are already visited
+			for (int k = wordMin; k <= wordMax; k++) {
+				long f = frontier[row + k];
+				long bits = (f >>> 1) | (f << 1) | frontier[up + k] | frontier[down + k];
+				if (k < words - 1)
+					bits |= frontier[row + k + 1] << 63;
+				if (k > 0)
+					bits |= frontier[row + k - 1] >>> 63;
+
+				bits &= open[row + k] & ~visited[row + k];
+				next[row + k] = bits;
+				visited[row + k] |= bits;
+				found |= bits & players[row + k];
+				any |= bits;
+			}
+
+			if (any != 0) {
+				newLo = Math.min(newLo, y);
+				newHi = y;
+			}
+
+			// The row above is no longer needed, clear it so the
+			// board is empty when it is next written to
+			if (y > from)
+				clearRow(frontier, y - 1);
+		}
+
+		// The old frontier may reach one row past the window
+		for (int y = Math.max(0, lo); y <= Math.min(height - 1, hi); y++)
+			if (y < from || y >= to)
+				clearRow(frontier, y);
+		touch(from, to, wordMin, wordMax);
+
+		this.frontier = next;
+		this.next = frontier;
+
+		lo = newLo;
+		hi = newHi;
+		hit = found != 0;
+	}
+
+	private void clearRow(long[] board, int y) {
+		for (int k = wordMin; k <= wordMax; k++)
+			board[y * words + k] = 0;
+	}
+
+	/**
+	 * Get the number of layers expanded by the last search, out
+	 * and back
+	 *
+	 * @return layers
+	 */
+	public int getLastLayers() {
+		return this.lastLayers;
+	}
+
+	private void set(long[] board, int x, int y) {
+		board[y * words + (x >> 6)] |= 1L << (x & 63);
+	}
+
+	private void clear(long[] board, int x, int y) {
+		board[y * words + (x >> 6)] &= ~(1L << (x & 63));
+	}
+
+	private boolean get(long[] board, int x, int y) {
+		return (board[y * words + (x >> 6)] & (1L << (x & 63))) != 0;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the bitboard search steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(BitboardField::new);
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the bitboard search keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(BitboardField::new);
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(BitboardField::new);
+	}
+
+	@Test
+	public void agreesOnWideWorld() {
+		// Verify that searches spanning many words per row step the
+		// same way as the distance field
+		String[] world = PathFinderCheck.maze(201, 1);
+		Grid grid = new Grid(world);
+		BitboardField bitboard = new BitboardField(grid);
+		DistanceField field = new DistanceField(grid);
+		Random rand = new Random(1);
+		
+		for (int round = 0; round < 20; round++) {
+			ArrayList<NetworkPlayer> players = PathFinderCheck.players(world, 4, rand);
+			bitboard.update(players);
+			field.update(players);
+			for (int m = 0; m < 10; m++) {
+				int[] at = PathFinderCheck.randomOpen(world, rand);
+				assertEquals(field.getDirection(at[0], at[1]), bitboard.getDirection(at[0], at[1]));
+			}
+		}
+	}
+}
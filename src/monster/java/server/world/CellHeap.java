@@ -0,0 +1,202 @@
+package monster.java.server.world;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Indexed binary min-heap of cell indices keyed by an int.
+ * Each cell is in the heap at most once, and its key can be
+ * changed or the cell removed in O(log n) without allocating.
+ */
+public class CellHeap {
+	// Cells in heap order
+	private int[] heap;
+
+	// Key of each cell in the heap
+	private int[] key;
+
+	// Position of each cell in the heap, -1 if not in it
+	private int[] pos;
+
+	private int size = 0;
+
+	public CellHeap(int cells) {
+		this.heap = new int[cells];
+		this.key = new int[cells];
+		this.pos = new int[cells];
+		Arrays.fill(pos, -1);
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean contains(int cell) {
+		return pos[cell] >= 0;
+	}
+
+	/**
+	 * Get the cell at position p in heap order, for walking
+	 * every cell in the heap
+	 *
+	 * @param p 0 to size() - 1
+	 * @return cell
+	 */
+	public int cellAt(int p) {
+		return heap[p];
+	}
+
+	/**
+	 * Get the smallest key in the heap
+	 *
+	 * @return key, or Integer.MAX_VALUE if empty
+	 */
+	public int topKey() {
+		return size == 0 ? Integer.MAX_VALUE : key[heap[0]];
+	}
+
+	/**
+	 * Remove and return the cell with the smallest key
+	 *
+	 * @return cell
+	 */
+	public int pop() {
+		int cell = heap[0];
+		remove(cell);
+		return cell;
+	}
+
+	/**
+	 * Insert a cell, or change its key if already in the heap
+	 *
+	 * @param cell
+	 * @param k
+	 */
+	public void set(int cell, int k) {
+		if (pos[cell] < 0) {
+			key[cell] = k;
+			heap[size] = cell;
+			pos[cell] = size++;
+			up(pos[cell]);
+		} else if (k < key[cell]) {
+			key[cell] = k;
+			up(pos[cell]);
+		} else {
+			key[cell] = k;
+			down(pos[cell]);
+		}
+	}
+
+	/**
+	 * Remove a cell if it is in the heap
+	 *
+	 * @param cell
+	 */
+	public void remove(int cell) {
+		int p = pos[cell];
+		if (p < 0)
+			return;
+
+		pos[cell] = -1;
+		size--;
+		if (p == size)
+			return;
+
+		// Fill the hole with the last cell and restore order
+		int last = heap[size];
+		heap[p] = last;
+		pos[last] = p;
+		up(p);
+		down(pos[last]);
+	}
+
+	/**
+	 * Empty the heap
+	 */
+	public void clear() {
+		for (int p = 0; p < size; p++)
+			pos[heap[p]] = -1;
+		size = 0;
+	}
+
+	private void up(int p) {
+		int cell = heap[p];
+		while (p > 0) {
+			int parent = (p - 1) / 2;
+			if (key[heap[parent]] <= key[cell])
+				break;
+			heap[p] = heap[parent];
+			pos[heap[p]] = p;
+			p = parent;
+		}
+		heap[p] = cell;
+		pos[cell] = p;
+	}
+
+	private void down(int p) {
+		int cell = heap[p];
+		while (true) {
+			int child = 2 * p + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && key[heap[child + 1]] < key[heap[child]])
+				child++;
+			if (key[cell] <= key[heap[child]])
+				break;
+			heap[p] = heap[child];
+			pos[heap[p]] = p;
+			p = child;
+		}
+		heap[p] = cell;
+		pos[cell] = p;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void popsInKeyOrder() {
+		// Verify that cells come out smallest key first after keys
+		// are raised, lowered and cells removed
+		Random rand = new Random(1);
+		CellHeap heap = new CellHeap(500);
+		int[] keys = new int[500];
+		
+		for (int round = 0; round < 20; round++) {
+			Arrays.fill(keys, -1);
+			for (int k = 0; k < 2000; k++) {
+				int cell = rand.nextInt(500);
+				if (rand.nextInt(5) == 0) {
+					heap.remove(cell);
+					keys[cell] = -1;
+				} else {
+					keys[cell] = rand.nextInt(1000);
+					heap.set(cell, keys[cell]);
+				}
+			}
+			
+			int count = 0;
+			for (int key : keys)
+				if (key >= 0)
+					count++;
+			assertEquals(count, heap.size());
+			
+			int last = -1;
+			while (!heap.isEmpty()) {
+				int key = heap.topKey();
+				int cell = heap.pop();
+				assertEquals(keys[cell], key);
+				assertTrue(key >= last);
+				assertTrue(!heap.contains(cell));
+				last = key;
+			}
+			if (round % 2 == 0)
+				heap.clear();
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * The world compressed into a graph of junctions joined by
+ * corridors, built once at map load.
+ *
+ * A junction is any open cell without exactly two open neighbours:
+ * the forks Node counts with numAdj, plus dead ends. A run
+ * of two-neighbour cells between junctions is a corridor, and
+ * becomes a single edge weighted by its length. Each cell in a
+ * corridor only knows which corridor it is in and how far along.
+ *
+ * Each tick a Dijkstra runs over the junctions only, seeded from
+ * the ends of the corridors the players are standing in. The
+ * distance of any cell is then worked out from the two ends of its
+ * corridor, so the monster's lowest neighbour can be found without
+ * touching the cells in between.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class CorridorGraph implements PathFinder {
+	// Distance of junctions no player can reach
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private Grid grid;
+
+	// Junction id of each cell, -1 if not a junction
+	private int[] junction;
+
+	// Corridor of each corridor cell and its distance from the
+	// corridor's start, -1 if not in a corridor
+	private int[] corridor;
+	private int[] pos;
+
+	private int numJunctions = 0;
+
+	// Start and end junctions and length of each corridor
+	private int[] from, to, length;
+	private int numCorridors = 0;
+
+	// Corridors touching each junction, as ranges into edges
+	private int[] edgeStart;
+	private int[] edges;
+
+	// Distance from each junction to the closest player
+	private int[] dist;
+
+	// Dial's bucket queue: junctions waiting at each distance mod
+	// buckets.length, kept in doubly linked lists
+	private int[] buckets;
+	private int[] next, prev;
+	private int queued = 0;
+
+	// Cells of the living players
+	private int[] targets = new int[0];
+	private int numTargets = 0;
+
+	public CorridorGraph(Grid grid) {
+		this.grid = grid;
+		this.junction = new int[grid.size()];
+		this.corridor = new int[grid.size()];
+		this.pos = new int[grid.size()];
+		Arrays.fill(junction, -1);
+		Arrays.fill(corridor, -1);
+
+		int[] cells = new int[grid.countOpen()];
+		this.from = new int[16];
+		this.to = new int[16];
+		this.length = new int[16];
+
+		// Find all the junctions
+		for (int i = 0; i < grid.size(); i++)
+			if (!grid.isWall(i) && Integer.bitCount(grid.moves(i)) != 2)
+				cells[numJunctions++] = i;
+		for (int j = 0; j < numJunctions; j++)
+			junction[cells[j]] = j;
+
+		// Follow every corridor out of every junction
+		for (int j = 0; j < numJunctions; j++)
+			traceAll(cells[j]);
+
+		// Loops with no junction at all get one so they are traced
+		for (int i = 0; i < grid.size(); i++) {
+			if (!grid.isWall(i) && junction[i] < 0 && corridor[i] < 0) {
+				junction[i] = numJunctions;
+				cells[numJunctions++] = i;
+				traceAll(i);
+			}
+		}
+
+		// Group corridors by junction, both ends
+		this.edgeStart = new int[numJunctions + 1];
+		for (int c = 0; c < numCorridors; c++) {
+			edgeStart[from[c] + 1]++;
+			edgeStart[to[c] + 1]++;
+		}
+		for (int j = 0; j < numJunctions; j++)
+			edgeStart[j + 1] += edgeStart[j];
+
+		this.edges = new int[2 * numCorridors];
+		int[] fill = Arrays.copyOf(edgeStart, numJunctions);
+		for (int c = 0; c < numCorridors; c++) {
+			edges[fill[from[c]]++] = c;
+			edges[fill[to[c]]++] = c;
+		}
+
+		// Edges are never longer than the longest corridor, so
+		// one more bucket than that can never wrap onto itself
+		int longest = 1;
+		for (int c = 0; c < numCorridors; c++)
+			longest = Math.max(longest, length[c]);
+
+		this.dist = new int[numJunctions];
+		this.buckets = new int[longest + 1];
+		this.next = new int[numJunctions];
+		this.prev = new int[numJunctions];
+		Arrays.fill(buckets, -1);
+		Arrays.fill(prev, -2);
+	}
+
+	/**
+	 * Trace every corridor leaving a junction that has not been
+	 * traced from its other end already
+	 *
+	 * @param start cell of the junction
+	 */
+	private void traceAll(int start) {
+		for (int n = 0; n < 4; n++) {
+			int cur = grid.neighbour(start, n);
+			if (cur < 0)
+				continue;
+
+			// Two junctions side by side, add the edge once
+			if (junction[cur] >= 0) {
+				if (junction[cur] > junction[start])
+					addCorridor(junction[start], junction[cur], 1);
+				continue;
+			}
+
+			if (corridor[cur] >= 0)
+				continue;
+
+			int c = numCorridors;
+			int prev = start;
+			int steps = 1;
+			while (junction[cur] < 0) {
+				corridor[cur] = c;
+				pos[cur] = steps;
+
+				// A corridor cell has exactly one way on
+				int next = -1;
+				for (int k = 0; k < 4 && next < 0; k++) {
+					int v = grid.neighbour(cur, k);
+					if (v >= 0 && v != prev)
+						next = v;
+				}
+
+				prev = cur;
+				cur = next;
+				steps++;
+			}
+
+			addCorridor(junction[start], junction[cur], steps);
+		}
+	}
+
+	private void addCorridor(int a, int b, int len) {
+		if (numCorridors == from.length) {
+			from = Arrays.copyOf(from, numCorridors * 2);
+			to = Arrays.copyOf(to, numCorridors * 2);
+			length = Arrays.copyOf(length, numCorridors * 2);
+		}
+		from[numCorridors] = a;
+		to[numCorridors] = b;
+		length[numCorridors] = len;
+		numCorridors++;
+	}
+
+	/**
+	 * Run a Dijkstra over the junctions from the players
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		if (targets.length < players.size())
+			targets = new int[players.size()];
+
+		Arrays.fill(dist, UNREACHABLE);
+
+		// Seed the junctions at both ends of each player's corridor
+		numTargets = 0;
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (!p.isAlive())
+				continue;
+
+			int cell = grid.index(p.X(), p.Y());
+			if (cell < 0 || grid.isWall(cell))
+				continue;
+
+			targets[numTargets++] = cell;
+			if (junction[cell] >= 0) {
+				seed(junction[cell], 0);
+			} else {
+				int c = corridor[cell];
+				seed(from[c], pos[cell]);
+				seed(to[c], length[c] - pos[cell]);
+			}
+		}
+
+		// Dijkstra, taking junctions from the buckets in order of
+		// distance. The lowest seed is at most the longest corridor
+		int d = 0;
+		while (queued > 0) {
+			int b = d % buckets.length;
+			int j = buckets[b];
+			if (j < 0) {
+				d++;
+				continue;
+			}
+
+			unqueue(j);
+			for (int e = edgeStart[j]; e < edgeStart[j + 1]; e++) {
+				int c = edges[e];
+				int k = from[c] == j ? to[c] : from[c];
+				seed(k, dist[j] + length[c]);
+			}
+		}
+	}
+
+	/**
+	 * Lower the distance of a junction and (re)queue it
+	 *
+	 * @param j
+	 * @param d
+	 */
+	private void seed(int j, int d) {
+		if (d >= dist[j])
+			return;
+
+		if (prev[j] != -2)
+			unqueue(j);
+
+		dist[j] = d;
+		int b = d % buckets.length;
+		next[j] = buckets[b];
+		prev[j] = -1;
+		if (buckets[b] >= 0)
+			prev[buckets[b]] = j;
+		buckets[b] = j;
+		queued++;
+	}
+
+	private void unqueue(int j) {
+		if (prev[j] >= 0)
+			next[prev[j]] = next[j];
+		else
+			buckets[dist[j] % buckets.length] = next[j];
+		if (next[j] >= 0)
+			prev[next[j]] = prev[j];
+		prev[j] = -2;
+		queued--;
+	}
+
+	/**
+	 * Get the direction of the lowest neighbour of (x, y).
+	 * Ties go to the first direction, as in Node.beginSearch
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int i = grid.index(x, y);
+		if (i < 0)
+			return -1;
+
+		int min = UNREACHABLE;
+		int dir = -1;
+		for (int n = 0; n < 4; n++) {
+			int j = grid.neighbour(i, n);
+			if (j < 0)
+				continue;
+
+			int d = getDistance(j);
+			if (d < min) {
+				min = d;
+				dir = n;
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Get the distance from an open cell to the closest player,
+	 * either out through one end of its corridor or along the
+	 * corridor to a player inside it
+	 *
+	 * @param cell
+	 * @return distance or UNREACHABLE
+	 */
+	public int getDistance(int cell) {
+		if (junction[cell] >= 0)
+			return dist[junction[cell]];
+
+		int c = corridor[cell];
+		int p = pos[cell];
+		int min = UNREACHABLE;
+		if (dist[from[c]] != UNREACHABLE)
+			min = dist[from[c]] + p;
+		if (dist[to[c]] != UNREACHABLE)
+			min = Math.min(min, dist[to[c]] + length[c] - p);
+
+		for (int k = 0; k < numTargets; k++)
+			if (corridor[targets[k]] == c)
+				min = Math.min(min, Math.abs(pos[targets[k]] - p));
+
+		return min;
+	}
+
+	/**
+	 * Get the number of junctions, the nodes searched each tick
+	 *
+	 * @return junctions
+	 */
+	public int getJunctionCount() {
+		return this.numJunctions;
+	}
+
+	/**
+	 * Get the number of corridors, the edges searched each tick
+	 *
+	 * @return corridors
+	 */
+	public int getCorridorCount() {
+		return this.numCorridors;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the junction graph steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(CorridorGraph::new);
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the junction graph keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(CorridorGraph::new);
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(CorridorGraph::new);
+	}
+
+	@Test
+	public void distanceMatchesField() {
+		// Verify that every open cell gets the distance a full BFS
+		// gives it, corridor cells included
+		Random rand = new Random(1);
+		for (String[] world : PathFinderCheck.worlds()) {
+			Grid grid = new Grid(world);
+			CorridorGraph graph = new CorridorGraph(grid);
+			DistanceField field = new DistanceField(grid);
+			
+			for (int round = 0; round < 10; round++) {
+				ArrayList<NetworkPlayer> players = PathFinderCheck.players(world, 1 + round % 4, rand);
+				graph.update(players);
+				field.update(players);
+				for (int i = 0; i < grid.size(); i++)
+					if (!grid.isWall(i))
+						assertEquals(field.getDistance(grid.X(i), grid.Y(i)), graph.getDistance(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Breadth first distance field over the world, seeded from
+ * every living player at once. The field is rebuilt once per
+ * monster tick, after which the monster's next move is just a
+ * lookup of its lowest neighbour. Builds allocate nothing.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class DistanceField implements PathFinder {
+	// Distance of walls and cells that no player can reach
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private Grid grid;
+
+	// Distance from each cell to the closest player
+	private int[] dist;
+
+	// BFS queue, reused between builds
+	private int[] queue;
+
+	public DistanceField(Grid grid) {
+		this.grid = grid;
+		this.dist = new int[grid.size()];
+		this.queue = new int[grid.size()];
+		Arrays.fill(dist, UNREACHABLE);
+	}
+
+	/**
+	 * Rebuild the field from the current player positions
+	 *
+	 * @param players
+	 */
+	public void build(ArrayList<NetworkPlayer> players) {
+		Arrays.fill(dist, UNREACHABLE);
+		int head = 0, tail = 0;
+
+		// Seed the queue with every living player
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (!p.isAlive())
+				continue;
+
+			int i = grid.index(p.X(), p.Y());
+			if (i < 0 || grid.isWall(i) || dist[i] == 0)
+				continue;
+
+			dist[i] = 0;
+			queue[tail++] = i;
+		}
+
+		// Expand outwards, each cell is visited once
+		while (head < tail) {
+			int i = queue[head++];
+			int d = dist[i] + 1;
+
+			for (int n = 0; n < 4; n++) {
+				int j = grid.neighbour(i, n);
+				if (j >= 0 && dist[j] == UNREACHABLE) {
+					dist[j] = d;
+					queue[tail++] = j;
+				}
+			}
+		}
+	}
+
+	public void update(ArrayList<NetworkPlayer> players) {
+		build(players);
+	}
+
+	/**
+	 * Get the direction of the lowest neighbour of (x, y).
+	 * Ties go to the first direction, as in Node.beginSearch
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction to move, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int min = UNREACHABLE;
+		int dir = -1;
+
+		int i = grid.index(x, y);
+		if (i < 0)
+			return dir;
+
+		for (int n = 0; n < 4; n++) {
+			int j = grid.neighbour(i, n);
+			if (j >= 0 && dist[j] < min) {
+				min = dist[j];
+				dir = n;
+			}
+		}
+
+		return dir;
+	}
+
+	/**
+	 * Get the distance from (x, y) to the closest player
+	 *
+	 * @param x
+	 * @param y
+	 * @return distance or UNREACHABLE
+	 */
+	public int getDistance(int x, int y) {
+		int i = grid.index(x, y);
+		return i < 0 ? UNREACHABLE : dist[i];
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the field steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(DistanceField::new);
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the field keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(DistanceField::new);
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(DistanceField::new);
+	}
+}
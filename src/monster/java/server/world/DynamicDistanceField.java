@@ -0,0 +1,274 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Persistent player distance field that is repaired rather than
+ * rebuilt, in the style of Lifelong Planning A* (LPA*).
+ *
+ * Every open cell keeps g, its current distance estimate, and rhs,
+ * the one step lookahead (0 on a player, otherwise 1 + the lowest
+ * neighbouring g). Cells where the two differ are inconsistent and
+ * sit in a heap keyed by min(g, rhs). Each tick only the cells that
+ * players left or entered since the last tick are updated, and the
+ * heap is only worked until the monster's neighbours are correct,
+ * so the cost depends on how much changed rather than the map size.
+ * Anything left in the heap is picked up on a later tick, and
+ * later monsters in the same tick only continue the repair.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class DynamicDistanceField implements PathFinder {
+	// Distance of walls and cells that no player can reach
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private Grid grid;
+
+	// Distance estimate and lookahead of each cell
+	private int[] g;
+	private int[] rhs;
+
+	// Number of players standing on each cell
+	private int[] sources;
+
+	// Cell each player stood on last tick, -1 if none
+	private int[] playerCells = new int[0];
+
+	// Inconsistent cells
+	private CellHeap open;
+
+	// Cells processed by the last tick's repairs, in total,
+	// and the number of ticks
+	private int lastRepair = 0;
+	private long totalRepaired = 0;
+	private long repairs = 0;
+
+	public DynamicDistanceField(Grid grid) {
+		this.grid = grid;
+		this.g = new int[grid.size()];
+		this.rhs = new int[grid.size()];
+		this.sources = new int[grid.size()];
+		this.open = new CellHeap(grid.size());
+		Arrays.fill(g, UNREACHABLE);
+		Arrays.fill(rhs, UNREACHABLE);
+	}
+
+	/**
+	 * Apply player moves since the last tick
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		sync(players);
+
+		lastRepair = 0;
+		repairs++;
+	}
+
+	/**
+	 * Repair the field around (x, y) and get the direction to move
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int i = grid.index(x, y);
+		if (i < 0)
+			return -1;
+
+		repair(i);
+
+		int min = UNREACHABLE;
+		int dir = -1;
+		for (int n = 0; n < 4; n++) {
+			int j = grid.neighbour(i, n);
+			if (j >= 0 && g[j] < min) {
+				min = g[j];
+				dir = n;
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Move the sources to where the players are now, updating
+	 * only the cells that a player left or entered
+	 *
+	 * @param players
+	 */
+	public void sync(ArrayList<NetworkPlayer> players) {
+		if (playerCells.length < players.size()) {
+			int old = playerCells.length;
+			playerCells = Arrays.copyOf(playerCells, players.size());
+			Arrays.fill(playerCells, old, playerCells.length, -1);
+		}
+
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			int cell = -1;
+			if (p.isAlive()) {
+				cell = grid.index(p.X(), p.Y());
+				if (cell >= 0 && grid.isWall(cell))
+					cell = -1;
+			}
+
+			int last = playerCells[k];
+			if (cell == last)
+				continue;
+
+			if (last >= 0 && --sources[last] == 0)
+				update(last);
+			if (cell >= 0 && ++sources[cell] == 1)
+				update(cell);
+
+			playerCells[k] = cell;
+		}
+	}
+
+	/**
+	 * Process inconsistent cells until the neighbours of cell i
+	 * hold their true distance
+	 *
+	 * @param i
+	 */
+	private void repair(int i) {
+		int touched = 0;
+
+		while (!open.isEmpty() && open.topKey() <= goalKey(i)) {
+			int u = open.pop();
+			touched++;
+
+			if (g[u] > rhs[u]) {
+				// overconsistent, the distance dropped
+				g[u] = rhs[u];
+				for (int n = 0; n < 4; n++) {
+					int v = grid.neighbour(u, n);
+					if (v >= 0)
+						update(v);
+				}
+			} else {
+				// underconsistent, the distance grew
+				g[u] = UNREACHABLE;
+				update(u);
+				for (int n = 0; n < 4; n++) {
+					int v = grid.neighbour(u, n);
+					if (v >= 0)
+						update(v);
+				}
+			}
+		}
+
+		lastRepair += touched;
+		totalRepaired += touched;
+
+		if (MonsterServer.DEBUG)
+			System.out.println("Distance field repair touched " + touched + " cells");
+	}
+
+	/**
+	 * Get the lowest key among the open neighbours of cell i
+	 *
+	 * @param i
+	 * @return key, or UNREACHABLE
+	 */
+	private int goalKey(int i) {
+		int min = UNREACHABLE;
+		for (int n = 0; n < 4; n++) {
+			int j = grid.neighbour(i, n);
+			if (j >= 0)
+				min = Math.min(min, Math.min(g[j], rhs[j]));
+		}
+		return min;
+	}
+
+	/**
+	 * Recompute the lookahead of cell u and queue it if it is
+	 * inconsistent
+	 *
+	 * @param u
+	 */
+	private void update(int u) {
+		if (sources[u] > 0) {
+			rhs[u] = 0;
+		} else {
+			int min = UNREACHABLE;
+			for (int n = 0; n < 4; n++) {
+				int v = grid.neighbour(u, n);
+				if (v >= 0 && g[v] != UNREACHABLE)
+					min = Math.min(min, g[v] + 1);
+			}
+			rhs[u] = min;
+		}
+
+		if (g[u] != rhs[u])
+			open.set(u, Math.min(g[u], rhs[u]));
+		else
+			open.remove(u);
+	}
+
+	/**
+	 * Get the distance from (x, y) to the closest player, as
+	 * of the last repair
+	 *
+	 * @param x
+	 * @param y
+	 * @return distance or UNREACHABLE
+	 */
+	public int getDistance(int x, int y) {
+		int i = grid.index(x, y);
+		return i < 0 ? UNREACHABLE : g[i];
+	}
+
+	/**
+	 * Get the number of cells processed in the last tick
+	 *
+	 * @return cells
+	 */
+	public int getLastRepair() {
+		return this.lastRepair;
+	}
+
+	/**
+	 * Get the number of cells processed by all repairs
+	 *
+	 * @return cells
+	 */
+	public long getTotalRepaired() {
+		return this.totalRepaired;
+	}
+
+	/**
+	 * Get the number of ticks repaired
+	 *
+	 * @return repairs
+	 */
+	public long getRepairs() {
+		return this.repairs;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the repaired field steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(DynamicDistanceField::new);
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the repaired field keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(DynamicDistanceField::new);
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(DynamicDistanceField::new);
+	}
+}
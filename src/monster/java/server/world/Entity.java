@@ -1,22 +1,27 @@
 package monster.java.server.world;
 
+/**
+ * A player or monster on the board. Players are moved by their
+ * connection's thread and read by the game loop, so the position
+ * is only touched while holding the entity's lock
+ */
 public class Entity {
 	
 	protected int x, y;
 	private int rank;
 	private String name;
-	private boolean alive;
+	private volatile boolean alive;
 	
 	public Entity() {
 		this.alive = true;
 	}
 	
-	public void setPos(int x, int y) {
+	public synchronized void setPos(int x, int y) {
 		this.x = x;
 		this.y = y;
 	}
 	
-	public void addPos(int x, int y) {
+	public synchronized void addPos(int x, int y) {
 		this.x += x;
 		this.y += y;
 	}
@@ -29,13 +34,25 @@ public class Entity {
 		return this.name;
 	}
 	
-	public int X() {
+	public synchronized int X() {
 		return this.x;
 	}
 	
-	public int Y() {
+	public synchronized int Y() {
 		return this.y;
 	}
+	
+	/**
+	 * Check the position in one step, so a move between reading
+	 * x and y can't be seen half done
+	 * 
+	 * @param x
+	 * @param y
+	 * @return true if at (x, y)
+	 */
+	public synchronized boolean isAt(int x, int y) {
+		return this.x == x && this.y == y;
+	}
 
 	public void kill() {
 		this.alive = false;
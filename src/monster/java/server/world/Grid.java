@@ -0,0 +1,243 @@
+package monster.java.server.world;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compact, primitive representation of the world for path finding.
+ *
+ * Cells are indexed y * width + x. Each cell costs 5 bits: one bit
+ * in a packed wall bitset, and a 4 bit mask of which neighbours
+ * can be moved to. The neighbour itself is found by adding a fixed
+ * per direction offset to the index, so there are no per cell
+ * objects or references. Both tables can live off-heap.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class Grid {
+	// Offsets for each direction
+	public static final int[] DX = {0, 1, 0, -1};
+	public static final int[] DY = {-1, 0, 1, 0};
+
+	private int width, height;
+
+	// Number of open (non wall) cells
+	private int open;
+
+	// Index offset of the neighbour in each direction
+	private int[] offset;
+
+	// 1 bit per cell, set for walls
+	private ByteBuffer walls;
+
+	// 4 bits per cell, bit n set if the neighbour in direction n
+	// is inside the world and not a wall
+	private ByteBuffer moves;
+
+	public Grid(String[] world) {
+		this(world, false);
+	}
+
+	/**
+	 * Build the grid for a world. Cells past the end of a short
+	 * row are walls
+	 *
+	 * @param world
+	 * @param direct true to keep the tables off-heap
+	 */
+	public Grid(String[] world, boolean direct) {
+		this.height = world.length;
+		this.width = 0;
+		for (String row : world)
+			this.width = Math.max(this.width, row.length());
+
+		this.offset = new int[]{-width, 1, width, -1};
+
+		int cells = width * height;
+		this.walls = direct ? ByteBuffer.allocateDirect((cells + 7) / 8)
+				: ByteBuffer.allocate((cells + 7) / 8);
+		this.moves = direct ? ByteBuffer.allocateDirect((cells + 1) / 2)
+				: ByteBuffer.allocate((cells + 1) / 2);
+
+		// Pack the wall bits
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (x >= world[y].length() || world[y].charAt(x) == '#') {
+					int i = y * width + x;
+					walls.put(i >> 3, (byte) (walls.get(i >> 3) | (1 << (i & 7))));
+				} else {
+					open++;
+				}
+			}
+		}
+
+		// Work out the open neighbours of every cell, walls included
+		// so anything stuck in a wall can still step out
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int mask = 0;
+				for (int n = 0; n < 4; n++) {
+					int j = index(x + DX[n], y + DY[n]);
+					if (j >= 0 && !isWall(j))
+						mask |= 1 << n;
+				}
+
+				int i = y * width + x;
+				int shift = (i & 1) << 2;
+				moves.put(i >> 1, (byte) (moves.get(i >> 1) | (mask << shift)));
+			}
+		}
+	}
+
+	/**
+	 * Get the cell index of (x, y)
+	 *
+	 * @param x
+	 * @param y
+	 * @return index, or -1 if out of bounds
+	 */
+	public int index(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return -1;
+		return y * width + x;
+	}
+
+	/**
+	 * Get the neighbour of cell i in direction n
+	 *
+	 * @param i
+	 * @param n
+	 * @return index of the neighbour, or -1 if it is a wall or
+	 *         outside the world
+	 */
+	public int neighbour(int i, int n) {
+		if ((moves(i) & (1 << n)) == 0)
+			return -1;
+		return i + offset[n];
+	}
+
+	/**
+	 * Get the mask of open neighbours of cell i, bit n set if
+	 * direction n can be moved to
+	 *
+	 * @param i
+	 * @return mask
+	 */
+	public int moves(int i) {
+		return (moves.get(i >> 1) >> ((i & 1) << 2)) & 0xF;
+	}
+
+	/**
+	 * Get the first direction that can be moved in from cell i
+	 *
+	 * @param i
+	 * @return direction, or -1 if walled in
+	 */
+	public int firstMove(int i) {
+		int mask = moves(i);
+		return mask == 0 ? -1 : Integer.numberOfTrailingZeros(mask);
+	}
+
+	public boolean isWall(int i) {
+		return (walls.get(i >> 3) & (1 << (i & 7))) != 0;
+	}
+
+	/**
+	 * Check if (x, y) is inside the world and not a wall
+	 *
+	 * @param x
+	 * @param y
+	 * @return true if open
+	 */
+	public boolean isOpen(int x, int y) {
+		int i = index(x, y);
+		return i >= 0 && !isWall(i);
+	}
+
+	public int X(int i) {
+		return i % width;
+	}
+
+	public int Y(int i) {
+		return i / width;
+	}
+
+	public int getWidth() {
+		return this.width;
+	}
+
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Get the total number of cells, walls included
+	 *
+	 * @return width * height
+	 */
+	public int size() {
+		return width * height;
+	}
+
+	/**
+	 * Get the number of open cells
+	 *
+	 * @return open cells
+	 */
+	public int countOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Get the number of bytes used by the cell tables
+	 *
+	 * @return size in bytes
+	 */
+	public long memorySize() {
+		return walls.capacity() + moves.capacity();
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void matchesWorld() {
+		// Verify that walls and moves match the world's rows, cells
+		// past a short row being walls, on and off the heap
+		String[][] worlds = PathFinderCheck.worlds().toArray(new String[0][]);
+		worlds = Arrays.copyOf(worlds, worlds.length + 1);
+		worlds[worlds.length - 1] = new String[]{"__#", "_", "#__#"};
+		
+		for (String[] world : worlds) {
+			for (Grid grid : new Grid[]{new Grid(world), new Grid(world, true)}) {
+				int open = 0;
+				for (int y = 0; y < grid.getHeight(); y++) {
+					for (int x = 0; x < grid.getWidth(); x++) {
+						int i = grid.index(x, y);
+						assertEquals(x, grid.X(i));
+						assertEquals(y, grid.Y(i));
+						
+						boolean wall = x >= world[y].length() || world[y].charAt(x) == '#';
+						assertEquals(wall, grid.isWall(i));
+						if (!wall)
+							open++;
+						
+						int first = -1;
+						for (int n = 0; n < 4; n++) {
+							int j = grid.index(x + DX[n], y + DY[n]);
+							boolean move = j >= 0 && !grid.isWall(j);
+							assertEquals(move ? j : -1, grid.neighbour(i, n));
+							if (move && first < 0)
+								first = n;
+						}
+						assertEquals(first, grid.firstMove(i));
+					}
+				}
+				assertEquals(open, grid.countOpen());
+				assertEquals(-1, grid.index(-1, 0));
+				assertEquals(-1, grid.index(0, grid.getHeight()));
+			}
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * A* search from the monster to the nearest living player, guided
+ * by landmark (ALT) lower bounds, with a hard cap on the number of
+ * cells expanded per tick.
+ *
+ * When the cap is hit the monster waits and the search is carried
+ * over as is to the next tick. The monster has not moved, so the
+ * distances found so far are still good; only the heuristic is
+ * refreshed for where the players have gone. A player standing on
+ * an expanded cell ends the search once nothing left in the open
+ * list could be closer.
+ *
+ * Each monster needs its own instance, the landmarks are shared.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class LandmarkAStar implements PathFinder {
+	private Grid grid;
+	private Landmarks landmarks;
+
+	// Max cells expanded per call to getDirection
+	private int budget;
+
+	// Cell the current search started from, -1 if none
+	private int start = -1;
+
+	// Search id, marks g and closed as belonging to this search
+	private int stamp = 0;
+	private int[] seen;
+	private int[] closed;
+
+	// Distance from the start, and first step taken to get there
+	private int[] g;
+	private byte[] first;
+
+	// Open list keyed by g + h
+	private CellHeap open;
+
+	// Scratch space for refreshing keys
+	private int[] scratch;
+
+	// Cells of the living players
+	private int[] targets = new int[0];
+	private int numTargets = 0;
+
+	// Cells expanded last tick, and ticks the search ran out
+	private int lastExpanded = 0;
+	private long carriedOver = 0;
+
+	public LandmarkAStar(Grid grid, Landmarks landmarks, int budget) {
+		this.grid = grid;
+		this.landmarks = landmarks;
+		this.budget = budget;
+		this.seen = new int[grid.size()];
+		this.closed = new int[grid.size()];
+		this.g = new int[grid.size()];
+		this.first = new byte[grid.size()];
+		this.open = new CellHeap(grid.size());
+		this.scratch = new int[grid.size()];
+	}
+
+	/**
+	 * Record the cells of the living players
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		if (targets.length < players.size())
+			targets = new int[players.size()];
+
+		numTargets = 0;
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (!p.isAlive())
+				continue;
+
+			int cell = grid.index(p.X(), p.Y());
+			if (cell >= 0 && !grid.isWall(cell))
+				targets[numTargets++] = cell;
+		}
+	}
+
+	/**
+	 * Continue (or begin) the search from (x, y)
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable or the
+	 *         search ran out of budget this tick
+	 */
+	public int getDirection(int x, int y) {
+		int s = grid.index(x, y);
+		if (s < 0 || numTargets == 0) {
+			start = -1;
+			return -1;
+		}
+
+		if (s != start)
+			begin(s);
+		else
+			refresh();
+
+		int expanded = 0;
+		while (true) {
+			// Nearest player on an expanded cell
+			int best = Integer.MAX_VALUE;
+			int dir = -1;
+			for (int k = 0; k < numTargets; k++) {
+				int t = targets[k];
+				if (closed[t] == stamp && g[t] < best) {
+					best = g[t];
+					dir = first[t];
+				}
+			}
+
+			// Nothing left open can beat it, done. Next tick
+			// starts again from wherever the monster ends up
+			if (best <= open.topKey() || open.isEmpty()) {
+				start = -1;
+				lastExpanded = expanded;
+
+				// Standing on a player, every open neighbour is 1
+				// away, so step to the first as Node does
+				return best == 0 ? grid.firstMove(s) : dir;
+			}
+
+			// Out of time, pick up from here next tick
+			if (expanded == budget) {
+				carriedOver++;
+				lastExpanded = expanded;
+				return -1;
+			}
+
+			expand(open.pop());
+			expanded++;
+		}
+	}
+
+	/**
+	 * Start a new search
+	 *
+	 * @param s
+	 */
+	private void begin(int s) {
+		start = s;
+		stamp++;
+		open.clear();
+
+		seen[s] = stamp;
+		g[s] = 0;
+		first[s] = -1;
+		open.set(s, heuristic(s));
+	}
+
+	/**
+	 * The players have moved since the keys were worked out,
+	 * recompute them with the new heuristic
+	 */
+	private void refresh() {
+		int size = open.size();
+		for (int p = 0; p < size; p++)
+			scratch[p] = open.cellAt(p);
+		for (int p = 0; p < size; p++)
+			open.set(scratch[p], g[scratch[p]] + heuristic(scratch[p]));
+	}
+
+	private void expand(int u) {
+		closed[u] = stamp;
+
+		for (int n = 0; n < 4; n++) {
+			int v = grid.neighbour(u, n);
+			if (v < 0 || closed[v] == stamp)
+				continue;
+
+			int ng = g[u] + 1;
+			if (seen[v] != stamp || ng < g[v]) {
+				seen[v] = stamp;
+				g[v] = ng;
+				first[v] = (byte) (u == start ? n : first[u]);
+				open.set(v, ng + heuristic(v));
+			}
+		}
+	}
+
+	/**
+	 * Lower bound on the distance from u to the nearest player
+	 *
+	 * @param u
+	 * @return lower bound
+	 */
+	private int heuristic(int u) {
+		int min = Integer.MAX_VALUE;
+		for (int k = 0; k < numTargets; k++)
+			min = Math.min(min, landmarks.lowerBound(u, targets[k]));
+		return numTargets == 0 ? 0 : min;
+	}
+
+	/**
+	 * Get the number of cells expanded last tick
+	 *
+	 * @return cells
+	 */
+	public int getLastExpanded() {
+		return this.lastExpanded;
+	}
+
+	/**
+	 * Get the number of ticks the search ran out of budget
+	 *
+	 * @return ticks
+	 */
+	public long getCarriedOver() {
+		return this.carriedOver;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the search steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(grid -> new LandmarkAStar(grid, new Landmarks(grid), grid.size()));
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the search keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(grid -> new LandmarkAStar(grid, new Landmarks(grid), grid.size()));
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(grid -> new LandmarkAStar(grid, new Landmarks(grid), grid.size()));
+	}
+
+	@Test
+	public void carriesSearchOver() {
+		// Verify that a search out of budget waits, then picks up
+		// where it stopped and ends the same way as the distance field
+		Random rand = new Random(1);
+		for (String[] world : PathFinderCheck.worlds()) {
+			Grid grid = new Grid(world);
+			LandmarkAStar search = new LandmarkAStar(grid, new Landmarks(grid), 4);
+			DistanceField field = new DistanceField(grid);
+			
+			for (int round = 0; round < 10; round++) {
+				ArrayList<NetworkPlayer> players = PathFinderCheck.players(world, 1 + round % 4, rand);
+				int[] at = PathFinderCheck.randomOpen(world, rand);
+				search.update(players);
+				field.update(players);
+				
+				int d = search.getDirection(at[0], at[1]);
+				for (int tick = 0; d < 0 && tick < grid.size(); tick++) {
+					search.update(players);
+					d = search.getDirection(at[0], at[1]);
+				}
+				if (field.getDistance(at[0], at[1]) != DistanceField.UNREACHABLE)
+					assertEquals(field.getDirection(at[0], at[1]), d);
+			}
+			assertTrue(search.getCarriedOver() > 0);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package monster.java.server.world;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Landmark distances for the ALT (A*, Landmarks, Triangle
+ * inequality) heuristic, computed once at map load.
+ *
+ * A handful of landmark cells are picked far apart, and the
+ * distance from each landmark to every cell is stored. For any
+ * two cells u and t, |d(L, u) - d(L, t)| can never be more than
+ * the real distance between them, and the largest such value
+ * over all landmarks makes a tight lower bound in a maze.
+ */
+public class Landmarks {
+	// Number of landmarks to pick unless told otherwise
+	public static final int DEFAULT_COUNT = 8;
+
+	// Distance of cells a landmark cannot reach
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private Grid grid;
+
+	// Distance from each landmark to every cell
+	private int[][] dist;
+
+	public Landmarks(Grid grid) {
+		this(grid, DEFAULT_COUNT);
+	}
+
+	/**
+	 * Pick landmarks by farthest point selection: each new
+	 * landmark is the cell farthest from all landmarks so far
+	 *
+	 * @param grid
+	 * @param count
+	 */
+	public Landmarks(Grid grid, int count) {
+		this.grid = grid;
+		this.dist = new int[0][];
+
+		int[] queue = new int[grid.size()];
+
+		// Distance to the closest landmark picked so far
+		int[] closest = new int[grid.size()];
+		Arrays.fill(closest, UNREACHABLE);
+
+		// Start from the first open cell
+		int next = -1;
+		for (int i = 0; i < grid.size() && next < 0; i++)
+			if (!grid.isWall(i))
+				next = i;
+
+		for (int k = 0; k < count && next >= 0; k++) {
+			int[] d = new int[grid.size()];
+			bfs(next, d, queue);
+
+			// The first BFS only finds a far corner to start from
+			if (k == 0) {
+				next = farthest(d);
+				d = new int[grid.size()];
+				bfs(next, d, queue);
+			}
+
+			dist = Arrays.copyOf(dist, dist.length + 1);
+			dist[dist.length - 1] = d;
+
+			for (int i = 0; i < grid.size(); i++)
+				closest[i] = Math.min(closest[i], d[i]);
+			next = farthest(closest);
+		}
+	}
+
+	/**
+	 * Get a lower bound on the distance between two cells
+	 *
+	 * @param u
+	 * @param t
+	 * @return lower bound, 0 if nothing is known
+	 */
+	public int lowerBound(int u, int t) {
+		int best = 0;
+		for (int[] d : dist) {
+			if (d[u] == UNREACHABLE || d[t] == UNREACHABLE)
+				continue;
+			best = Math.max(best, Math.abs(d[u] - d[t]));
+		}
+		return best;
+	}
+
+	/**
+	 * Get the number of landmarks picked
+	 *
+	 * @return count
+	 */
+	public int count() {
+		return dist.length;
+	}
+
+	private void bfs(int root, int[] d, int[] queue) {
+		Arrays.fill(d, UNREACHABLE);
+		int head = 0, tail = 0;
+		d[root] = 0;
+		queue[tail++] = root;
+
+		while (head < tail) {
+			int i = queue[head++];
+			for (int n = 0; n < 4; n++) {
+				int j = grid.neighbour(i, n);
+				if (j >= 0 && d[j] == UNREACHABLE) {
+					d[j] = d[i] + 1;
+					queue[tail++] = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the reachable cell with the largest distance
+	 *
+	 * @param d
+	 * @return cell, or -1 if every cell is already 0 or unreachable
+	 */
+	private int farthest(int[] d) {
+		int best = -1;
+		int max = 0;
+		for (int i = 0; i < d.length; i++) {
+			if (d[i] != UNREACHABLE && d[i] > max && !grid.isWall(i)) {
+				max = d[i];
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void lowerBoundIsAdmissible() {
+		// Verify that the bound is never more than the real distance,
+		// and is 0 from a cell to itself
+		Random rand = new Random(1);
+		for (String[] world : PathFinderCheck.worlds()) {
+			Grid grid = new Grid(world);
+			Landmarks landmarks = new Landmarks(grid);
+			assertTrue(landmarks.count() > 0);
+			
+			for (int round = 0; round < 20; round++) {
+				int[] at = PathFinderCheck.randomOpen(world, rand);
+				int u = grid.index(at[0], at[1]);
+				int[] dist = PathFinderCheck.bfs(grid, u);
+				assertEquals(0, landmarks.lowerBound(u, u));
+				for (int t = 0; t < grid.size(); t++)
+					if (dist[t] != Integer.MAX_VALUE)
+						assertTrue(landmarks.lowerBound(u, t) <= dist[t]);
+			}
+		}
+	}
+}
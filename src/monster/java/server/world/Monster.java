@@ -1,48 +1,28 @@
 package monster.java.server.world;
 
-import java.util.ArrayList;
-
-import monster.java.server.net.MessageProtocol;
-import monster.java.server.net.NetworkPlayer;
-
 /**
- * The monster class which controls the monster entity
- * and begins a node search on each iteration to find
- * its next move
+ * The monster class which controls the monster entity.
+ * Each iteration it is given a direction by the path finder
+ * shared by every monster in its MonsterGroup
  * @author Kyle
  *
  */
 public class Monster extends Entity {
 	private int worldSize;
+	private int id;
 
-	public Monster(String[] world) {
-		this.worldSize = world.length;
-		
-		Node.init(world);
-		
-		MessageProtocol.sendMonsterMove(this.x, this.y);
+	public Monster(int id, int worldSize) {
+		this.id = id;
+		this.worldSize = worldSize;
 	}
 	
 	/**
-	 * Sets the position of monster
-	 * @param x
-	 * @param y
+	 * Moves one step towards the closest player
+	 * @param finder
 	 */
-	public void setPos(int x, int y) {
-		// Set monster position to given coords
-		super.setPos(x, y);
-		
-		// Broadcast monster coords to players
-		MessageProtocol.sendMonsterMove(x, y);
-	}
-	
-	/**
-	 * Finds closest player and moves one step towards player
-	 * @param players
-	 */
-  	public void moveToPlayer(ArrayList<NetworkPlayer> players) {
+  	public void moveToPlayer(PathFinder finder) {
   		// Get direction of closest player
-		int d = Node.getNode(Node.nodes, x, y).beginSearch(players);
+		int d = finder.getDirection(x, y);
 		
 		// Move up
 		if(d == 0)
@@ -76,8 +56,14 @@ public class Monster extends Entity {
 		
 		// Add x, y values to Monster position
 		this.addPos(x, y);
-		
-		// Transmit Monster location to clients
-		MessageProtocol.sendMonsterMove(this.x, this.y);
+	}
+	
+	/**
+	 * Get the monster's ID, 0 for the first monster
+	 * 
+	 * @return ID
+	 */
+	public int getID() {
+		return this.id;
 	}
 }
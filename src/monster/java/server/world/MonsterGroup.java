@@ -0,0 +1,129 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Every monster on the board. The path finder is brought up to
+ * date once per tick and shared by all monsters, so adding
+ * monsters only adds a direction lookup each, and their
+ * positions go out together in one broadcast by the room.
+ *
+ * The exceptions are the bounded A* mode, where each monster
+ * searches for itself within its share of the tick's budget, and
+ * the bitboard BFS, which searches again for each monster
+ *
+ */
+public class MonsterGroup {
+	// Use the corridor graph when it has at most 1/n of the open
+	// cells as junctions, below that it saves too little
+	private static final int CORRIDOR_MIN_RATIO = 4;
+	
+	private ArrayList<Monster> monsters;
+	
+	// Path finder of each monster, usually all the same one
+	private PathFinder[] finders;
+
+	public MonsterGroup(String[] world, int count) {
+		Grid grid = new Grid(world, MonsterServer.DIRECT_WORLD);
+		
+		// Precompute routes when the table fits in the budget, once
+		// per map for all its rooms, otherwise cache trees for the players' cells if there is
+		// a cache budget, run a bounded A* per monster if there is
+		// an expansion budget, or a bitboard BFS if asked for.
+		// Failing that, search the junctions of maze-like worlds,
+		// else repair a distance field every tick
+		this.finders = new PathFinder[count];
+		if (NextHopTable.fits(grid, MonsterServer.ROUTE_TABLE_BUDGET)) {
+			Arrays.fill(finders, NextHopTable.load(world, grid));
+		} else if (MonsterServer.TREE_CACHE_BUDGET > 0) {
+			Arrays.fill(finders, new TreeCache(grid, MonsterServer.TREE_CACHE_BUDGET));
+		} else if (MonsterServer.EXPANSION_BUDGET > 0) {
+			Landmarks landmarks = new Landmarks(grid);
+			for (int i = 0; i < count; i++)
+				finders[i] = new LandmarkAStar(grid, landmarks,
+						Math.max(1, MonsterServer.EXPANSION_BUDGET / count));
+		} else if (MonsterServer.BITBOARD_SEARCH) {
+			Arrays.fill(finders, new BitboardField(grid));
+		} else {
+			CorridorGraph graph = new CorridorGraph(grid);
+			if (graph.getJunctionCount() * CORRIDOR_MIN_RATIO <= grid.countOpen())
+				Arrays.fill(finders, graph);
+			else
+				Arrays.fill(finders, new DynamicDistanceField(grid));
+		}
+		
+		// Spread the monsters evenly along the middle row, a
+		// single monster starts in the centre
+		int size = world.length;
+		this.monsters = new ArrayList<Monster>();
+		for (int i = 0; i < count; i++) {
+			Monster monster = new Monster(i, size);
+			monster.setPos(size * (i + 1) / (count + 1), size / 2);
+			this.monsters.add(monster);
+		}
+	}
+	
+	/**
+	 * Move every monster one step towards its closest player
+	 * 
+	 * @param players
+	 */
+	public void moveToPlayers(ArrayList<NetworkPlayer> players) {
+		// Update each distinct finder once
+		for (int i = 0; i < finders.length; i++)
+			if (i == 0 || finders[i] != finders[i - 1])
+				finders[i].update(players);
+		
+		for (int i = 0; i < monsters.size(); i++)
+			monsters.get(i).moveToPlayer(finders[i]);
+	}
+	
+	/**
+	 * Check if any monster is at (x, y)
+	 * 
+	 * @param x
+	 * @param y
+	 * @return true if a monster is there
+	 */
+	public boolean isMonsterAt(int x, int y) {
+		for (Monster monster : monsters)
+			if (monster.X() == x && monster.Y() == y)
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Check if any monster is on an entity's cell
+	 * 
+	 * @param entity
+	 * @return true if a monster is there
+	 */
+	public boolean isMonsterOn(Entity entity) {
+		for (Monster monster : monsters)
+			if (entity.isAt(monster.X(), monster.Y()))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Give up anything shared with other rooms, once the game is
+	 * over
+	 */
+	public void close() {
+		for (PathFinder finder : finders)
+			if (finder instanceof NextHopTable)
+				((NextHopTable) finder).release();
+	}
+	
+	public ArrayList<Monster> getMonsters() {
+		return this.monsters;
+	}
+	
+	public PathFinder getPathFinder(int i) {
+		return this.finders[i];
+	}
+}
@@ -0,0 +1,416 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Precomputed all-pairs routing table for a static world.
+ *
+ * For every pair of open cells (from, to) the table holds the
+ * direction of the first step on a shortest path, packed into
+ * 2 bits. Only open cells get an entry, so the table takes
+ * open^2 / 4 bytes. Once built, the monster's direction towards
+ * any player is a table read rather than a search.
+ *
+ * The routes only depend on the world, so they are built once per
+ * map and shared by every room playing it, each room with its own
+ * players. They are dropped once the last of those rooms releases
+ * its table.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class NextHopTable implements PathFinder {
+	// Largest table an array can hold
+	private static final long MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	// Tables built, by world, while any room uses them
+	private static ConcurrentHashMap<List<String>, NextHopTable> tables =
+			new ConcurrentHashMap<List<String>, NextHopTable>();
+
+	// Rooms using a table in tables, only changed by its world's
+	// compute
+	private int users = 0;
+
+	// World of a loaded table, null once released or if built
+	// on its own
+	private List<String> rows;
+
+	private Grid grid;
+
+	// Number of open cells
+	private int count;
+
+	// Cell index (y * width + x) to open cell id, -1 for walls
+	private int[] ids;
+
+	// Open cell id to cell index
+	private int[] cells;
+
+	// Connected area of each open cell, cells in different
+	// areas have no route between them
+	private int[] area;
+
+	// Packed next hops, 4 per byte, entry (to * count + from)
+	private byte[] hops;
+
+	// Player cell found by the last call to nearest
+	private int nearestCell;
+
+	// Players as of the last update
+	private ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+
+	/**
+	 * Get the table for a world, building it the first time
+	 *
+	 * @param world rows of the map
+	 * @param grid built from the world
+	 * @return table sharing the world's routes, with its own players
+	 */
+	public static NextHopTable load(String[] world, Grid grid) {
+		List<String> rows = List.of(world);
+		NextHopTable table = new NextHopTable(tables.compute(rows, (key, routes) -> {
+			if (routes == null)
+				routes = new NextHopTable(grid);
+			routes.users++;
+			return routes;
+		}));
+		table.rows = rows;
+		return table;
+	}
+
+	/**
+	 * Give up a table from load, dropping the world's routes once
+	 * no room uses them
+	 */
+	public void release() {
+		if (this.rows == null)
+			return;
+		tables.computeIfPresent(this.rows, (key, routes) -> --routes.users == 0 ? null : routes);
+		this.rows = null;
+	}
+
+	/**
+	 * Build the routes for a world
+	 *
+	 * @param grid
+	 * @throws IllegalArgumentException if the table can't fit in an
+	 *             array
+	 */
+	public NextHopTable(Grid grid) {
+		if (sizeOf(grid) > MAX_SIZE)
+			throw new IllegalArgumentException("Route table too big: " + sizeOf(grid) + " bytes");
+		this.grid = grid;
+
+		// Give every open cell a dense id
+		this.ids = new int[grid.size()];
+		this.count = grid.countOpen();
+		this.cells = new int[count];
+		int id = 0;
+		for (int i = 0; i < grid.size(); i++) {
+			if (grid.isWall(i)) {
+				ids[i] = -1;
+			} else {
+				ids[i] = id;
+				cells[id++] = i;
+			}
+		}
+
+		this.area = new int[count];
+		this.hops = new byte[(int) sizeOf(grid)];
+		build();
+	}
+
+	private NextHopTable(NextHopTable routes) {
+		this.grid = routes.grid;
+		this.count = routes.count;
+		this.ids = routes.ids;
+		this.cells = routes.cells;
+		this.area = routes.area;
+		this.hops = routes.hops;
+	}
+
+	/**
+	 * Get the number of bytes a table for the given world
+	 * would take up
+	 *
+	 * @param grid
+	 * @return size in bytes
+	 */
+	public static long sizeOf(Grid grid) {
+		long open = grid.countOpen();
+		return (open * open + 3) / 4;
+	}
+
+	/**
+	 * Check if a table for the given world fits in a budget, and
+	 * in an array whatever the budget
+	 *
+	 * @param grid
+	 * @param budget bytes
+	 * @return true if it fits
+	 */
+	public static boolean fits(Grid grid, long budget) {
+		long size = sizeOf(grid);
+		return size <= budget && size <= MAX_SIZE;
+	}
+
+	/**
+	 * Run a BFS from every open cell, recording for each cell
+	 * reached the direction back towards the root
+	 */
+	private void build() {
+		int[] queue = new int[count];
+		int[] seen = new int[count];
+
+		for (int to = 0; to < count; to++) {
+			int head = 0, tail = 0;
+			queue[tail++] = to;
+			seen[to] = to + 1;
+
+			while (head < tail) {
+				int from = queue[head++];
+
+				for (int n = 0; n < 4; n++) {
+					int j = grid.neighbour(cells[from], n);
+					if (j < 0 || seen[ids[j]] == to + 1)
+						continue;
+
+					j = ids[j];
+
+					seen[j] = to + 1;
+					queue[tail++] = j;
+
+					// j was reached from 'from', so the first step
+					// from j back towards 'to' is the opposite way
+					setHop(to, j, (n + 2) % 4);
+				}
+			}
+
+			// First BFS to reach a cell labels its area
+			if (area[to] == 0)
+				for (int k = 0; k < tail; k++)
+					area[queue[k]] = to + 1;
+		}
+	}
+
+	/**
+	 * The table never changes, just keep the players to read
+	 * their positions from
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		this.players = players;
+	}
+
+	/**
+	 * Find the direction towards the nearest living player.
+	 * Nearest is measured by following the table, so no
+	 * search is run
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int i = grid.index(x, y);
+		if (i < 0)
+			return -1;
+
+		// Monster off the open cells (e.g. spawned in a wall),
+		// pick the open neighbour with the shortest route
+		int from = ids[i];
+		if (from < 0) {
+			int min = Integer.MAX_VALUE;
+			int dir = -1;
+			for (int n = 0; n < 4; n++) {
+				int j = grid.neighbour(i, n);
+				int d = j < 0 ? min : nearest(ids[j]);
+				if (d < min) {
+					min = d;
+					dir = n;
+				}
+			}
+			return dir;
+		}
+
+		nearest(from);
+		int to = nearestCell;
+		if (to < 0)
+			return -1;
+
+		// Standing on a player, every open neighbour is 1 away, so
+		// step to the first as Node does
+		if (to == from)
+			return grid.firstMove(i);
+
+		return getHop(to, from);
+	}
+
+	/**
+	 * Get the first step on a shortest path between two cells
+	 *
+	 * @param fromX
+	 * @param fromY
+	 * @param toX
+	 * @param toY
+	 * @return direction, or -1 if there is no route
+	 */
+	public int getNextHop(int fromX, int fromY, int toX, int toY) {
+		int from = id(fromX, fromY);
+		int to = id(toX, toY);
+		if (from < 0 || to < 0 || from == to || area[from] != area[to])
+			return -1;
+		return getHop(to, from);
+	}
+
+	/**
+	 * Find the closest living player to an open cell, and
+	 * store their cell id in nearestCell (-1 if none)
+	 *
+	 * @param from
+	 * @return distance, or MAX_VALUE if no player is reachable
+	 */
+	private int nearest(int from) {
+		nearestCell = -1;
+		int min = Integer.MAX_VALUE;
+		if (from < 0)
+			return min;
+
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (!p.isAlive())
+				continue;
+
+			int to = id(p.X(), p.Y());
+			if (to < 0 || area[to] != area[from])
+				continue;
+
+			int d = length(from, to);
+			if (d < min) {
+				min = d;
+				nearestCell = to;
+			}
+		}
+
+		return min;
+	}
+
+	/**
+	 * Follow the table from one cell to another, counting steps
+	 *
+	 * @param from
+	 * @param to
+	 * @return path length
+	 */
+	private int length(int from, int to) {
+		int steps = 0;
+		while (from != to) {
+			int n = getHop(to, from);
+			from = ids[grid.neighbour(cells[from], n)];
+			steps++;
+		}
+		return steps;
+	}
+
+	private int getHop(int to, int from) {
+		long e = (long) to * count + from;
+		return (hops[(int) (e >> 2)] >> ((e & 3) * 2)) & 3;
+	}
+
+	private void setHop(int to, int from, int dir) {
+		long e = (long) to * count + from;
+		int shift = (int) (e & 3) * 2;
+		int b = (int) (e >> 2);
+		hops[b] = (byte) ((hops[b] & ~(3 << shift)) | (dir << shift));
+	}
+
+	/**
+	 * Get the open cell id of (x, y)
+	 *
+	 * @param x
+	 * @param y
+	 * @return id, or -1 if a wall or out of bounds
+	 */
+	private int id(int x, int y) {
+		int i = grid.index(x, y);
+		return i < 0 ? -1 : ids[i];
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the table steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(NextHopTable::new);
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the table keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(NextHopTable::new);
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(NextHopTable::new);
+	}
+
+	@Test
+	public void nextHopIsShortest() {
+		// Verify that every hop brings a route one step closer to
+		// where it is going
+		Random rand = new Random(1);
+		for (String[] world : PathFinderCheck.worlds()) {
+			Grid grid = new Grid(world);
+			NextHopTable table = new NextHopTable(grid);
+			
+			for (int round = 0; round < 50; round++) {
+				int[] from = PathFinderCheck.randomOpen(world, rand);
+				int[] to = PathFinderCheck.randomOpen(world, rand);
+				int[] dist = PathFinderCheck.bfs(grid, grid.index(to[0], to[1]));
+				
+				int d = table.getNextHop(from[0], from[1], to[0], to[1]);
+				int here = dist[grid.index(from[0], from[1])];
+				if (here == 0 || here == Integer.MAX_VALUE) {
+					assertEquals(-1, d);
+					continue;
+				}
+				assertTrue(d >= 0);
+				assertEquals(here - 1, dist[grid.index(from[0] + Grid.DX[d], from[1] + Grid.DY[d])]);
+			}
+		}
+	}
+
+	@Test
+	public void sharedUntilReleased() {
+		// Verify that rooms on one map share its routes, and that the
+		// routes are dropped once the last room releases them
+		String[] world = PathFinderCheck.maze(21, 1);
+		Grid grid = new Grid(world);
+		List<String> rows = List.of(world);
+
+		NextHopTable first = load(world, grid);
+		NextHopTable second = load(world.clone(), new Grid(world));
+		assertTrue(first.hops == second.hops);
+		assertEquals(2, tables.get(rows).users);
+
+		first.release();
+		first.release();
+		assertEquals(1, tables.get(rows).users);
+		second.release();
+		assertTrue(!tables.containsKey(rows));
+
+		NextHopTable third = load(world, grid);
+		assertTrue(third.hops != second.hops);
+		third.release();
+		assertTrue(!tables.containsKey(rows));
+	}
+}
@@ -17,9 +17,6 @@ public class Node {
 	// Adjacent node array
 	private Node[] adj = new Node[4];
 	
-	// 2d Node Array for map
-	public static Node[][] nodes;
-	
 	public Node(int x, int y, boolean wall) {
 		this.x = x;
 		this.y = y;
@@ -27,12 +24,17 @@ public class Node {
 	}
 	
 	/**
-	 * Initialise Nodes for given world
+	 * Create the Nodes for given world
 	 * @param world
+	 * @return nodes by row
 	 */
-	public static void init(String[] world) {
-		// Set 2d node array to the world size
-		nodes = new Node[world.length][world.length];
+	public static Node[][] init(String[] world) {
+		// Set 2d node array to the world size, rows are as wide
+		// as the longest line
+		int width = 0;
+		for (String row : world)
+			width = Math.max(width, row.length());
+		Node[][] nodes = new Node[world.length][width];
 		
 		// Create all nodes
 		for(int i = 0; i < world.length; i++)
@@ -43,6 +45,7 @@ public class Node {
 		for(int i = 0; i < world.length; i++)
 			for(int j = 0; j < world[i].length(); j++)
 				nodes[i][j].addAllAdjacent(nodes);
+		return nodes;
 	}
 	
 	/**
@@ -51,15 +54,14 @@ public class Node {
 	 * @param nodes
 	 * @param x
 	 * @param y
-	 * @return node at the position given
+	 * @return node at the position given, or null if out of bounds
 	 */
 	public static Node getNode(Node[][] nodes, int x, int y) {
-		for(Node[] na : nodes)
-			for(Node n : na)
-				if(n.x == x && n.y == y)
-					return n;
+		// nodes are stored by row, so (x, y) is at [y][x]
+		if(y < 0 || y >= nodes.length || x < 0 || x >= nodes[y].length)
+			return null;
 		
-		return null;
+		return nodes[y][x];
 	}
 	
 	/**
@@ -74,6 +76,14 @@ public class Node {
 		addAdjacent(3, getNode(nodes, x - 1, y));
 	}
 	
+	public int X() {
+		return this.x;
+	}
+	
+	public int Y() {
+		return this.y;
+	}
+	
 	/**
 	 * Adds adjacent single node to given node
 	 * n = 0:UP 1:RIGHT 2:DOWN 3:LEFT 
@@ -0,0 +1,35 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Answers the monsters' direction query: which way to step
+ * from (x, y) to get closer to the nearest living player.
+ *
+ * update is called once per tick, then getDirection once per
+ * monster, so every monster shares the same per tick work.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT, or -1
+ * if no player can be reached
+ */
+public interface PathFinder {
+
+	/**
+	 * Bring the finder up to date with the player positions
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players);
+
+	/**
+	 * Find the direction to move from (x, y)
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y);
+
+}
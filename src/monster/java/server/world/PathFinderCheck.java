@@ -0,0 +1,403 @@
+package monster.java.server.world;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Scanner;
+
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Shared checks for the path finders' JUnit tests. Every finder
+ * has to step the same way as Node.beginSearch, the search the
+ * game started with, on the bundled maps and on a generated maze.
+ *
+ * Node walks every route up to 50 steps long, which takes seconds
+ * a call on the looping maps and never ends on an open one, so it
+ * is only asked once per JVM: a short seeded game is played on
+ * each world with Node steering, and every finder is held to the
+ * directions it recorded. The players wander a step per tick and
+ * one dies half way through, a monster chases them, another stands
+ * somewhere at random, and every few ticks one stands on a player.
+ * Monsters further than 48 steps from every player are left out,
+ * as Node can't see that far from all of their neighbours.
+ *
+ * The bundled maps are read relative to the repository root.
+ */
+final class PathFinderCheck {
+	// Bundled maps, relative to the repository root, and ticks of
+	// play recorded on each
+	private static final String[] MAPS = {"world.txt", "world_9x9Maze.txt", "world_ORIG.txt"};
+	private static final int[] MAP_TICKS = {24, 4, 6};
+
+	// Side and seed of the generated maze, and its ticks of play.
+	// On most mazes Node takes minutes, on this one seconds
+	private static final int MAZE = 9;
+	private static final int MAZE_SEED = 1;
+	private static final int MAZE_TICKS = 6;
+
+	// Players in each game
+	private static final int PLAYERS = 3;
+
+	// Farthest a monster can be for Node to still reach the
+	// nearest player from all of its neighbours
+	private static final int NODE_RANGE = 48;
+
+	// Games recorded so far, by world
+	private static HashMap<String, Game> games = new HashMap<String, Game>();
+
+	interface Factory {
+		PathFinder create(Grid grid);
+	}
+
+	/**
+	 * One seeded game on a world, with the directions Node went
+	 */
+	private static class Game {
+		String name;
+		String[] world;
+
+		// Per tick, each player's x, y and 1 if alive
+		ArrayList<int[]> players = new ArrayList<int[]>();
+
+		// Per tick, each monster's x, y, Node's direction and 1 if
+		// it stands on a player
+		ArrayList<int[]> monsters = new ArrayList<int[]>();
+	}
+
+	private PathFinderCheck() {
+	}
+
+	/**
+	 * A fresh finder every tick
+	 *
+	 * @param factory
+	 */
+	static void agreesWithNode(Factory factory) {
+		for (Game game : games()) {
+			for (int tick = 0; tick < game.players.size(); tick++) {
+				PathFinder finder = factory.create(new Grid(game.world));
+				finder.update(players(game, tick));
+				check(game, tick, finder, false);
+			}
+		}
+	}
+
+	/**
+	 * One finder kept across the ticks, as the players move and
+	 * one of them dies
+	 *
+	 * @param factory
+	 */
+	static void followsMovingPlayers(Factory factory) {
+		for (Game game : games()) {
+			PathFinder finder = factory.create(new Grid(game.world));
+			for (int tick = 0; tick < game.players.size(); tick++) {
+				finder.update(players(game, tick));
+				check(game, tick, finder, false);
+			}
+		}
+	}
+
+	/**
+	 * Only the monsters standing on a living player, which have to
+	 * step off the same way as Node
+	 *
+	 * @param factory
+	 */
+	static void monsterOnPlayer(Factory factory) {
+		int checked = 0;
+		for (Game game : games()) {
+			PathFinder finder = factory.create(new Grid(game.world));
+			for (int tick = 0; tick < game.players.size(); tick++) {
+				finder.update(players(game, tick));
+				checked += check(game, tick, finder, true);
+			}
+		}
+		assertTrue(checked > 0);
+	}
+
+	/**
+	 * Compare the finder with Node for the monsters of a tick
+	 *
+	 * @return monsters compared
+	 */
+	private static int check(Game game, int tick, PathFinder finder, boolean onPlayer) {
+		int[] monsters = game.monsters.get(tick);
+		int checked = 0;
+		for (int m = 0; m < monsters.length; m += 4) {
+			if (onPlayer && monsters[m + 3] == 0)
+				continue;
+			int direction = finder.getDirection(monsters[m], monsters[m + 1]);
+			if (direction != monsters[m + 2])
+				throw new AssertionError(finder.getClass().getSimpleName() + " on " + game.name
+						+ " tick " + tick + " from " + monsters[m] + "," + monsters[m + 1]
+						+ " went " + direction + ", Node went " + monsters[m + 2]);
+			checked++;
+		}
+		return checked;
+	}
+
+	/**
+	 * Get the bundled maps and the generated maze
+	 *
+	 * @return worlds
+	 */
+	static ArrayList<String[]> worlds() {
+		ArrayList<String[]> worlds = new ArrayList<String[]>();
+		for (String map : MAPS)
+			worlds.add(load(map));
+		worlds.add(maze(MAZE, MAZE_SEED));
+		return worlds;
+	}
+
+	/**
+	 * Get the recorded games, playing them the first time
+	 *
+	 * @return games
+	 */
+	private static synchronized ArrayList<Game> games() {
+		ArrayList<Game> list = new ArrayList<Game>();
+		for (int i = 0; i < MAPS.length; i++)
+			list.add(game(MAPS[i], load(MAPS[i]), MAP_TICKS[i]));
+		list.add(game("maze" + MAZE, maze(MAZE, MAZE_SEED), MAZE_TICKS));
+		return list;
+	}
+
+	private static Game game(String name, String[] world, int ticks) {
+		Game game = games.get(name);
+		if (game != null)
+			return game;
+
+		game = new Game();
+		game.name = name;
+		game.world = world;
+		Grid grid = new Grid(world);
+		Node[][] nodes = Node.init(world);
+		Random rand = new Random(world.length);
+
+		ArrayList<NetworkPlayer> players = players(world, PLAYERS, rand);
+		int[] chaser = randomOpen(world, rand);
+
+		for (int tick = 0; tick < ticks; tick++) {
+			wander(world, players, rand);
+			if (tick == ticks / 2)
+				players.get(0).getPlayer().kill();
+
+			int[] positions = new int[3 * PLAYERS];
+			for (int i = 0; i < PLAYERS; i++) {
+				Entity p = players.get(i).getPlayer();
+				positions[3 * i] = p.X();
+				positions[3 * i + 1] = p.Y();
+				positions[3 * i + 2] = p.isAlive() ? 1 : 0;
+			}
+			game.players.add(positions);
+
+			// The chaser, one at random, and now and then one on
+			// the last player
+			ArrayList<int[]> at = new ArrayList<int[]>();
+			at.add(chaser);
+			at.add(randomOpen(world, rand));
+			if (tick % 3 == 0) {
+				Entity p = players.get(PLAYERS - 1).getPlayer();
+				at.add(new int[]{p.X(), p.Y()});
+			}
+
+			int[] monsters = new int[4 * at.size()];
+			int count = 0;
+			int chase = -1;
+			for (int[] xy : at) {
+				int distance = distance(grid, players, xy[0], xy[1]);
+				if (distance > NODE_RANGE)
+					continue;
+				int d = Node.getNode(nodes, xy[0], xy[1]).beginSearch(players);
+				if (xy == chaser)
+					chase = d;
+				monsters[count++] = xy[0];
+				monsters[count++] = xy[1];
+				monsters[count++] = d;
+				monsters[count++] = distance == 0 ? 1 : 0;
+			}
+			game.monsters.add(Arrays.copyOf(monsters, count));
+
+			if (chase >= 0)
+				chaser = new int[]{chaser[0] + Grid.DX[chase], chaser[1] + Grid.DY[chase]};
+		}
+
+		games.put(name, game);
+		return game;
+	}
+
+	/**
+	 * Players standing where they were at a tick of a game
+	 */
+	private static ArrayList<NetworkPlayer> players(Game game, int tick) {
+		int[] positions = game.players.get(tick);
+		ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (int i = 0; i < positions.length; i += 3) {
+			NetworkPlayer player = new NetworkPlayer(i / 3);
+			player.getPlayer().setPos(positions[i], positions[i + 1]);
+			if (positions[i + 2] == 0)
+				player.getPlayer().kill();
+			players.add(player);
+		}
+		return players;
+	}
+
+	/**
+	 * Breadth first distances from one cell over a grid
+	 *
+	 * @param grid
+	 * @param from
+	 * @return distance of every cell, Integer.MAX_VALUE where
+	 *         unreachable
+	 */
+	static int[] bfs(Grid grid, int from) {
+		int[] dist = new int[grid.size()];
+		Arrays.fill(dist, Integer.MAX_VALUE);
+		int[] queue = new int[grid.size()];
+		int head = 0, tail = 0;
+		dist[from] = 0;
+		queue[tail++] = from;
+		while (head < tail) {
+			int i = queue[head++];
+			for (int n = 0; n < 4; n++) {
+				int j = grid.neighbour(i, n);
+				if (j >= 0 && dist[j] == Integer.MAX_VALUE) {
+					dist[j] = dist[i] + 1;
+					queue[tail++] = j;
+				}
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * Distance from (x, y) to the nearest living player
+	 */
+	private static int distance(Grid grid, ArrayList<NetworkPlayer> players, int x, int y) {
+		int[] dist = bfs(grid, grid.index(x, y));
+		int min = Integer.MAX_VALUE;
+		for (NetworkPlayer player : players) {
+			Entity p = player.getPlayer();
+			if (p.isAlive())
+				min = Math.min(min, dist[grid.index(p.X(), p.Y())]);
+		}
+		return min;
+	}
+
+	/**
+	 * Load a world file the same way the server does
+	 *
+	 * @param path
+	 * @return world rows
+	 */
+	static String[] load(String path) {
+		StringBuilder sb = new StringBuilder();
+		try (Scanner in = new Scanner(new File(path))) {
+			while (in.hasNextLine())
+				sb.append(in.nextLine() + ",");
+		} catch (FileNotFoundException e) {
+			throw new AssertionError("Run from the repository root, no " + path);
+		}
+		return sb.toString().split(",");
+	}
+
+	/**
+	 * Generate a square maze, carved by a randomised depth first
+	 * search
+	 *
+	 * @param size odd
+	 * @param seed
+	 * @return world rows
+	 */
+	static String[] maze(int size, long seed) {
+		Random rand = new Random(seed);
+		char[][] cells = new char[size][size];
+		for (char[] row : cells)
+			Arrays.fill(row, '#');
+
+		int[] stack = new int[size * size];
+		int top = 0;
+		cells[1][1] = '_';
+		stack[top++] = size + 1;
+
+		while (top > 0) {
+			int x = stack[top - 1] % size;
+			int y = stack[top - 1] / size;
+
+			// Carve two cells on in the first unvisited direction
+			// from a random start
+			int start = rand.nextInt(4);
+			int n = 0;
+			for (; n < 4; n++) {
+				int d = (start + n) % 4;
+				int nx = x + 2 * Grid.DX[d];
+				int ny = y + 2 * Grid.DY[d];
+				if (nx > 0 && ny > 0 && nx < size - 1 && ny < size - 1 && cells[ny][nx] == '#') {
+					cells[y + Grid.DY[d]][x + Grid.DX[d]] = '_';
+					cells[ny][nx] = '_';
+					stack[top++] = ny * size + nx;
+					break;
+				}
+			}
+			if (n == 4)
+				top--;
+		}
+
+		String[] world = new String[size];
+		for (int y = 0; y < size; y++)
+			world[y] = new String(cells[y]);
+		return world;
+	}
+
+	/**
+	 * Create unconnected players on random open cells
+	 *
+	 * @param world
+	 * @param n
+	 * @param rand
+	 * @return players
+	 */
+	static ArrayList<NetworkPlayer> players(String[] world, int n, Random rand) {
+		ArrayList<NetworkPlayer> players = new ArrayList<NetworkPlayer>();
+		for (int i = 0; i < n; i++) {
+			NetworkPlayer player = new NetworkPlayer(i);
+			int[] at = randomOpen(world, rand);
+			player.getPlayer().setPos(at[0], at[1]);
+			players.add(player);
+		}
+		return players;
+	}
+
+	/**
+	 * Move every living player one random step onto an open cell
+	 */
+	private static void wander(String[] world, ArrayList<NetworkPlayer> players, Random rand) {
+		for (NetworkPlayer player : players) {
+			Entity p = player.getPlayer();
+			int n = rand.nextInt(4);
+			if (p.isAlive() && isOpen(world, p.X() + Grid.DX[n], p.Y() + Grid.DY[n]))
+				p.addPos(Grid.DX[n], Grid.DY[n]);
+		}
+	}
+
+	static int[] randomOpen(String[] world, Random rand) {
+		while (true) {
+			int y = rand.nextInt(world.length);
+			int x = rand.nextInt(world[y].length() + 1);
+			if (isOpen(world, x, y))
+				return new int[]{x, y};
+		}
+	}
+
+	private static boolean isOpen(String[] world, int x, int y) {
+		return y >= 0 && y < world.length && x >= 0 && x < world[y].length()
+				&& world[y].charAt(x) != '#';
+	}
+}
@@ -0,0 +1,268 @@
+package monster.java.server.world;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import monster.java.server.MonsterServer;
+import monster.java.server.net.NetworkPlayer;
+
+/**
+ * Least recently used cache of BFS trees, one per player cell.
+ *
+ * A tree is the distance from every cell to its root cell, so the
+ * way back to the root from anywhere is down to a lower neighbour.
+ * Players keep returning to the same few cells, and while they
+ * stand on a cell that has a tree no search is needed at all. A
+ * player on a new cell costs one BFS, and the least recently used
+ * tree is dropped once the memory cap is reached.
+ *
+ * Directions match Node: 0:UP 1:RIGHT 2:DOWN 3:LEFT
+ */
+public class TreeCache implements PathFinder {
+	// Distance of walls and cells the root can't reach
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private Grid grid;
+
+	// Max number of trees held
+	private int capacity;
+
+	// Trees by root cell, least recently used first
+	private LinkedHashMap<Integer, int[]> trees;
+
+	// Trees dropped from the cache, to be reused by the next misses
+	private ArrayList<int[]> evicted = new ArrayList<int[]>();
+	private ArrayList<int[]> free = new ArrayList<int[]>();
+
+	// Trees of the living players this tick
+	private int[][] current = new int[0][];
+	private int numCurrent = 0;
+
+	// BFS queue, reused between builds
+	private int[] queue;
+
+	private long hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * @param grid
+	 * @param budget max bytes of trees to keep, at least one tree
+	 *            is always kept
+	 */
+	public TreeCache(Grid grid, long budget) {
+		this.grid = grid;
+		this.capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / sizeOf(grid)));
+		this.queue = new int[grid.size()];
+
+		this.trees = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+				if (size() <= capacity)
+					return false;
+
+				evicted.add(eldest.getValue());
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Get the number of bytes one tree takes up
+	 *
+	 * @param grid
+	 * @return size in bytes
+	 */
+	public static long sizeOf(Grid grid) {
+		return 4L * grid.size();
+	}
+
+	/**
+	 * Look up the tree of every living player's cell, building
+	 * the ones not cached
+	 *
+	 * @param players
+	 */
+	public void update(ArrayList<NetworkPlayer> players) {
+		if (current.length < players.size())
+			current = new int[players.size()][];
+
+		numCurrent = 0;
+		for (int k = 0; k < players.size(); k++) {
+			Entity p = players.get(k).getPlayer();
+			if (!p.isAlive())
+				continue;
+
+			int cell = grid.index(p.X(), p.Y());
+			if (cell < 0 || grid.isWall(cell))
+				continue;
+
+			int[] tree = trees.get(cell);
+			if (tree != null) {
+				hits++;
+			} else {
+				misses++;
+				tree = free.isEmpty() ? new int[grid.size()] : free.remove(free.size() - 1);
+				build(tree, cell);
+				trees.put(cell, tree);
+			}
+			current[numCurrent++] = tree;
+		}
+
+		// Trees dropped this tick can be reused once nothing uses them
+		for (int[] tree : evicted)
+			if (!inUse(tree))
+				free.add(tree);
+		evicted.clear();
+
+		if (MonsterServer.DEBUG)
+			System.out.println("Tree cache hits " + hits + ", misses " + misses
+					+ ", evictions " + evictions);
+	}
+
+	private boolean inUse(int[] tree) {
+		for (int k = 0; k < numCurrent; k++)
+			if (current[k] == tree)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Fill in the distance of every cell from the root
+	 *
+	 * @param tree
+	 * @param root
+	 */
+	private void build(int[] tree, int root) {
+		Arrays.fill(tree, UNREACHABLE);
+		int head = 0, tail = 0;
+		tree[root] = 0;
+		queue[tail++] = root;
+
+		while (head < tail) {
+			int i = queue[head++];
+			int d = tree[i] + 1;
+
+			for (int n = 0; n < 4; n++) {
+				int j = grid.neighbour(i, n);
+				if (j >= 0 && tree[j] == UNREACHABLE) {
+					tree[j] = d;
+					queue[tail++] = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the direction of the neighbour of (x, y) closest to any
+	 * player. Ties go to the first direction, as in
+	 * Node.beginSearch
+	 *
+	 * @param x
+	 * @param y
+	 * @return direction, or -1 if no player is reachable
+	 */
+	public int getDirection(int x, int y) {
+		int i = grid.index(x, y);
+		if (i < 0)
+			return -1;
+
+		int min = UNREACHABLE;
+		int dir = -1;
+		for (int n = 0; n < 4; n++) {
+			int j = grid.neighbour(i, n);
+			if (j < 0)
+				continue;
+
+			for (int k = 0; k < numCurrent; k++) {
+				if (current[k][j] < min) {
+					min = current[k][j];
+					dir = n;
+				}
+			}
+		}
+		return dir;
+	}
+
+	/**
+	 * Get the number of lookups that found a cached tree
+	 *
+	 * @return hits
+	 */
+	public long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * Get the number of lookups that had to build a tree
+	 *
+	 * @return misses
+	 */
+	public long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * Get the number of trees dropped to stay under the cap
+	 *
+	 * @return evictions
+	 */
+	public long getEvictions() {
+		return this.evictions;
+	}
+
+	/**
+	 * Get the number of trees cached
+	 *
+	 * @return trees
+	 */
+	public int size() {
+		return trees.size();
+	}
+
+	/**
+	 * Get the max number of trees the cap allows
+	 *
+	 * @return trees
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Get the number of bytes used by the cached trees
+	 *
+	 * @return size in bytes
+	 */
+	public long memorySize() {
+		return trees.size() * sizeOf(grid);
+	}
+
+	/* * * JUnit Testing Below * * */
+	@Test
+	public void agreesWithNode() {
+		// Verify that the cache steps the same way as Node.beginSearch
+		PathFinderCheck.agreesWithNode(grid -> new TreeCache(grid, MonsterServer.TREE_CACHE_BUDGET));
+	}
+
+	@Test
+	public void followsMovingPlayers() {
+		// Verify that the cache keeps up as players move and die
+		PathFinderCheck.followsMovingPlayers(grid -> new TreeCache(grid, MonsterServer.TREE_CACHE_BUDGET));
+	}
+
+	@Test
+	public void monsterOnPlayer() {
+		// Verify that a monster on a player steps off as Node does
+		PathFinderCheck.monsterOnPlayer(grid -> new TreeCache(grid, MonsterServer.TREE_CACHE_BUDGET));
+	}
+
+	@Test
+	public void agreesWithNodeEvicting() {
+		// Verify that a cache holding one tree still steps the same
+		// way as Node.beginSearch while it evicts
+		PathFinderCheck.followsMovingPlayers(grid -> new TreeCache(grid, sizeOf(grid)));
+	}
+}